@@ -0,0 +1,321 @@
+package data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 把数据连接上收到的 TAR 流并行解包到目标目录
+ *
+ * 用于 SITE STORTAR：一次上传许多小文件时，开销主要在每个文件单独建立数据连接上。
+ * 这里只建立一次连接：
+ * 1. 读取线程顺序解析 TAR 头部（流只能顺序读）
+ * 2. 小文件内容读入内存后交给写入线程池并行写盘
+ * 3. 大文件由读取线程直接边读边写，避免占用过多内存
+ *
+ * 每个条目路径都经过 PathValidator.resolvePath 校验，并且必须位于目标目录内，
+ * 含有 ".." 或绝对路径越界的条目（zip-slip）会被拒绝；链接等特殊条目直接跳过。
+ */
+public class ArchiveExtractor {
+
+    /** 不超过该大小的条目交给写入线程池 */
+    private static final int ASYNC_MAX_FILE = 4 * 1024 * 1024;
+
+    /** 等待写盘的内容最多占用的内存 */
+    private static final int MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    /** 写入线程池（守护线程，所有会话共用） */
+    private static final ExecutorService WRITER_POOL = Executors.newFixedThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()),
+        r -> {
+            Thread t = new Thread(r, "ftp-archive-writer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final PathValidator pathValidator;
+    private final String targetVirtualDir;
+    private final Path targetDir;
+
+    /** 解包出的文件归属的用户（开启配额时记账，null 表示不记账） */
+    private String owner = null;
+
+    private int fileCount = 0;
+    private int rejectedCount = 0;
+    private long contentBytes = 0;
+
+    /**
+     * @param pathValidator 路径验证器
+     * @param targetVirtualDir 目标目录的虚拟路径（如 "/upload"）
+     * @param targetDir 目标目录的实际路径
+     */
+    public ArchiveExtractor(PathValidator pathValidator, String targetVirtualDir, Path targetDir) {
+        this.pathValidator = pathValidator;
+        this.targetVirtualDir = targetVirtualDir;
+        this.targetDir = targetDir;
+    }
+
+    /**
+     * 设置解包出的文件的归属用户，开启配额时按条目大小记账，超出配额时中止解包
+     */
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    /**
+     * 读取 TAR 流并解包
+     *
+     * @param in 数据连接的输入流
+     * @throws IOException 归档格式错误、读取失败或有文件写入失败
+     */
+    public void extractFrom(InputStream in) throws IOException {
+        TarArchive.Reader reader = new TarArchive.Reader(in);
+        Semaphore pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+        List<Future<?>> writes = new ArrayList<>();
+        // 同一路径在归档中出现多次时，后一次写入前要等前一次完成
+        Map<Path, Future<?>> pendingByPath = new HashMap<>();
+        byte[] copyBuffer = new byte[64 * 1024];
+        QuotaLedger quota = owner == null ? null : QuotaLedger.instance();
+
+        try {
+            TarArchive.Entry entry;
+            while ((entry = reader.next()) != null) {
+                // 1. 只处理普通文件和目录，链接、设备等一律跳过
+                if (!entry.isFile() && !entry.isDirectory()) {
+                    System.out.println("[ArchiveExtractor] 跳过特殊条目: " + entry.name);
+                    continue;
+                }
+
+                // 2. 路径校验（防止 zip-slip）
+                Path target = resolveEntry(entry.name);
+                if (target == null) {
+                    rejectedCount++;
+                    ServerMetrics.increment("archive.stor.rejected");
+                    System.err.println("[ArchiveExtractor] 拒绝越界条目: " + entry.name);
+                    continue;
+                }
+
+                if (entry.isDirectory()) {
+                    if (quota != null && !Files.exists(target)) {
+                        quota.beforeChange(target);
+                        quota.tryCharge(owner, 0, 1);
+                        try {
+                            Files.createDirectories(target);
+                        } catch (IOException e) {
+                            quota.charge(owner, 0, -1);
+                            throw e;
+                        }
+                        quota.setOwner(target, owner);
+                    } else {
+                        Files.createDirectories(target);
+                    }
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                awaitPrevious(pendingByPath.remove(target));
+                // 配额：按头部声明的大小先记账（超出时不写），写入成功后再把被覆盖的旧文件退还给它的归属用户，
+                // 失败时由 refund 退还
+                QuotaLedger.Holding replaced = null;
+                if (quota != null) {
+                    replaced = quota.holdingOf(target);
+                    quota.tryCharge(owner, entry.size, 1);
+                }
+                QuotaLedger.Holding replacedHolding = replaced;
+                long declaredSize = entry.size;
+                // 目标是去重 blob 的硬链接时先断开，不能原地改写共享内容
+                DedupStore.breakLink(target);
+
+                if (entry.size <= ASYNC_MAX_FILE) {
+                    // 3. 小文件：读入内存，交给写入线程池
+                    int size = (int) entry.size;
+                    byte[] data;
+                    try {
+                        acquire(pendingBytes, size);
+                    } catch (IOException e) {
+                        refund(quota, target, declaredSize, replacedHolding, false);
+                        throw e;
+                    }
+                    try {
+                        data = reader.readAll();
+                    } catch (IOException e) {
+                        // 流在条目中间断开：目标文件还没动过
+                        pendingBytes.release(size);
+                        refund(quota, target, declaredSize, replacedHolding, false);
+                        throw e;
+                    }
+                    long mtime = entry.mtimeMillis;
+                    Future<?> write = WRITER_POOL.submit(() -> {
+                        try {
+                            writeFile(target, data, mtime);
+                            if (quota != null) {
+                                quota.setOwner(target, owner);
+                                quota.release(replacedHolding);
+                            }
+                        } catch (IOException e) {
+                            refund(quota, target, declaredSize, replacedHolding, true);
+                            throw e;
+                        } finally {
+                            pendingBytes.release(size);
+                        }
+                        return null;
+                    });
+                    writes.add(write);
+                    pendingByPath.put(target, write);
+                } else {
+                    // 4. 大文件：读取线程直接写
+                    try {
+                        try (OutputStream out = Files.newOutputStream(target)) {
+                            int n;
+                            while ((n = reader.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+                                out.write(copyBuffer, 0, n);
+                            }
+                        }
+                        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.mtimeMillis));
+                    } catch (IOException e) {
+                        refund(quota, target, declaredSize, replacedHolding, true);
+                        throw e;
+                    }
+                    FileAttributeCache.invalidate(target);
+                    if (quota != null) {
+                        quota.setOwner(target, owner);
+                        quota.release(replacedHolding);
+                    }
+                }
+                fileCount++;
+                contentBytes += entry.size;
+            }
+        } finally {
+            // 5. 等待所有写入完成（即使读取出错也要等，避免后台线程还在写）
+            IOException failure = null;
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("解包被中断");
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("写入文件失败: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        ServerMetrics.increment("archive.stor.count");
+        ServerMetrics.add("archive.stor.files", fileCount);
+        ServerMetrics.add("archive.stor.bytes", contentBytes);
+    }
+
+    /**
+     * 解析条目路径，越界时返回 null
+     */
+    private Path resolveEntry(String name) {
+        // 归档里的绝对路径一律视为相对于目标目录
+        String relative = name;
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        if (relative.isEmpty() || relative.indexOf('\0') >= 0) {
+            return null;
+        }
+        try {
+            Path target = pathValidator.resolvePath(targetVirtualDir, relative);
+            if (!target.startsWith(targetDir) || target.equals(targetDir)) {
+                return null;
+            }
+            return target;
+        } catch (SecurityException | IOException | java.nio.file.InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 条目没有写成功：退还按头部大小记的账（与 STOR 的 QuotaLedger.Upload.rollback 相同）
+     * 目标文件已被改写时内容不完整，删除它，旧文件的用量也退还给原归属用户
+     *
+     * @param targetWritten 是否已经开始改写目标文件
+     */
+    private void refund(QuotaLedger quota, Path target, long size, QuotaLedger.Holding replaced,
+                        boolean targetWritten) {
+        if (targetWritten) {
+            try {
+                Files.deleteIfExists(target);
+                FileAttributeCache.invalidate(target);
+            } catch (IOException e) {
+                System.err.println("[ArchiveExtractor] 无法删除不完整的文件 " + target + ": " + e.getMessage());
+            }
+        }
+        if (quota == null) {
+            return;
+        }
+        quota.charge(owner, -size, -1);
+        if (targetWritten) {
+            quota.release(replaced);
+        }
+    }
+
+    private static void writeFile(Path target, byte[] data, long mtimeMillis) throws IOException {
+        try (FileChannel channel = FileChannel.open(target,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(mtimeMillis));
+        FileAttributeCache.invalidate(target);
+    }
+
+    private static void awaitPrevious(Future<?> previous) throws IOException {
+        if (previous == null) {
+            return;
+        }
+        try {
+            previous.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("解包被中断");
+        } catch (ExecutionException e) {
+            // 失败会在最后统一汇报
+        }
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws IOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("解包被中断");
+        }
+    }
+}
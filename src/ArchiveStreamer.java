@@ -0,0 +1,323 @@
+package data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 把一个目录子树边读边打包成 ZIP 或 TAR，直接写到数据连接
+ *
+ * 用于 SITE RETRZIP / SITE RETRTAR：两万个小文件不再需要两万次 PASV + RETR，
+ * 而是一次长传输。整个过程不在磁盘上生成临时文件：
+ * 1. 先遍历目录树，得到按路径排序的条目列表（不跟随符号链接）
+ * 2. 小文件由预读线程池提前并行读入内存（受数量和字节数窗口限制）
+ * 3. 写出线程按顺序把条目写入归档；大文件在轮到时直接流式读取
+ */
+public class ArchiveStreamer {
+
+    /** 归档格式 */
+    public enum Format {
+        ZIP, TAR
+    }
+
+    /** 不超过该大小的文件才预读到内存 */
+    private static final int PREFETCH_MAX_FILE = 1024 * 1024;
+
+    /** 预读窗口：最多提前读入的文件个数 */
+    private static final int PREFETCH_WINDOW = 64;
+
+    /** 预读窗口：最多提前读入的字节数 */
+    private static final long PREFETCH_BYTES = 32L * 1024 * 1024;
+
+    /** 一个归档最多包含的条目数 */
+    private static final int MAX_ENTRIES = Integer.getInteger("ftp.archive.maxEntries", 500000);
+
+    /** 预读线程池（守护线程，所有会话共用） */
+    private static final ExecutorService PREFETCH_POOL = Executors.newFixedThreadPool(
+        Math.max(2, Runtime.getRuntime().availableProcessors()),
+        r -> {
+            Thread t = new Thread(r, "ftp-archive-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+
+    /**
+     * 归档中的一个条目
+     */
+    private static final class Item {
+        final Path path;
+        final String name;
+        final boolean directory;
+        final long size;
+        final long mtimeMillis;
+        Future<byte[]> prefetched;
+
+        Item(Path path, String name, BasicFileAttributes attrs) {
+            this.path = path;
+            this.name = name;
+            this.directory = attrs.isDirectory();
+            this.size = attrs.size();
+            this.mtimeMillis = attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    private final Path root;
+    private final Path dir;
+    private final Format format;
+    private final int compressionLevel;
+
+    /** 已写入归档的文件数和内容字节数 */
+    private int fileCount = 0;
+    private long contentBytes = 0;
+
+    /**
+     * @param root FTP 根目录，所有条目都必须位于其中
+     * @param dir 要打包的目录（已经过 PathValidator 校验）
+     * @param format 归档格式
+     * @param compressionLevel ZIP 压缩级别 0-9（0 表示不压缩，TAR 忽略）
+     */
+    public ArchiveStreamer(Path root, Path dir, Format format, int compressionLevel) {
+        this.root = root;
+        this.dir = dir;
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getContentBytes() {
+        return contentBytes;
+    }
+
+    /**
+     * 打包并写出
+     *
+     * @param out 数据连接的输出流（调用方负责关闭）
+     * @throws IOException 读取文件或写出失败
+     */
+    public void streamTo(OutputStream out) throws IOException {
+        // 1. 遍历目录树，归档内的路径以目录自身的名字开头（根目录除外）
+        String prefix = dir.equals(root) ? "" : dir.getFileName().toString() + "/";
+        List<Item> items = new ArrayList<>();
+        collect(dir, prefix, items);
+        System.out.println("[ArchiveStreamer] 打包 " + dir + "，共 " + items.size() + " 个条目，格式 " + format);
+
+        // 2. 依次写出，同时维护预读窗口
+        int nextPrefetch = 0;
+        int current = 0;
+        long inFlightBytes = 0;
+        int inFlightCount = 0;
+
+        ZipOutputStream zip = null;
+        TarArchive.Writer tar = null;
+        if (format == Format.ZIP) {
+            zip = new ZipOutputStream(out);
+            zip.setLevel(compressionLevel);
+        } else {
+            tar = new TarArchive.Writer(out);
+        }
+
+        byte[] copyBuffer = new byte[64 * 1024];
+        try {
+            for (; current < items.size(); current++) {
+                // 补充预读窗口
+                while (nextPrefetch < items.size()
+                        && inFlightCount < PREFETCH_WINDOW
+                        && inFlightBytes < PREFETCH_BYTES) {
+                    Item candidate = items.get(nextPrefetch++);
+                    if (!candidate.directory && candidate.size <= PREFETCH_MAX_FILE) {
+                        candidate.prefetched = PREFETCH_POOL.submit(() -> Files.readAllBytes(candidate.path));
+                        inFlightBytes += candidate.size;
+                        inFlightCount++;
+                    }
+                }
+
+                Item item = items.get(current);
+                if (item.prefetched != null) {
+                    inFlightBytes -= item.size;
+                    inFlightCount--;
+                }
+
+                if (item.directory) {
+                    if (zip != null) {
+                        ZipEntry entry = new ZipEntry(item.name.endsWith("/") ? item.name : item.name + "/");
+                        entry.setTime(item.mtimeMillis);
+                        zip.putNextEntry(entry);
+                        zip.closeEntry();
+                    } else {
+                        tar.putDirectory(item.name, item.mtimeMillis);
+                    }
+                    continue;
+                }
+
+                // 取得文件内容：预读的直接用，否则在这里流式读取
+                byte[] data = null;
+                if (item.prefetched != null) {
+                    data = awaitPrefetch(item);
+                    if (data == null) {
+                        continue;  // 读取失败（如文件已被删除），跳过
+                    }
+                }
+
+                if (zip != null) {
+                    ZipEntry entry = new ZipEntry(item.name);
+                    entry.setTime(item.mtimeMillis);
+                    zip.putNextEntry(entry);
+                    if (data != null) {
+                        zip.write(data);
+                        contentBytes += data.length;
+                    } else {
+                        contentBytes += copyFile(item.path, zip, copyBuffer, Long.MAX_VALUE);
+                    }
+                    zip.closeEntry();
+                } else if (data != null) {
+                    tar.putFile(item.name, data.length, item.mtimeMillis);
+                    tar.write(data, 0, data.length);
+                    tar.closeEntry();
+                    contentBytes += data.length;
+                } else {
+                    // TAR 头部要先写大小，重新读取一次当前大小并严格按它写出
+                    long size;
+                    try {
+                        size = Files.size(item.path);
+                    } catch (IOException e) {
+                        System.err.println("[ArchiveStreamer] 跳过无法读取的文件 " + item.path + ": " + e.getMessage());
+                        continue;
+                    }
+                    tar.putFile(item.name, size, item.mtimeMillis);
+                    long copied = copyToTar(item.path, tar, copyBuffer, size);
+                    tar.closeEntry();
+                    contentBytes += copied;
+                }
+                fileCount++;
+            }
+
+            if (zip != null) {
+                zip.finish();
+                zip.flush();
+            } else {
+                tar.finish();
+            }
+        } finally {
+            // 中途失败时取消还没有用到的预读（已用过的在 awaitPrefetch 中已经清空）
+            for (int i = nextPrefetch - 1; i >= current; i--) {
+                Future<byte[]> f = items.get(i).prefetched;
+                if (f != null) {
+                    f.cancel(false);
+                }
+            }
+        }
+
+        ServerMetrics.increment("archive.retr.count");
+        ServerMetrics.add("archive.retr.files", fileCount);
+        ServerMetrics.add("archive.retr.bytes", contentBytes);
+    }
+
+    /**
+     * 按名称排序递归收集条目
+     */
+    private void collect(Path current, String prefix, List<Item> items) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(current)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        children.sort(Comparator.comparing(p -> p.getFileName().toString()));
+
+        if (!prefix.isEmpty()) {
+            BasicFileAttributes attrs = Files.readAttributes(current, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            items.add(new Item(current, prefix, attrs));
+        }
+
+        for (Path child : children) {
+            if (items.size() >= MAX_ENTRIES) {
+                throw new IOException("目录条目超过上限 " + MAX_ENTRIES);
+            }
+            if (!child.normalize().startsWith(root) || PathValidator.isMetaPath(root, child)) {
+                continue;
+            }
+            // 不跟随符号链接
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                continue;
+            }
+            String name = prefix + child.getFileName().toString();
+            if (attrs.isDirectory()) {
+                collect(child, name + "/", items);
+            } else if (attrs.isRegularFile()) {
+                items.add(new Item(child, name, attrs));
+            }
+        }
+    }
+
+    private byte[] awaitPrefetch(Item item) throws IOException {
+        // 取出后立即断开引用：items 要保留到整个归档写完，
+        // 不断开的话所有预读过的文件内容都会留在堆上，预读窗口就限制不住内存
+        Future<byte[]> prefetched = item.prefetched;
+        item.prefetched = null;
+        try {
+            return prefetched.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("打包被中断");
+        } catch (ExecutionException e) {
+            System.err.println("[ArchiveStreamer] 跳过无法读取的文件 " + item.path + ": " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 流式复制一个文件，最多复制 limit 字节
+     */
+    private static long copyFile(Path path, OutputStream out, byte[] buffer, long limit) throws IOException {
+        long total = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while (total < limit && (n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total))) != -1) {
+                out.write(buffer, 0, n);
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 按 TAR 头部中声明的大小复制：文件在打包过程中变短时补 0，变长时截断
+     */
+    private static long copyToTar(Path path, TarArchive.Writer tar, byte[] buffer, long size) throws IOException {
+        long total = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while (total < size && (n = in.read(buffer, 0, (int) Math.min(buffer.length, size - total))) != -1) {
+                tar.write(buffer, 0, n);
+                total += n;
+            }
+        }
+        java.util.Arrays.fill(buffer, (byte) 0);
+        while (total < size) {
+            int n = (int) Math.min(buffer.length, size - total);
+            tar.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+}
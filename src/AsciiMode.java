@@ -0,0 +1,149 @@
+package data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ASCII 类型（TYPE A，RFC 959 3.1.1.1）的换行转换
+ *
+ * 网络上的文本以 CRLF 结尾，本地文件以 LF 结尾：
+ *   发送（RETR）：LF → CRLF，已经是 CRLF 的行保持不变
+ *   接收（STOR）：CRLF → LF，单独的 CR 原样保留
+ *
+ * 查找换行时每次读 8 个字节，用位运算判断这 8 个字节中有没有目标字节，
+ * 两个换行之间的整段数据用一次 put 批量复制，只有换行本身逐字节处理。
+ * 文本文件每行几十个字节，大部分时间花在批量复制上，不会逐字节经过流包装。
+ *
+ * 转换器带有跨缓冲区的状态（上一段最后一个字节是否为 CR），每次传输新建一个。
+ */
+public final class AsciiMode {
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long CR_WORD = ONES * CR;
+    private static final long LF_WORD = ONES * LF;
+
+    private AsciiMode() {
+    }
+
+    /**
+     * 发送方向：LF → CRLF
+     */
+    public static final class Encoder {
+        /** 上一个输出的字节是否为 CR（跨缓冲区保留） */
+        private boolean afterCr = false;
+
+        /**
+         * 转换 src 中尽可能多的数据写入 dst
+         * dst 满了（剩余空间不够写一个 CRLF）时返回，src 中未处理的部分留给下一次调用
+         *
+         * @param src 读模式的本地数据
+         * @param dst 写模式的输出缓冲区（容量至少 2 字节）
+         */
+        public void encode(ByteBuffer src, ByteBuffer dst) {
+            while (src.hasRemaining() && dst.hasRemaining()) {
+                int pos = src.position();
+                int lf = indexOf(src, pos, src.limit(), LF, LF_WORD);
+                int run = Math.min((lf < 0 ? src.limit() : lf) - pos, dst.remaining());
+                if (run > 0) {
+                    copy(src, pos, run, dst);
+                    afterCr = src.get(pos + run - 1) == CR;
+                    continue;
+                }
+                // src 当前位置是 LF
+                if (!afterCr) {
+                    if (dst.remaining() < 2) {
+                        return;
+                    }
+                    dst.put(CR);
+                }
+                dst.put(LF);
+                src.position(pos + 1);
+                afterCr = false;
+            }
+        }
+    }
+
+    /**
+     * 接收方向：CRLF → LF
+     */
+    public static final class Decoder {
+        /** 上一段以 CR 结尾，要看下一个字节才知道是否输出它 */
+        private boolean pendingCr = false;
+
+        /**
+         * 转换 src 中尽可能多的数据写入 dst（输出不会比输入多超过 1 个字节）
+         *
+         * @param src 读模式的网络数据
+         * @param dst 写模式的输出缓冲区
+         */
+        public void decode(ByteBuffer src, ByteBuffer dst) {
+            while (src.hasRemaining() && dst.hasRemaining()) {
+                int pos = src.position();
+                if (pendingCr) {
+                    // CR 后面不是 LF：单独的 CR 原样输出
+                    if (src.get(pos) != LF) {
+                        dst.put(CR);
+                    }
+                    pendingCr = false;
+                    continue;
+                }
+                int cr = indexOf(src, pos, src.limit(), CR, CR_WORD);
+                int run = Math.min((cr < 0 ? src.limit() : cr) - pos, dst.remaining());
+                if (run > 0) {
+                    copy(src, pos, run, dst);
+                    continue;
+                }
+                // src 当前位置是 CR：先跳过，由下一个字节决定
+                src.position(pos + 1);
+                pendingCr = true;
+            }
+        }
+
+        /**
+         * 数据结束：输出末尾悬而未决的 CR
+         *
+         * @param dst 写模式的输出缓冲区（至少有 1 字节空间）
+         */
+        public void finish(ByteBuffer dst) {
+            if (pendingCr) {
+                dst.put(CR);
+                pendingCr = false;
+            }
+        }
+    }
+
+    /**
+     * 在 [from, to) 中查找 target，8 字节一组判断，找不到返回 -1
+     *
+     * (x - 0x01..01) & ~x & 0x80..80 不为 0 当且仅当 x 中有字节为 0，
+     * x 是数据与 target 重复 8 次的值按位异或，等于 target 的字节异或后为 0。
+     * 命中的那一组再逐字节确认位置。
+     */
+    static int indexOf(ByteBuffer buffer, int from, int to, byte target, long pattern) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = buffer.getLong(i) ^ pattern;
+            if (((x - ONES) & ~x & HIGHS) != 0) {
+                break;
+            }
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 把 src 从 pos 开始的 length 个字节批量复制到 dst，并移动两边的位置
+     */
+    private static void copy(ByteBuffer src, int pos, int length, ByteBuffer dst) {
+        dst.put(dst.position(), src, pos, length);
+        dst.position(dst.position() + length);
+        src.position(pos + length);
+    }
+}
@@ -0,0 +1,219 @@
+package data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 块模式（MODE B，RFC 959 3.4.2）的分帧
+ *
+ * 流模式靠关闭数据连接表示文件结束，每次传输都要重新建立连接；
+ * 块模式的每个块带有 3 字节头（1 字节描述符 + 2 字节长度），
+ * 文件结束由描述符中的 EOF 位标记，数据连接可以在多次传输之间保持打开。
+ *
+ *   +------------+-----------------+----------------+
+ *   | 描述符 8 位 | 字节数 16 位     | 数据 ...        |
+ *   +------------+-----------------+----------------+
+ *
+ * 发送时每块最多 65535 字节，文件结束时单独发送一个长度为 0 的 EOF 块；
+ * 接收时忽略 EOR 标记，跳过重启标记块的内容。
+ */
+public final class BlockMode {
+
+    /** 描述符：记录结束 */
+    public static final int DESC_EOR = 0x80;
+
+    /** 描述符：文件结束 */
+    public static final int DESC_EOF = 0x40;
+
+    /** 描述符：数据可能有错 */
+    public static final int DESC_SUSPECT = 0x20;
+
+    /** 描述符：块内容是重启标记 */
+    public static final int DESC_RESTART = 0x10;
+
+    /** 单个块的最大数据长度 */
+    public static final int MAX_BLOCK = 0xFFFF;
+
+    private static final int HEADER_SIZE = 3;
+
+    private BlockMode() {
+    }
+
+    /**
+     * 把写入的数据按块分帧后写到底层 Channel
+     * write 返回的是数据字节数，不含块头
+     */
+    public static final class Writer implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+
+        public Writer(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                int count = Math.min(src.remaining(), MAX_BLOCK);
+                int limit = src.limit();
+                src.limit(src.position() + count);
+                try {
+                    writeBlock(0, src);
+                } finally {
+                    src.limit(limit);
+                }
+                written += count;
+            }
+            return written;
+        }
+
+        /**
+         * 发送文件结束标记（长度为 0 的 EOF 块）
+         */
+        public void writeEof() throws IOException {
+            writeBlock(DESC_EOF, ByteBuffer.allocate(0));
+        }
+
+        /**
+         * 写出一个块：底层是 SocketChannel 时块头和数据一次聚集写出
+         */
+        private void writeBlock(int descriptor, ByteBuffer data) throws IOException {
+            int count = data.remaining();
+            header.clear();
+            header.put((byte) descriptor).put((byte) (count >>> 8)).put((byte) count);
+            header.flip();
+            if (out instanceof GatheringByteChannel) {
+                ByteBuffer[] buffers = {header, data};
+                GatheringByteChannel gathering = (GatheringByteChannel) out;
+                while (header.hasRemaining() || data.hasRemaining()) {
+                    gathering.write(buffers);
+                }
+            } else {
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * 从底层 Channel 读取块，只返回数据部分
+     * 读到 EOF 块之后返回 -1，不会读到下一次传输的数据；reset 之后可以继续读取下一个文件
+     */
+    public static final class Reader implements ReadableByteChannel {
+        private final ReadableByteChannel in;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        /** 当前块还没有读出的数据字节数 */
+        private int remaining = 0;
+        /** 当前块是否带有 EOF 标记 */
+        private boolean lastBlock = false;
+        /** 是否已经读完当前文件 */
+        private boolean eof = false;
+
+        public Reader(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (remaining == 0) {
+                if (eof || lastBlock) {
+                    eof = true;
+                    return -1;
+                }
+                readHeader();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + Math.min(dst.remaining(), remaining));
+            int n;
+            try {
+                n = in.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (n < 0) {
+                throw new EOFException("数据连接在块中途关闭");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        /**
+         * 读取下一个块头，重启标记块的内容直接跳过
+         */
+        private void readHeader() throws IOException {
+            header.clear();
+            while (header.hasRemaining()) {
+                if (in.read(header) < 0) {
+                    throw new EOFException("数据连接在文件结束标记之前关闭");
+                }
+            }
+            int descriptor = header.get(0) & 0xFF;
+            remaining = ((header.get(1) & 0xFF) << 8) | (header.get(2) & 0xFF);
+            lastBlock = (descriptor & DESC_EOF) != 0;
+            if ((descriptor & DESC_RESTART) != 0) {
+                skip(remaining);
+                remaining = 0;
+            }
+        }
+
+        private void skip(int count) throws IOException {
+            ByteBuffer discard = ByteBuffer.allocate(Math.min(count, 512));
+            while (count > 0) {
+                discard.clear().limit(Math.min(count, discard.capacity()));
+                int n = in.read(discard);
+                if (n < 0) {
+                    throw new EOFException("数据连接在块中途关闭");
+                }
+                count -= n;
+            }
+        }
+
+        /**
+         * 是否已经读到当前文件的 EOF 标记
+         */
+        public boolean isAtEof() {
+            return eof || (lastBlock && remaining == 0);
+        }
+
+        /**
+         * 准备读取下一个文件
+         */
+        public void reset() {
+            remaining = 0;
+            lastBlock = false;
+            eof = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package data;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 服务器共享的直接缓冲区池
+ *
+ * 每次传输都 new 一个 byte[] 会在大量并发短传输时给 GC 带来很大压力。
+ * 这里把缓冲区按大小分级（4KB ~ 1MB，2 的幂），用完归还后再次复用：
+ * 1. 线程本地缓存：小规格缓冲区先放在当前线程的小缓存里，取还都不需要同步
+ * 2. 全局空闲队列：线程本地缓存满了或规格较大时放入无锁队列，供其他线程复用
+ * 3. 全局上限：池分配的直接内存总量不超过上限，超出时退化为普通堆缓冲区（不入池）
+ *
+ * 线程池的空闲线程会超时退出（TaskScheduler），退出线程的本地缓存仍占着直接内存额度。
+ * 所有线程本地缓存都登记在一起，后台线程（ftp-bufferpool）定期把已退出线程缓存的缓冲区
+ * 移回全局空闲队列，额度不会随着线程的创建和退出不断流失。
+ *
+ * 指标：bufferPool.allocated / reused / exhausted / reclaimed / directBytes
+ */
+public final class BufferPool {
+
+    /** 最小规格 4KB */
+    private static final int MIN_SHIFT = 12;
+
+    /** 最大规格 1MB */
+    private static final int MAX_SHIFT = 20;
+
+    private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** 不超过该规格的缓冲区才放入线程本地缓存（64KB） */
+    private static final int THREAD_CACHE_MAX_SHIFT = 16;
+
+    /** 每个线程、每个规格最多缓存的缓冲区个数 */
+    private static final int THREAD_CACHE_SIZE = 2;
+
+    /** 池可分配的直接内存上限，可通过 -Dftp.bufferPool.maxBytes 调整（默认 256MB） */
+    private static final long MAX_POOL_BYTES = Long.getLong("ftp.bufferPool.maxBytes", 256L * 1024 * 1024);
+
+    /** 回收已退出线程缓存的间隔 */
+    private static final long SWEEP_MILLIS = 10_000;
+
+    /** 各规格的全局空闲队列 */
+    @SuppressWarnings("unchecked")
+    private static final Queue<ByteBuffer>[] FREE = (Queue<ByteBuffer>[]) new Queue<?>[CLASS_COUNT];
+
+    /** 所有线程本地缓存（线程退出后由后台线程回收） */
+    private static final Queue<ThreadCache> CACHES = new ConcurrentLinkedQueue<>();
+
+    /** 线程本地缓存 */
+    private static final ThreadLocal<ThreadCache> THREAD_CACHE = ThreadLocal.withInitial(BufferPool::newThreadCache);
+
+    private static ScheduledExecutorService sweeper;
+
+    /** 已分配的直接内存总量 */
+    private static final AtomicLong DIRECT_BYTES = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            FREE[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * 一个线程的本地缓存：[规格][槽位]，只有所属线程读写，线程退出后由回收线程接管
+     */
+    private static final class ThreadCache {
+        final Thread owner = Thread.currentThread();
+        final ByteBuffer[][] slots = new ByteBuffer[THREAD_CACHE_MAX_SHIFT - MIN_SHIFT + 1][THREAD_CACHE_SIZE];
+    }
+
+    private static ThreadCache newThreadCache() {
+        ThreadCache cache = new ThreadCache();
+        CACHES.add(cache);
+        startSweeper();
+        return cache;
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-bufferpool");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(BufferPool::reclaimDeadCaches, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把已退出线程缓存的缓冲区移回全局空闲队列
+     * 观察到线程已结束（isAlive 为 false）之后，它对缓存的写入对这里都是可见的
+     */
+    private static void reclaimDeadCaches() {
+        int reclaimed = 0;
+        for (Iterator<ThreadCache> it = CACHES.iterator(); it.hasNext(); ) {
+            ThreadCache cache = it.next();
+            if (cache.owner.isAlive()) {
+                continue;
+            }
+            it.remove();
+            for (int index = 0; index < cache.slots.length; index++) {
+                for (ByteBuffer buffer : cache.slots[index]) {
+                    if (buffer != null) {
+                        FREE[index].offer(buffer);
+                        reclaimed++;
+                    }
+                }
+            }
+        }
+        if (reclaimed > 0) {
+            ServerMetrics.add("bufferPool.reclaimed", reclaimed);
+        }
+    }
+
+    /**
+     * 取得一个至少 size 字节的缓冲区
+     * 返回的缓冲区 position=0，limit=size（超过最大规格时 limit 为最大规格）
+     *
+     * @param size 需要的字节数
+     * @return 缓冲区，用完后必须调用 release 归还
+     */
+    public static ByteBuffer acquire(int size) {
+        int index = classIndex(size);
+        int capacity = 1 << (index + MIN_SHIFT);
+        int limit = Math.min(Math.max(size, 1), capacity);
+
+        // 1. 线程本地缓存
+        if (index + MIN_SHIFT <= THREAD_CACHE_MAX_SHIFT) {
+            ByteBuffer[] slots = THREAD_CACHE.get().slots[index];
+            for (int i = 0; i < slots.length; i++) {
+                ByteBuffer cached = slots[i];
+                if (cached != null) {
+                    slots[i] = null;
+                    ServerMetrics.increment("bufferPool.reused");
+                    return prepare(cached, limit);
+                }
+            }
+        }
+
+        // 2. 全局空闲队列
+        ByteBuffer pooled = FREE[index].poll();
+        if (pooled != null) {
+            ServerMetrics.increment("bufferPool.reused");
+            return prepare(pooled, limit);
+        }
+
+        // 3. 新分配（先占用额度，超出上限则退化为堆缓冲区）
+        if (DIRECT_BYTES.addAndGet(capacity) > MAX_POOL_BYTES) {
+            DIRECT_BYTES.addAndGet(-capacity);
+            ServerMetrics.increment("bufferPool.exhausted");
+            return ByteBuffer.allocate(limit);
+        }
+        ServerMetrics.increment("bufferPool.allocated");
+        ServerMetrics.set("bufferPool.directBytes", DIRECT_BYTES.get());
+        return prepare(ByteBuffer.allocateDirect(capacity), limit);
+    }
+
+    /**
+     * 归还缓冲区
+     * 堆缓冲区（池耗尽时的退化结果）直接丢弃，交给 GC 回收
+     *
+     * @param buffer 由 acquire 取得的缓冲区，可为 null
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (Integer.bitCount(capacity) != 1 || shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        int index = shift - MIN_SHIFT;
+
+        if (shift <= THREAD_CACHE_MAX_SHIFT) {
+            ByteBuffer[] slots = THREAD_CACHE.get().slots[index];
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == null) {
+                    slots[i] = buffer;
+                    return;
+                }
+            }
+        }
+        FREE[index].offer(buffer);
+    }
+
+    /**
+     * 计算 size 对应的规格下标（向上取整到 2 的幂）
+     */
+    private static int classIndex(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.min(shift, MAX_SHIFT) - MIN_SHIFT;
+    }
+
+    private static ByteBuffer prepare(ByteBuffer buffer, int limit) {
+        buffer.clear();
+        buffer.limit(limit);
+        return buffer;
+    }
+}
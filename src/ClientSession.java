@@ -1,16 +1,30 @@
 package data;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
 
 /**
  * 客户端会话处理器
@@ -30,16 +44,29 @@ public class ClientSession implements Runnable {
      */
     private static final Charset CONN_CHARSET = Charset.forName("UTF-8");
     
+    /** MDTM 响应的时间格式（UTC） */
+    private static final DateTimeFormatter MDTM_FORMAT =
+        DateTimeFormatter.ofPattern("yyyyMMddHHmmss").withZone(ZoneOffset.UTC);
+    
+    /** NLST 每累积这么多字符就发送一次 */
+    private static final int NLST_CHUNK_CHARS = 32 * 1024;
+    
+    /** 登录前的空闲超时（毫秒），-Dftp.idle.loginTimeout 以秒为单位 */
+    private static final int LOGIN_TIMEOUT_MILLIS = Integer.getInteger("ftp.idle.loginTimeout", 60) * 1000;
+    
+    /** 登录后的空闲超时（毫秒），-Dftp.idle.timeout 以秒为单位 */
+    private static final int IDLE_TIMEOUT_MILLIS = Integer.getInteger("ftp.idle.timeout", 300) * 1000;
+    
     // ==================== 成员变量 ====================
     
     /** 与客户端通信的 Socket */
     private final Socket controlSocket;
     
-    /** 从 Socket 读取数据的 Reader（一行一行地读） */
-    private final BufferedReader in;
+    /** 从 Socket 读取数据的 Reader（一行一行地读，AUTH TLS 之后换成 TLS Socket 的） */
+    private BufferedReader in;
     
-    /** 向 Socket 写入数据的 Writer（一行一行地写） */
-    private final BufferedWriter out;
+    /** 向 Socket 写入数据的 Writer（一行一行地写，AUTH TLS 之后换成 TLS Socket 的） */
+    private BufferedWriter out;
     
     /** 用户表管理器 */
     private final UserStore userStore;
@@ -47,6 +74,21 @@ public class ClientSession implements Runnable {
     /** 路径验证器 */
     private final PathValidator pathValidator;
 
+    /** 存储后端 */
+    private final Storage storage;
+
+    /** 客户端 IP（限流用） */
+    private final InetAddress clientAddress;
+
+    /** 会话录制的会话号（未启用录制时为 0） */
+    private int recordId;
+
+    /** 本会话处理过的命令数（JFR 会话事件用） */
+    private int commandCount = 0;
+
+    /** 最近发出的响应码（JFR 命令事件用，传输线程也会写） */
+    private volatile int lastReplyCode = 0;
+
     // ==================== 会话状态 ====================
     
     /** 是否已认证（已登录）*/
@@ -66,6 +108,138 @@ public class ClientSession implements Runnable {
     
     /** 被动模式下的服务端数据端口 */
     private java.net.ServerSocket passiveServerSocket = null;
+    
+    /** ALLO 命令声明的下一次上传大小（-1 表示未声明） */
+    private long allocSize = -1;
+    
+    /** RNFR 命令指定的待重命名路径（null 表示没有） */
+    private Path renameFrom = null;
+    
+    /** 控制连接是否已通过 AUTH TLS 加密 */
+    private boolean controlSecure = false;
+    
+    /** 控制连接的 TLS 会话（AUTH TLS 之后），数据连接据此检查会话复用 */
+    private javax.net.ssl.SSLSession controlTlsSession;
+    
+    /** 是否已收到 PBSZ（PROT 之前必须先 PBSZ） */
+    private boolean pbszReceived = false;
+    
+    /** 数据连接是否加密（PROT P） */
+    private boolean protectData = false;
+    
+    /** 是否使用块模式（MODE B） */
+    private boolean blockMode = false;
+    
+    /** 是否为 ASCII 类型（TYPE A），只影响 RETR / STOR 的换行转换；未发送 TYPE 时按二进制传输 */
+    private boolean asciiType = false;
+    
+    /** 块模式下上一次传输留下的数据连接（下一次传输直接使用，null 表示没有） */
+    private DataConnection blockConnection = null;
+    
+    /** 正在进行的数据传输（null 表示没有） */
+    private volatile Transfer activeTransfer = null;
+    
+    /**
+     * 传输的执行体（即原来的 handleRetr 等处理函数）
+     */
+    private interface TransferBody {
+        void run() throws IOException;
+    }
+    
+    /**
+     * 一次在传输线程中执行的数据传输
+     * 控制线程通过它实现 ABOR（关闭数据连接）和 STAT（读取进度）
+     */
+    private final class Transfer implements TransferWatchdog.Monitored {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int CANCELLED = 2;
+        
+        final String command;
+        final long startNanos = System.nanoTime();
+        /** 启动传输时的被动模式监听 Socket（ABOR 时关闭它以中断 accept） */
+        final java.net.ServerSocket passiveSocket;
+        volatile DataConnection dataConn;
+        volatile boolean aborted;
+        /** 因速率过低被监控线程中止 */
+        volatile boolean stalled;
+        /** 读写本地文件的字节数（差异传输中网络上可能很久没有数据） */
+        final LongAdder localBytes = new LongAdder();
+        /** 排队 / 执行中 / 已取消（传输线程池满时会先排队） */
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        Future<?> future;
+        
+        Transfer(String command, java.net.ServerSocket passiveSocket) {
+            this.command = command;
+            this.passiveSocket = passiveSocket;
+        }
+        
+        /**
+         * 中止传输：关闭监听 Socket 和数据连接，传输线程中的读写会立即抛出异常
+         */
+        void abort() {
+            aborted = true;
+            if (passiveSocket != null) {
+                try {
+                    passiveSocket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            DataConnection conn = dataConn;
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        
+        @Override
+        public long progressBytes() {
+            DataConnection conn = dataConn;
+            return (conn == null ? 0 : conn.getBytesTransferred()) + localBytes.sum();
+        }
+        
+        @Override
+        public void stall() {
+            stalled = true;
+            abort();
+        }
+        
+        /**
+         * 取消还在排队的传输
+         * 
+         * @return 是否取消成功（传输已经开始时返回 false）
+         */
+        boolean cancelQueued() {
+            if (!state.compareAndSet(QUEUED, CANCELLED)) {
+                return false;
+            }
+            future.cancel(false);
+            return true;
+        }
+        
+        /**
+         * 传输线程开始执行前调用，已被取消时返回 false
+         */
+        boolean markStarted() {
+            return state.compareAndSet(QUEUED, RUNNING);
+        }
+        
+        boolean isStarted() {
+            return state.get() == RUNNING;
+        }
+        
+        /**
+         * 等待传输结束
+         */
+        void await() {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // 传输中的异常已在传输线程中处理，被取消的传输没有执行
+            }
+        }
+    }
 
 
     // ==================== 构造方法 ====================
@@ -79,16 +253,49 @@ public class ClientSession implements Runnable {
      * @throws IOException 如果 Socket 读写出错
      */
     public ClientSession(Socket controlSocket, String rootPath, UserStore userStore) throws IOException {
+        // 初始化路径验证器
+        this(controlSocket, new PathValidator(rootPath), userStore);
+    }
+    
+    /**
+     * 使用共享的路径验证器初始化一个会话
+     * PathValidator 创建后只读，可以被所有会话共用，省去每个连接检查根目录的开销
+     * 
+     * @param controlSocket 与客户端连接的 Socket
+     * @param pathValidator 路径验证器
+     * @param userStore 用户表管理器
+     * @throws IOException 如果 Socket 读写出错
+     */
+    public ClientSession(Socket controlSocket, PathValidator pathValidator, UserStore userStore) throws IOException {
+        this(controlSocket, pathValidator, userStore, LocalStorage.INSTANCE);
+    }
+    
+    /**
+     * 使用指定的存储后端初始化一个会话
+     * 
+     * @param controlSocket 与客户端连接的 Socket
+     * @param pathValidator 路径验证器
+     * @param userStore 用户表管理器
+     * @param storage 存储后端
+     * @throws IOException 如果 Socket 读写出错
+     */
+    public ClientSession(Socket controlSocket, PathValidator pathValidator, UserStore userStore,
+                         Storage storage) throws IOException {
         this.controlSocket = controlSocket;
+        this.clientAddress = controlSocket.getInetAddress();
+        this.storage = storage;
         this.userStore = userStore;
-        // 初始化路径验证器
-        this.pathValidator = new PathValidator(rootPath);
+        this.pathValidator = pathValidator;
         
         // 初始化当前工作目录为根目录
         this.currentWorkingDir = "/";
             
 
 
+        // 控制连接是一问一答的短消息：关闭 Nagle，否则传输结束后的 226 会和客户端的延迟 ACK
+        // 互相等待约 40ms（客户端的上一个 ACK 还没回来时，小包会被攒着不发）
+        controlSocket.setTcpNoDelay(true);
+
         // 从 Socket 获取输入流和输出流
         // InputStreamReader 将字节流转换为字符流，因为 FTP 命令是文本协议，需要把字节流转换成字符流并用带缓冲的按行读写工具来正确、可靠且高效地处理命令和回复。
         // BufferedReader 提供按行读取的便利
@@ -117,10 +324,15 @@ public class ClientSession implements Runnable {
      */
     @Override
     public void run() {
+        recordId = SessionRecorder.open();
+        FtpEvents.Session sessionEvent = new FtpEvents.Session();
+        sessionEvent.begin();
         try {
-            // 设置 Socket 超时时间（毫秒）：300 秒
-            // 如果 300 秒内没有收到数据，Socket 会抛出异常
-            controlSocket.setSoTimeout(300000);
+            // 空闲超时：登录前较短，登录后按 ftp.idle.timeout
+            // 超时内没有收到命令（且没有进行中的传输）时回复 421 并关闭会话
+            controlSocket.setSoTimeout(LOGIN_TIMEOUT_MILLIS);
+            // ABOR 之前客户端可能以紧急数据发送 Telnet IP/DM，放进普通数据流中，由 readCommandLine 去掉
+            controlSocket.setOOBInline(true);
             
             // 发送欢迎码
             reply(220, "简易 FTP 服务器已准备好");
@@ -128,7 +340,7 @@ public class ClientSession implements Runnable {
                 
             // 命令处理主循环,不断读取客户端命令并处理
             String line;
-            while ((line = in.readLine()) != null) {
+            while ((line = readCommandLine()) != null) {
                 // 去掉首尾空白
                 line = line.trim();
                 
@@ -146,6 +358,22 @@ public class ClientSession implements Runnable {
             // 客户端连接关闭或网络错误
             System.out.println("[ClientSession] 客户端" + currentUser + "断开连接: " + e.getMessage());
         } finally {
+            // 客户端断开时中止进行中的传输
+            Transfer running = activeTransfer;
+            if (running != null) {
+                running.cancelQueued();
+                running.abort();
+            }
+            closeBlockConnection();
+            SessionRecorder.close(recordId);
+            sessionEvent.end();
+            if (sessionEvent.shouldCommit()) {
+                sessionEvent.clientAddress = clientAddress.getHostAddress();
+                sessionEvent.user = currentUser;
+                sessionEvent.commands = commandCount;
+                sessionEvent.tls = controlSecure;
+                sessionEvent.commit();
+            }
             // 确保连接被正确关闭
             try {
                 controlSocket.close();
@@ -155,20 +383,91 @@ public class ClientSession implements Runnable {
         }
     }
     
+    /**
+     * 读取一行命令
+     * 传输进行中控制连接可能长时间没有命令，此时读超时不算断开
+     * 
+     * @return 去掉 Telnet 控制字符后的命令行，连接关闭时返回 null
+     */
+    private String readCommandLine() throws IOException {
+        while (true) {
+            try {
+                String line = in.readLine();
+                if (line == null) {
+                    return null;
+                }
+                // 去掉行首的 Telnet 控制字符（IAC IP / IAC DM 等，解码后不是字母）
+                int start = 0;
+                while (start < line.length() && !Character.isLetter(line.charAt(start))) {
+                    start++;
+                }
+                return line.substring(start);
+            } catch (SocketTimeoutException e) {
+                if (activeTransfer == null) {
+                    ServerMetrics.increment("session.idleReaped");
+                    reply(421, "空闲超时，关闭连接");
+                    throw e;
+                }
+            }
+        }
+    }
+    
     /**
      * 处理一条 FTP 命令
      * 
      * @param commandLine 整条命令（如 "USER alice"）
      */
     private void handleCommand(String commandLine) {
+        SessionRecorder.command(recordId, commandLine);
+        commandCount++;
+        FtpEvents.Command event = new FtpEvents.Command();
+        long allocatedBefore = event.isEnabled() ? FtpEvents.threadAllocatedBytes() : -1;
+        event.begin();
+        lastReplyCode = 0;
         try {
-            // 按空格拆分：第一个词是命令，剩下的是参数
-            // split("\\s+", 2) 表示：按任意个空白分割，最多分 2 段
-            // 例如 "USER alice" → ["USER", "alice"]
-            // 例如 "STOR  file.txt" → ["STOR", "file.txt"]
-            String[] parts = commandLine.split("\\s+", 2);
-            String cmd = parts[0].toUpperCase(Locale.ROOT);  // 命令转大写，parts[0] 是命令
-            String arg = (parts.length > 1) ? parts[1] : "";  // 获取参数，若无则空字符串
+            // 按空白拆分：第一个词是命令，剩下的是参数
+            // 例如 "USER alice" → "USER", "alice"
+            // 例如 "STOR  file.txt" → "STOR", "file.txt"
+            // 逐字符扫描而不是 split("\\s+", 2)：每条命令都要经过这里，不值得编译正则、生成数组
+            int verbEnd = 0;
+            while (verbEnd < commandLine.length() && !isCommandSpace(commandLine.charAt(verbEnd))) {
+                verbEnd++;
+            }
+            int argStart = verbEnd;
+            while (argStart < commandLine.length() && isCommandSpace(commandLine.charAt(argStart))) {
+                argStart++;
+            }
+            String cmd = upperCaseVerb(commandLine, verbEnd);  // 命令转大写
+            String arg = commandLine.substring(argStart);  // 获取参数，若无则空字符串
+            
+            // 命令过于频繁：回复 421 并关闭会话
+            if (!RateLimiter.tryCommand(clientAddress)) {
+                reply(421, "命令过于频繁，关闭连接");
+                controlSocket.close();
+                return;
+            }
+            
+            // 传输进行中：ABOR / STAT / NOOP 立即处理，其他命令等传输结束后再按顺序处理
+            Transfer running = activeTransfer;
+            if (running != null) {
+                switch (cmd) {
+                    case "ABOR":
+                        handleAbor();
+                        return;
+                    case "STAT":
+                        handleStat();
+                        return;
+                    case "NOOP":
+                        reply(200, "NOOP 命令");
+                        return;
+                    default:
+                        running.await();
+                }
+            }
+            
+            // RNFR 只对紧随其后的一条 RNTO 有效，其他任何命令都会清除它
+            Path pendingRename = renameFrom;
+            renameFrom = null;
             
             // 根据命令类型进行分发处理，核心命令处理函数，这个实现逻辑然后调用具体的处理函数
             switch (cmd) {
@@ -196,9 +495,6 @@ public class ClientSession implements Runnable {
                 case "PWD":
                     handlePwd();
                     break;
-                case "CDUP":
-                    handleCdup();
-                    break;
                 case "PORT":
                     if (!authenticated) {
                         reply(530, "请先登录");
@@ -219,21 +515,42 @@ public class ClientSession implements Runnable {
                     if (!authenticated) {
                         reply(530, "请先登录");
                     } else {
-                        handleList();
+                        startTransfer(cmd, TaskScheduler.Lane.INTERACTIVE, () -> handleList(arg));
+                    }
+                    break;
+                case "NLST":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        startTransfer(cmd, TaskScheduler.Lane.INTERACTIVE, () -> handleNlst(arg));
                     }
                     break;
                 case "RETR":
                     if (!authenticated) {
                         reply(530, "请先登录");
                     } else {
-                        handleRetr(arg);
+                        startTransfer(cmd, downloadLane(arg), () -> handleRetr(arg));
                     }
                     break;
                 case "STOR":
                     if (!authenticated) {
                         reply(530, "请先登录");
                     } else {
-                        handleStor(arg);
+                        startTransfer(cmd, TaskScheduler.Lane.BULK, () -> handleStor(arg));
+                    }
+                    break;
+                case "SIZE":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        handleSize(arg);
+                    }
+                    break;
+                case "MDTM":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        handleMdtm(arg);
                     }
                     break;
                 case "DELE":
@@ -243,6 +560,20 @@ public class ClientSession implements Runnable {
                         handleDele(arg);
                     }
                     break;
+                case "RNFR":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        handleRnfr(arg);
+                    }
+                    break;
+                case "RNTO":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        handleRnto(arg, pendingRename);
+                    }
+                    break;
                 case "MKD":
                     if (!authenticated) {
                         reply(530, "请先登录");
@@ -250,12 +581,24 @@ public class ClientSession implements Runnable {
                         handleMkd(arg);
                     }
                     break;
+                case "ALLO":
+                    handleAllo(arg);
+                    break;
+                case "SITE":
+                    if (!authenticated) {
+                        reply(530, "请先登录");
+                    } else {
+                        handleSite(arg);
+                    }
+                    break;
                 case "FEAT":
                     handleFeat();
                     break;
+                case "MODE":
+                    handleMode(arg);
+                    break;
                 case "TYPE":
-                    // TYPE 命令：设置传输模式（ASCII/BINARY）
-                    // 我们统一使用二进制，但需要响应此命令以兼容 Windows 资源管理器
+                    // TYPE 命令：设置传输类型（ASCII/BINARY），ASCII 时 RETR/STOR 转换换行
                     handleType(arg);
                     break;
                 case "OPTS":
@@ -271,6 +614,21 @@ public class ClientSession implements Runnable {
                     // NOOP 命令：空操作（心跳）
                     reply(200, "NOOP 命令");
                     break;
+                case "ABOR":
+                    handleAbor();
+                    break;
+                case "STAT":
+                    handleStat();
+                    break;
+                case "AUTH":
+                    handleAuth(arg);
+                    break;
+                case "PBSZ":
+                    handlePbsz(arg);
+                    break;
+                case "PROT":
+                    handleProt(arg);
+                    break;
                 default:
                     // 未知命令
                     reply(502, "不支持的命令: " + cmd);
@@ -282,6 +640,17 @@ public class ClientSession implements Runnable {
             } catch (IOException ignored) {
                 // 如果发送错误信息也失败了，放弃
             }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.verb = SessionRecorder.verb(commandLine);
+                event.user = currentUser;
+                event.replyCode = lastReplyCode;
+                if (allocatedBefore >= 0) {
+                    event.allocated = FtpEvents.threadAllocatedBytes() - allocatedBefore;
+                }
+                event.commit();
+            }
         }
     }
     
@@ -294,6 +663,12 @@ public class ClientSession implements Runnable {
      *   - 用户不存在 → 530（登录失败）
      */
     private void handleUser(String username) throws IOException {
+        // 要求加密时，明文控制连接上不允许登录（避免密码以明文传输）
+        if (TlsSupport.REQUIRED && !controlSecure) {
+            reply(530, "必须先使用 AUTH TLS 加密控制连接");
+            return;
+        }
+        
         // 1. 参数校验
         //sername.trim().isEmpty()把用户名前后空格去掉后，检查是否为空字符串
         if (username == null || username.trim().isEmpty()) {
@@ -303,13 +678,19 @@ public class ClientSession implements Runnable {
         //去掉前后空格的用户名
         username = username.trim();
         
-        // 2. 在存储中检查用户是否存在
+        // 2. 登录尝试过于频繁时不再查询用户表
+        if (RateLimiter.isLoginBlocked(clientAddress)) {
+            reply(530, "登录尝试过于频繁，请稍后再试");
+            return;
+        }
+        
+        // 3. 在存储中检查用户是否存在
         if (!userStore.userExists(username)) {
             reply(530, "无效的用户");
             return;
         }
         
-        // 3. 用户存在，记录下来，等待 PASS 命令
+        // 4. 用户存在，记录下来，等待 PASS 命令
         currentUser = username;
         authenticated = false;  // 还未通过密码认证
         reply(331, "用户名正确，需要密码");
@@ -338,10 +719,19 @@ public class ClientSession implements Runnable {
             return;
         }
         
-        // 3. 校验密码
+        // 3. 登录尝试过于频繁时不校验密码
+        if (!RateLimiter.tryLogin(clientAddress)) {
+            currentUser = null;
+            authenticated = false;
+            reply(530, "登录尝试过于频繁，请稍后再试");
+            return;
+        }
+        
+        // 4. 校验密码
         if (userStore.authenticate(currentUser, password)) {
-            // 密码正确，认证成功
+            // 密码正确，认证成功，空闲超时改为登录后的值
             authenticated = true;
+            controlSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
             reply(230, "用户 " + currentUser + " 已登录");
         } else {
             // 密码错误
@@ -386,11 +776,10 @@ public class ClientSession implements Runnable {
             //* 获取当前目录的绝对路径 */
             Path newPath = pathValidator.resolvePath(currentWorkingDir, dir);
             System.out.println("[ClientSession] CWD 目标路径: " + newPath);
-            System.out.println("[ClientSession] 路径存在: " + java.nio.file.Files.exists(newPath));
-            System.out.println("[ClientSession] 是目录: " + java.nio.file.Files.isDirectory(newPath));
+            System.out.println("[ClientSession] 是目录: " + storage.isDirectory(newPath));
             
             //* 验证该路径是否为有效目录 */
-            if (pathValidator.isValidDirectory(newPath)) {
+            if (storage.isDirectory(newPath)) {
                 // 更新当前工作目录（相对于根目录的路径）
                 currentWorkingDir = pathValidator.toVirtualPath(newPath);
                 reply(250, "目录已更改到 " + currentWorkingDir);
@@ -436,8 +825,14 @@ public class ClientSession implements Runnable {
         out.write(" SIZE\r\n");
         out.write(" MDTM\r\n");
         out.write(" MLST\r\n");
+        if (TlsSupport.isAvailable()) {
+            out.write(" AUTH TLS\r\n");
+            out.write(" PBSZ\r\n");
+            out.write(" PROT\r\n");
+        }
         out.write("211 End\r\n");
         out.flush();
+        replySent(211);
     }
 
     /**
@@ -466,12 +861,16 @@ public class ClientSession implements Runnable {
         out.write("  pass <密码>  - 提供密码\r\n");
         out.write("  port h1,h2,h3,h4,p1,p2 - 设置数据端口\r\n");
         out.write("  list - 列出目录内容\r\n");
+        out.write("  nlst [通配符] - 只列出文件名\r\n");
         out.write("  retr <文件名> - 下载文件\r\n");
         out.write("  stor <文件名> - 上传文件\r\n");
         out.write("  dele <文件名> - 删除文件\r\n");
+        out.write("  abor - 中止正在进行的传输\r\n");
+        out.write("  stat - 查看传输进度或会话状态\r\n");
         out.write("  quit - 断开连接\r\n");
         out.write("  cwd <目录>  - 更改当前目录\r\n");
         out.write("  pwd - 显示当前目录\r\n");
+        out.write("  mode <S|B> - 流模式 / 块模式（数据连接保持打开）\r\n");
         out.write("  help - 显示此消息\r\n");
         out.flush();
     }
@@ -480,7 +879,8 @@ public class ClientSession implements Runnable {
      * 处理 TYPE 命令 - 设置传输模式
      * 
      * 命令格式：TYPE A (ASCII) 或 TYPE I (Binary)
-     * 本服务器统一使用二进制模式，但需要接受此命令以兼容 Windows 资源管理器
+     * TYPE A 时 RETR 把本地的 LF 转换为 CRLF 发送，STOR 把收到的 CRLF 还原为 LF（见 AsciiMode）；
+     * 目录列表本身就以 CRLF 分行，按原样发送，SITE 打包传输和差异传输始终按二进制处理
      */
     private void handleType(String mode) throws IOException {
         if (mode == null || mode.trim().isEmpty()) {
@@ -490,11 +890,13 @@ public class ClientSession implements Runnable {
         
         mode = mode.trim().toUpperCase();
         
-        if ("A".equals(mode)) {
-            // ASCII 模式
+        if ("A".equals(mode) || "A N".equals(mode)) {
+            // ASCII 模式：RETR / STOR 时转换换行（本地 LF，网络 CRLF）
+            asciiType = true;
             reply(200, "设置为 ASCII 模式");
-        } else if ("I".equals(mode)) {
+        } else if ("I".equals(mode) || "L 8".equals(mode)) {
             // Binary 模式
+            asciiType = false;
             reply(200, "设置为二进制模式");
         } else {
             reply(501, "TYPE 命令参数错误，应为 A 或 I");
@@ -502,503 +904,1642 @@ public class ClientSession implements Runnable {
     }
     
     /**
-     * 处理 PORT 命令 - 设置客户端数据端口
+     * 处理 MODE 命令 - 设置传输模式
      * 
-     * 命令格式：PORT h1,h2,h3,h4,p1,p2
+     * 命令格式：MODE S（流模式）或 MODE B（块模式）
+     * 流模式每次传输后关闭数据连接；块模式用 EOF 块标记文件结束，
+     * 同一个数据连接可以连续传输多个文件，省去每个文件一次 PASV 和 TCP 建连
+     */
+    private void handleMode(String mode) throws IOException {
+        if (mode == null || mode.trim().isEmpty()) {
+            reply(501, "MODE 命令需要参数（S 或 B）");
+            return;
+        }
+        
+        mode = mode.trim().toUpperCase();
+        
+        if ("S".equals(mode)) {
+            blockMode = false;
+            closeBlockConnection();
+            reply(200, "设置为流模式");
+        } else if ("B".equals(mode)) {
+            blockMode = true;
+            reply(200, "设置为块模式");
+        } else {
+            reply(504, "不支持的传输模式: " + mode);
+        }
+    }
+    
+    /**
+     * 处理 ALLO 命令 - 预先声明上传文件大小
      * 
-     * @param arg 格式为 "h1,h2,h3,h4,p1,p2" 的字符串
+     * 命令格式：ALLO <字节数>
+     * 本服务器不需要预分配空间，但会用这个大小为下一次 STOR 选择传输参数
      */
-    private void handlePort(String arg) throws IOException {
-        // 1. 参数校验
+    private void handleAllo(String arg) throws IOException {
         if (arg == null || arg.trim().isEmpty()) {
-            reply(501, "PORT 命令需要参数");
+            reply(501, "ALLO 命令需要参数");
             return;
         }
         
-        arg = arg.trim();
-        
+        // 只取第一个数字，忽略可选的 "R <记录大小>" 部分
+        String sizeText = arg.trim().split("\\s+")[0];
         try {
-            // 2. 解析参数
-            String[] parts = arg.split(",");
-            
-            if (parts.length != 6) {
-                reply(501, "PORT 命令格式: h1,h2,h3,h4,p1,p2");
-                return;
-            }
-            
-            // 3. 组装 IP 地址
-            String ip = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
-            
-            // 4. 计算端口：port = p1 * 256 + p2
-            int p1 = Integer.parseInt(parts[4]);
-            int p2 = Integer.parseInt(parts[5]);
-            int port = p1 * 256 + p2;
-            
-            // 5. 端口范围校验
-            if (port < 1024 || port > 65535) {
-                reply(501, "无效的端口号: " + port);
+            long size = Long.parseLong(sizeText);
+            if (size < 0) {
+                reply(501, "ALLO 参数不能为负数");
                 return;
             }
-            
-            // 6. 保存数据端口地址
-            dataAddress = new InetSocketAddress(ip, port);
-            
-            System.out.println("[ClientSession] 客户端数据端口设置为: " + dataAddress);
-            reply(200, "PORT 命令执行成功");
-            
+            allocSize = size;
+            reply(200, "ALLO 命令接受，预计 " + size + " 字节");
         } catch (NumberFormatException e) {
-            reply(501, "PORT 命令参数无效: " + e.getMessage());
-        } catch (Exception e) {
-            reply(501, "PORT 命令执行失败: " + e.getMessage());
+            reply(501, "ALLO 参数无效: " + sizeText);
         }
     }
     
     /**
-     * 处理 PASV 命令 - 进入被动模式
+     * 处理 SITE 命令 - 服务器扩展命令
      * 
-     * 被动模式：服务器监听一个端口，等待客户端连接
-     * 响应格式：227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)
+     * 命令格式：SITE <子命令> [参数]
+     * 目前支持：
+     *   SITE METRICS - 查看服务器运行指标
+     *   SITE RETRZIP [-0..-9] <目录> - 把目录打包成 ZIP 下载（-0 不压缩，默认 -1 最快压缩）
+     *   SITE RETRTAR <目录> - 把目录打包成 TAR 下载
+     *   SITE STORTAR <目录> - 上传 TAR 流并解包到目录
+     *   SITE COPY <源文件> <目标> - 在服务端复制文件（含空格的名字用双引号括起来）
+     *   SITE QUOTA - 查看当前用户的配额和用量
+     *   SITE FIND <通配符> - 在当前目录之下按文件名查找（使用内存索引，通过数据连接返回）
+     *   SITE DELTASIG <文件> [块大小] - 下载文件的块签名
+     *   SITE DELTASTOR <文件> - 上传差异，在服务端重建新版本
+     *   SITE DELTARETR <文件> - 发送本地签名，下载差异
      */
-    private void handlePasv() throws IOException {
-        try {
-            // 1. 关闭之前的被动模式ServerSocket（如果有）
-            if (passiveServerSocket != null && !passiveServerSocket.isClosed()) {
-                passiveServerSocket.close();
-            }
-            
-            // 2. 创建新的ServerSocket，端口由系统自动分配（端口0）
-            passiveServerSocket = new java.net.ServerSocket(0);
-            passiveServerSocket.setSoTimeout(300000);  // 300秒（5分钟）超时，支持大文件传输
-            
-            // 3. 获取服务器IP地址（从控制连接获取）
-            String serverIp = controlSocket.getLocalAddress().getHostAddress();
-            int port = passiveServerSocket.getLocalPort();
-            
-            // 4. 计算 p1 和 p2：port = p1 * 256 + p2
-            int p1 = port / 256;
-            int p2 = port % 256;
-            
-            // 5. 格式化IP地址（用逗号替换点号）
-            String[] ipParts = serverIp.split("\\.");
-            String response = String.format("(%s,%s,%s,%s,%d,%d).",
-                ipParts[0], ipParts[1], ipParts[2], ipParts[3], p1, p2);
-            
-            // 6. 设置为被动模式
-            passiveMode = true;
-            dataAddress = null;  // 清空PORT模式的地址
-            
-            System.out.println("[ClientSession] 进入被动模式，监听端口: " + port);
-            reply(227, "Entering Passive Mode " + response);
-            
-        } catch (IOException e) {
-            passiveMode = false;
-            reply(425, "无法打开被动模式: " + e.getMessage());
+    private void handleSite(String arg) throws IOException {
+        if (arg == null || arg.trim().isEmpty()) {
+            reply(501, "SITE 命令需要子命令");
+            return;
+        }
+        
+        String[] parts = arg.trim().split("\\s+", 2);
+        String subCmd = parts[0].toUpperCase(Locale.ROOT);
+        String subArg = (parts.length > 1) ? parts[1].trim() : "";
+
+        // 打包传输、服务端复制和差异传输直接操作本地磁盘
+        if (!storage.isLocal() && (subCmd.equals("RETRZIP") || subCmd.equals("RETRTAR")
+                || subCmd.equals("STORTAR") || subCmd.equals("COPY") || subCmd.startsWith("DELTA"))) {
+            reply(504, "当前存储后端不支持 SITE " + subCmd);
+            return;
+        }
+
+        switch (subCmd) {
+            case "METRICS":
+                handleSiteMetrics();
+                break;
+            case "RETRZIP":
+                startTransfer("SITE RETRZIP", TaskScheduler.Lane.BULK, () -> handleSiteRetrArchive(ArchiveStreamer.Format.ZIP, subArg));
+                break;
+            case "RETRTAR":
+                startTransfer("SITE RETRTAR", TaskScheduler.Lane.BULK, () -> handleSiteRetrArchive(ArchiveStreamer.Format.TAR, subArg));
+                break;
+            case "STORTAR":
+                startTransfer("SITE STORTAR", TaskScheduler.Lane.BULK, () -> handleSiteStorTar(subArg));
+                break;
+            case "COPY":
+                handleSiteCopy(subArg);
+                break;
+            case "DELTASIG":
+                startTransfer("SITE DELTASIG", TaskScheduler.Lane.BULK, () -> handleSiteDeltaSig(subArg));
+                break;
+            case "DELTASTOR":
+                startTransfer("SITE DELTASTOR", TaskScheduler.Lane.BULK, () -> handleSiteDeltaStor(subArg));
+                break;
+            case "DELTARETR":
+                startTransfer("SITE DELTARETR", TaskScheduler.Lane.BULK, () -> handleSiteDeltaRetr(subArg));
+                break;
+            case "QUOTA":
+                handleSiteQuota();
+                break;
+            case "FIND":
+                startTransfer("SITE FIND", TaskScheduler.Lane.INTERACTIVE, () -> handleSiteFind(subArg));
+                break;
+            default:
+                reply(502, "不支持的 SITE 命令: " + subCmd);
         }
     }
     
     /**
-     * 处理 LIST 命令 - 列出当前目录内容
+     * 处理 SITE QUOTA 命令 - 查看当前用户的配额和用量
+     */
+    private void handleSiteQuota() throws IOException {
+        QuotaLedger quota = QuotaLedger.instance();
+        if (quota == null) {
+            reply(200, "未开启配额");
+            return;
+        }
+        long bytesLimit = userStore.getQuotaBytes(currentUser);
+        long filesLimit = userStore.getQuotaFiles(currentUser);
+        reply(200, "已用 " + quota.getUsedBytes(currentUser) + " 字节"
+            + (bytesLimit == UserStore.UNLIMITED ? "（不限）" : " / " + bytesLimit)
+            + "，" + quota.getUsedFiles(currentUser) + " 个文件"
+            + (filesLimit == UserStore.UNLIMITED ? "（不限）" : " / " + filesLimit));
+    }
+    
+    /**
+     * 处理 SITE FIND 命令 - 用内存中的文件名索引查找
      * 
-     * 工作流程：
-     * 1. 检查是否已设置数据端口（PORT 命令或 PASV 命令）
-     * 2. 发送 150 响应（即将打开数据连接）
-     * 3. 建立数据连接
-     * 4. 读取当前目录的文件列表
-     * 5. 通过数据连接发送列表
-     * 6. 关闭数据连接
-     * 7. 发送 226 响应（传输完成）
+     * 命令格式：SITE FIND <通配符>
+     *   例如 SITE FIND *.iso、SITE FIND src/**.java
+     * 从当前工作目录开始查找，每行返回一个虚拟路径，不访问磁盘。
      */
-    private void handleList() throws IOException {
-        System.out.println("[ClientSession] handleList 被调用，passiveMode=" + passiveMode + ", dataAddress=" + dataAddress);
-        
+    private void handleSiteFind(String glob) throws IOException {
         // 1. 检查是否已设置数据端口或被动模式
-        if (!passiveMode && dataAddress == null) {
+        if (!isDataPortReady()) {
             reply(425, "请先使用 PORT 或 PASV 命令");
             return;
         }
         
-        // 2. 解析当前工作目录对应的实际路径
-        Path currentDir;
+        if (glob.isEmpty()) {
+            reply(501, "用法: SITE FIND <通配符>");
+            return;
+        }
+        
+        FileIndex index = FileIndex.instance();
+        if (index == null) {
+            reply(502, "未开启文件名索引");
+            return;
+        }
+        if (!index.isReady()) {
+            reply(450, "文件名索引正在构建中（已索引 " + index.size() + " 个条目），请稍后再试");
+            return;
+        }
+        
+        Path baseDir;
         try {
-            currentDir = pathValidator.resolvePath(currentWorkingDir, ".");
-            System.out.println("[ClientSession] 当前目录解析为: " + currentDir);
-        } catch (Exception e) {
-            System.err.println("[ClientSession] 目录解析失败: " + e.getMessage());
-            reply(550, "无法访问目录: " + e.getMessage());
+            baseDir = pathValidator.resolvePath(currentWorkingDir, ".");
+            FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        } catch (IllegalArgumentException e) {
+            reply(501, "通配符格式错误: " + glob);
             return;
         }
         
-        // 3. 检查目录是否存在
-        if (!Files.exists(currentDir) || !Files.isDirectory(currentDir)) {
-            reply(550, "目录不存在");
+        // 2. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开 ASCII 模式数据连接以返回查找结果");
+        
+        // 3. 建立数据连接，边查找边发送
+        int count;
+        DataConnection dataConn = openDataConnection();
+        try {
+            establishDataConnection(dataConn, TransferTuner.Kind.LISTING, -1);
+            count = index.find(baseDir, glob, dataConn::sendText);
+            dataConn.endOfData();
+        } catch (IOException e) {
+            reply(426, "数据连接失败: " + failureReason(e));
+            return;
+        } finally {
+            releaseDataConnection(dataConn);
+        }
+        
+        // 4. 发送传输完成响应
+        reply(226, "查找完成，共 " + count + " 个匹配");
+    }
+    
+    /**
+     * 处理 SITE METRICS 命令
+     * 以多行 211 响应输出全部指标，每行 "名称=值"
+     */
+    private void handleSiteMetrics() throws IOException {
+        out.write("211-Metrics\r\n");
+        for (java.util.Map.Entry<String, Long> entry : ServerMetrics.snapshot().entrySet()) {
+            out.write(" " + entry.getKey() + "=" + entry.getValue() + "\r\n");
+        }
+        out.write("211 End\r\n");
+        out.flush();
+        replySent(211);
+    }
+    
+    /**
+     * 处理 SITE RETRZIP / SITE RETRTAR 命令 - 打包下载整个目录
+     * 
+     * 目录子树在服务端边读边打包，通过一条数据连接发送，不生成临时文件
+     * 
+     * @param format 归档格式
+     * @param arg "[-级别] <目录>"
+     */
+    private void handleSiteRetrArchive(ArchiveStreamer.Format format, String arg) throws IOException {
+        // 1. 检查是否已设置数据端口或被动模式
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
+            return;
+        }
+        
+        // 2. 解析压缩级别选项（仅 ZIP）
+        int level = java.util.zip.Deflater.BEST_SPEED;
+        if (format == ArchiveStreamer.Format.ZIP && arg.matches("-[0-9](\\s.*)?")) {
+            level = arg.charAt(1) - '0';
+            arg = arg.substring(2).trim();
+        }
+        if (arg.isEmpty()) {
+            reply(501, "需要指定目录");
+            return;
+        }
+        
+        // 3. 解析目录路径
+        Path dirPath;
+        try {
+            dirPath = pathValidator.resolvePath(currentWorkingDir, arg);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(550, "无效的目录路径: " + e.getMessage());
+            return;
+        }
+        
+        if (!pathValidator.isValidDirectory(dirPath)) {
+            reply(550, "目录不存在: " + arg);
             return;
         }
         
         // 4. 发送"即将打开数据连接"的响应
-        reply(150, "正在打开 ASCII 模式数据连接以获取文件列表");
+        reply(150, "正在打开二进制模式数据连接以传输 " + arg + " 的 " + format + " 归档");
         
-        // 5. 建立数据连接并传输目录列表
-        DataConnection dataConn = new DataConnection();
+        // 5. 建立数据连接，边打包边发送
+        ArchiveStreamer streamer = new ArchiveStreamer(pathValidator.getRootDirectory(), dirPath, format, level);
+        DataConnection dataConn = openDataConnection();
         try {
-            // 根据模式连接数据端口
-            if (passiveMode) {
-                // 被动模式：等待客户端连接
-                dataConn.acceptFrom(passiveServerSocket);
-            } else {
-                // 主动模式：连接到客户端数据端口
-                dataConn.connect(dataAddress);
-            }
-            
-            // 构建目录列表文本（Unix ls -l 格式）
-            StringBuilder listBuilder = new StringBuilder();
-            
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(currentDir)) {
-                for (Path entry : stream) {
-                    // 获取文件名
-                    String filename = entry.getFileName().toString();
-                    
-                    // 判断是否为目录
-                    boolean isDirectory = Files.isDirectory(entry);
-                    
-                    // 获取文件大小
-                    long size = isDirectory ? 0 : Files.size(entry);
-                    
-                    // 获取修改时间
-                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
-                    FileTime lastModified = attrs.lastModifiedTime();
-                    
-                    // 格式化时间为 "Jan 14 16:00" 格式
-                    java.time.LocalDateTime dateTime = java.time.LocalDateTime.ofInstant(
-                        lastModified.toInstant(), 
-                        java.time.ZoneId.systemDefault()
-                    );
-                    String timeStr = String.format("%s %2d %02d:%02d",
-                        new String[]{"Jan", "Feb", "Mar", "Apr", "May", "Jun", 
-                                    "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"}[dateTime.getMonthValue() - 1],
-                        dateTime.getDayOfMonth(),
-                        dateTime.getHour(),
-                        dateTime.getMinute()
-                    );
-                    
-                    // 构建 Unix ls -l 格式的行
-                    // 格式: drwxr-xr-x 1 owner group size month day time filename
-                    String permissions = isDirectory ? "drwxr-xr-x" : "-rw-r--r--";
-                    String line = String.format("%s %3d %-8s %-8s %8d %s %s\r\n",
-                        permissions,
-                        1,                    // 链接数
-                        "owner",              // 所有者
-                        "group",              // 组
-                        size,                 // 文件大小
-                        timeStr,              // 修改时间
-                        filename              // 文件名
-                    );
-                    
-                    listBuilder.append(line);
-                }
-            }
+            establishDataConnection(dataConn, TransferTuner.Kind.DOWNLOAD, -1);
             
-            // 发送列表数据
-            String listText = listBuilder.toString();
-            dataConn.sendText(listText);
-            
-            System.out.println("[ClientSession] 已发送目录列表，共 " + listText.length() + " 字节");
+            OutputStream archiveOut = dataConn.getOutputStream();
+            streamer.streamTo(archiveOut);
+            archiveOut.flush();
+            dataConn.endOfData();
             
+            System.out.println("[ClientSession] 目录 " + arg + " 打包传输完成: " + streamer.getFileCount()
+                + " 个文件，" + streamer.getContentBytes() + " 字节");
         } catch (IOException e) {
-            // 数据连接失败
-            reply(426, "数据连接失败: " + e.getMessage());
+            reply(426, "数据连接失败: " + failureReason(e));
             return;
         } finally {
-            // 无论成功与否，都要关闭数据连接
-            dataConn.close();
-            
-            // 清理数据连接状态
-            if (passiveMode && passiveServerSocket != null) {
-                try {
-                    passiveServerSocket.close();
-                } catch (IOException ignored) {}
-                passiveServerSocket = null;
-                passiveMode = false;
-            }
-            dataAddress = null;
+            releaseDataConnection(dataConn);
         }
         
         // 6. 发送传输完成响应
-        reply(226, "传输完成");
+        reply(226, "传输完成，共 " + streamer.getFileCount() + " 个文件");
     }
-
+    
     /**
-     * 处理 RETR 命令 - 下载文件
+     * 处理 SITE STORTAR 命令 - 上传 TAR 流并解包到目录
      * 
-     * 命令格式：RETR <filename>
+     * 每个条目路径都经过 PathValidator 校验，越界条目被拒绝并在结果中计数
+     * 
+     * @param arg 目标目录（必须已存在）
      */
-    private void handleRetr(String filename) throws IOException {
+    private void handleSiteStorTar(String arg) throws IOException {
         // 1. 检查是否已设置数据端口或被动模式
-        if (!passiveMode && dataAddress == null) {
+        if (!isDataPortReady()) {
             reply(425, "请先使用 PORT 或 PASV 命令");
             return;
         }
         
-        // 2. 参数校验
-        if (filename == null || filename.trim().isEmpty()) {
-            reply(501, "RETR 命令需要参数");
+        if (arg.isEmpty()) {
+            reply(501, "需要指定目录");
             return;
         }
         
-        filename = filename.trim();
-        
-        // 3. 解析文件路径（相对于当前工作目录）
-        Path filePath;
+        // 2. 解析目标目录
+        Path dirPath;
         try {
-            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
+            dirPath = pathValidator.resolvePath(currentWorkingDir, arg);
         } catch (SecurityException e) {
             reply(550, "访问被拒绝: " + e.getMessage());
             return;
         } catch (IOException e) {
-            reply(550, "无效的文件路径: " + e.getMessage());
+            reply(550, "无效的目录路径: " + e.getMessage());
             return;
         }
         
-        // 4. 检查文件是否存在
-        if (!Files.exists(filePath)) {
-            reply(550, "文件不存在: " + filename);
+        if (!pathValidator.isValidDirectory(dirPath)) {
+            reply(550, "目录不存在: " + arg);
             return;
         }
         
-        // 5. 检查是否为普通文件（不是目录）
-        if (!Files.isRegularFile(filePath)) {
-            reply(550, filename + " 不是普通文件");
+        if (!Files.isWritable(dirPath)) {
+            reply(550, "目标目录不可写");
             return;
         }
         
-        // 6. 检查文件是否可读
-        if (!Files.isReadable(filePath)) {
-            reply(550, "文件不可读: " + filename);
+        QuotaLedger quota = QuotaLedger.instance();
+        if (quota != null && !quota.canStore(currentUser, allocSize)) {
+            reply(552, "超出磁盘配额（已用 " + quota.getUsedBytes(currentUser) + " 字节）");
             return;
         }
         
-        // 7. 获取文件大小（用于日志）
-        long fileSize = Files.size(filePath);
-        
-        // 8. 发送"即将打开数据连接"的响应
-        reply(150, "正在打开二进制模式数据连接以传输 " + filename + " (" + fileSize + " 字节)");
+        // 3. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开二进制模式数据连接以接收 TAR 归档");
         
-        // 9. 建立数据连接并传输文件
-        DataConnection dataConn = new DataConnection();
+        // 4. 建立数据连接，边接收边解包
+        ArchiveExtractor extractor = new ArchiveExtractor(pathValidator,
+            pathValidator.toVirtualPath(dirPath), dirPath);
+        extractor.setOwner(currentUser);
+        DataConnection dataConn = openDataConnection();
         try {
-            // 根据模式连接数据端口
-            if (passiveMode) {
-                dataConn.acceptFrom(passiveServerSocket);
-            } else {
-                dataConn.connect(dataAddress);
-            }
+            establishDataConnection(dataConn, TransferTuner.Kind.UPLOAD, allocSize);
+            allocSize = -1;
             
-            // 打开文件输入流
-            try (InputStream fileInput = Files.newInputStream(filePath)) {
-                // 流式传输文件内容
-                long bytesTransferred = dataConn.sendFromStream(fileInput);
-                
-                System.out.println("[ClientSession] 文件 " + filename + " 传输完成: " + 
-                                 bytesTransferred + " 字节");
-            }
+            extractor.extractFrom(dataConn.getInputStream());
+            dataConn.endOfData();
             
+            System.out.println("[ClientSession] TAR 解包完成: " + extractor.getFileCount() + " 个文件，"
+                + extractor.getContentBytes() + " 字节，拒绝 " + extractor.getRejectedCount() + " 个条目");
         } catch (IOException e) {
-            // 数据连接失败
-            reply(426, "数据连接失败: " + e.getMessage());
+            System.err.println("[ClientSession] TAR 解包失败: " + e.getMessage());
+            int code = e instanceof QuotaLedger.QuotaExceededException ? 552 : 451;
+            reply(code, "解包失败: " + failureReason(e) + "（已写入 " + extractor.getFileCount() + " 个文件）");
             return;
         } finally {
-            // 无论成功与否，都要关闭数据连接
-            dataConn.close();
+            releaseDataConnection(dataConn);
+            // 解包出的文件和目录一并加入文件名索引
+            FileIndex.added(dirPath);
+        }
+        
+        // 5. 发送传输完成响应
+        if (extractor.getRejectedCount() > 0) {
+            reply(226, "传输完成，写入 " + extractor.getFileCount() + " 个文件，拒绝 "
+                + extractor.getRejectedCount() + " 个越界条目");
+        } else {
+            reply(226, "传输完成，写入 " + extractor.getFileCount() + " 个文件");
+        }
+    }
+    
+    /**
+     * 处理 PORT 命令 - 设置客户端数据端口
+     * 
+     * 命令格式：PORT h1,h2,h3,h4,p1,p2
+     * 
+     * @param arg 格式为 "h1,h2,h3,h4,p1,p2" 的字符串
+     */
+    private void handlePort(String arg) throws IOException {
+        // 1. 参数校验
+        if (arg == null || arg.trim().isEmpty()) {
+            reply(501, "PORT 命令需要参数");
+            return;
+        }
+        
+        arg = arg.trim();
+        
+        try {
+            // 2. 解析参数
+            String[] parts = arg.split(",");
             
-            // 清理数据连接状态
-            if (passiveMode && passiveServerSocket != null) {
-                try {
-                    passiveServerSocket.close();
-                } catch (IOException ignored) {}
-                passiveServerSocket = null;
-                passiveMode = false;
+            if (parts.length != 6) {
+                reply(501, "PORT 命令格式: h1,h2,h3,h4,p1,p2");
+                return;
+            }
+            
+            // 3. 组装 IP 地址
+            String ip = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+            
+            // 4. 计算端口：port = p1 * 256 + p2
+            int p1 = Integer.parseInt(parts[4]);
+            int p2 = Integer.parseInt(parts[5]);
+            int port = p1 * 256 + p2;
+            
+            // 5. 端口范围校验
+            if (port < 1024 || port > 65535) {
+                reply(501, "无效的端口号: " + port);
+                return;
             }
-            dataAddress = null;
+            
+            // 6. 保存数据端口地址（块模式留下的连接不再使用）
+            closeBlockConnection();
+            dataAddress = new InetSocketAddress(ip, port);
+            
+            System.out.println("[ClientSession] 客户端数据端口设置为: " + dataAddress);
+            reply(200, "PORT 命令执行成功");
+            
+        } catch (NumberFormatException e) {
+            reply(501, "PORT 命令参数无效: " + e.getMessage());
+        } catch (Exception e) {
+            reply(501, "PORT 命令执行失败: " + e.getMessage());
         }
-        
-        // 10. 发送传输完成响应
-        reply(226, "传输完成");
     }
-
+    
     /**
-     * 处理 STOR 命令 - 上传文件
+     * 处理 PASV 命令 - 进入被动模式
      * 
-     * 命令格式：STOR <filename>
+     * 被动模式：服务器监听一个端口，等待客户端连接
+     * 响应格式：227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)
      */
-    private void handleStor(String filename) throws IOException {
+    private void handlePasv() throws IOException {
+        // 客户端要求新的数据连接，块模式留下的连接不再使用
+        closeBlockConnection();
+        try {
+            // 1. 关闭之前的被动模式ServerSocket（如果有）
+            if (passiveServerSocket != null && !passiveServerSocket.isClosed()) {
+                passiveServerSocket.close();
+            }
+            
+            // 2. 创建新的ServerSocket，端口由系统自动分配（端口0）
+            // 通过 ServerSocketChannel 创建，接受的数据 Socket 才带有 SocketChannel
+            passiveServerSocket = java.nio.channels.ServerSocketChannel.open().socket();
+            passiveServerSocket.bind(new InetSocketAddress(0));
+            passiveServerSocket.setSoTimeout(300000);  // 300秒（5分钟）超时，支持大文件传输
+            
+            // 3. 获取服务器IP地址（从控制连接获取）
+            String serverIp = controlSocket.getLocalAddress().getHostAddress();
+            int port = passiveServerSocket.getLocalPort();
+            
+            // 4. 计算 p1 和 p2：port = p1 * 256 + p2
+            int p1 = port / 256;
+            int p2 = port % 256;
+            
+            // 5. 格式化IP地址（用逗号替换点号）
+            String[] ipParts = serverIp.split("\\.");
+            String response = String.format("(%s,%s,%s,%s,%d,%d).",
+                ipParts[0], ipParts[1], ipParts[2], ipParts[3], p1, p2);
+            
+            // 6. 设置为被动模式
+            passiveMode = true;
+            dataAddress = null;  // 清空PORT模式的地址
+            
+            System.out.println("[ClientSession] 进入被动模式，监听端口: " + port);
+            reply(227, "Entering Passive Mode " + response);
+            
+        } catch (IOException e) {
+            passiveMode = false;
+            reply(425, "无法打开被动模式: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 处理 LIST 命令 - 列出目录内容
+     * 
+     * 命令格式：LIST [-R] [路径]
+     *   -R 递归列出整棵目录树（ls -lR 格式），镜像工具一次请求即可拿到全部目录
+     * 
+     * 工作流程：
+     * 1. 检查是否已设置数据端口（PORT 命令或 PASV 命令）
+     * 2. 发送 150 响应（即将打开数据连接）
+     * 3. 建立数据连接
+     * 4. 读取目录的文件列表
+     * 5. 通过数据连接发送列表
+     * 6. 关闭数据连接
+     * 7. 发送 226 响应（传输完成）
+     */
+    private void handleList(String arg) throws IOException {
+        System.out.println("[ClientSession] handleList 被调用，passiveMode=" + passiveMode + ", dataAddress=" + dataAddress);
+        
         // 1. 检查是否已设置数据端口或被动模式
-        if (!passiveMode && dataAddress == null) {
+        if (!isDataPortReady()) {
             reply(425, "请先使用 PORT 或 PASV 命令");
             return;
         }
         
-        // 2. 参数校验
-        if (filename == null || filename.trim().isEmpty()) {
-            reply(501, "STOR 命令需要参数");
+        // 2. 解析选项和路径：以 - 开头的是选项（只识别 R），其余是路径
+        boolean recursive = false;
+        String pathArg = arg == null ? "" : arg.trim();
+        while (pathArg.startsWith("-")) {
+            String[] optParts = pathArg.split("\\s+", 2);
+            if (optParts[0].indexOf('R') >= 0) {
+                recursive = true;
+            }
+            pathArg = optParts.length > 1 ? optParts[1].trim() : "";
+        }
+        
+        // 3. 解析目录对应的实际路径
+        Path currentDir;
+        try {
+            currentDir = pathValidator.resolvePath(currentWorkingDir, pathArg.isEmpty() ? "." : pathArg);
+            System.out.println("[ClientSession] 当前目录解析为: " + currentDir);
+        } catch (Exception e) {
+            System.err.println("[ClientSession] 目录解析失败: " + e.getMessage());
+            reply(550, "无法访问目录: " + e.getMessage());
             return;
         }
         
-        filename = filename.trim();
+        // 4. 检查目录是否存在
+        if (!storage.isDirectory(currentDir)) {
+            reply(550, "目录不存在");
+            return;
+        }
         
-        // 3. 解析文件路径（相对于当前工作目录）
-        Path filePath;
-        try {
-            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
-        } catch (SecurityException e) {
-            reply(550, "访问被拒绝: " + e.getMessage());
+        // 递归列表直接遍历本地磁盘
+        if (recursive && !storage.isLocal()) {
+            reply(504, "当前存储后端不支持递归列表");
             return;
+        }
+        
+        // 5. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开 ASCII 模式数据连接以获取文件列表");
+        
+        // 6. 建立数据连接并传输目录列表
+        boolean complete = true;
+        TransferLog.Record xfer = beginTransfer("LIST", currentDir);
+        DataConnection dataConn = openDataConnection();
+        try {
+            // 根据模式连接数据端口
+            establishDataConnection(dataConn, TransferTuner.Kind.LISTING, -1);
+            xfer.connected();
+            
+            if (recursive) {
+                // 递归列表：并行遍历，按固定顺序边遍历边发送
+                complete = DirectoryLister.listRecursive(pathValidator.getRootDirectory(), currentDir,
+                    DirectoryLister.Format.LONG, dataConn::sendText);
+                System.out.println("[ClientSession] 已发送递归目录列表" + (complete ? "" : "（已截断）"));
+            } else {
+                // 构建目录列表文本（Unix ls -l 格式）
+                StringBuilder listBuilder = new StringBuilder();
+                
+                try (DirectoryStream<Path> stream = storage.list(currentDir, null)) {
+                    for (Path entry : stream) {
+                        if (PathValidator.isMetaPath(pathValidator.getRootDirectory(), entry)) {
+                            continue;
+                        }
+                        // 一次读取全部属性（是否目录、大小、修改时间）
+                        BasicFileAttributes attrs = storage.stat(entry);
+                        DirectoryLister.appendEntry(listBuilder, entry.getFileName().toString(), attrs);
+                    }
+                }
+                
+                // 发送列表数据（直接编码 StringBuilder，不再复制成 String）
+                dataConn.sendText(listBuilder);
+                
+                System.out.println("[ClientSession] 已发送目录列表，共 " + listBuilder.length() + " 字节");
+            }
+            dataConn.endOfData();
+            
+        } catch (IOException e) {
+            // 数据连接失败
+            reply(426, "数据连接失败: " + failureReason(e));
+            xfer.finish(dataConn, 426);
+            return;
+        } finally {
+            // 无论成功与否，都要关闭数据连接并清理状态
+            releaseDataConnection(dataConn);
+        }
+        
+        // 7. 发送传输完成响应
+        if (complete) {
+            reply(226, "传输完成");
+        } else {
+            reply(226, "传输完成（超过深度或条目数限制，列表已截断）");
+        }
+        xfer.finish(dataConn, 226);
+    }
+
+    /**
+     * 处理 NLST 命令 - 只列出文件名
+     * 
+     * 命令格式：NLST [-R] [路径或通配符]
+     *   例如 NLST、NLST sub、NLST *.csv、NLST sub/*.csv、NLST -R
+     * 
+     * 与 LIST 不同，NLST 不读取任何文件属性，只遍历目录项的名字，
+     * 在网络文件系统的大目录上比 LIST 快得多。
+     * 通配符在服务端用编译好的 PathMatcher 过滤（只匹配最后一级名字）。
+     */
+    private void handleNlst(String arg) throws IOException {
+        // 1. 检查是否已设置数据端口或被动模式
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
+            return;
+        }
+        
+        // 2. 解析选项
+        boolean recursive = false;
+        String pathArg = arg == null ? "" : arg.trim();
+        while (pathArg.startsWith("-")) {
+            String[] optParts = pathArg.split("\\s+", 2);
+            if (optParts[0].indexOf('R') >= 0) {
+                recursive = true;
+            }
+            pathArg = optParts.length > 1 ? optParts[1].trim() : "";
+        }
+        
+        // 3. 拆分目录部分和通配符部分（通配符只允许出现在最后一级）
+        String dirPart = pathArg;
+        String globPart = null;
+        int slash = pathArg.lastIndexOf('/');
+        String lastSegment = slash >= 0 ? pathArg.substring(slash + 1) : pathArg;
+        if (lastSegment.matches(".*[*?\\[{].*")) {
+            globPart = lastSegment;
+            dirPart = slash >= 0 ? pathArg.substring(0, slash + 1) : "";
+        }
+        if (recursive && globPart != null) {
+            reply(501, "NLST -R 不支持通配符");
+            return;
+        }
+        
+        PathMatcher matcher = null;
+        if (globPart != null) {
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + globPart);
+            } catch (IllegalArgumentException e) {
+                reply(501, "通配符格式错误: " + globPart);
+                return;
+            }
+        }
+        
+        // 4. 解析目录
+        Path dir;
+        try {
+            dir = pathValidator.resolvePath(currentWorkingDir, dirPart.isEmpty() ? "." : dirPart);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(550, "无效的路径: " + e.getMessage());
+            return;
+        }
+        
+        if (!storage.isDirectory(dir)) {
+            reply(550, "目录不存在");
+            return;
+        }
+        
+        if (recursive && !storage.isLocal()) {
+            reply(504, "当前存储后端不支持递归列表");
+            return;
+        }
+        
+        // 5. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开 ASCII 模式数据连接以获取文件名列表");
+        
+        // 6. 建立数据连接，边遍历边发送
+        boolean complete = true;
+        int count = 0;
+        TransferLog.Record xfer = beginTransfer("NLST", dir);
+        DataConnection dataConn = openDataConnection();
+        try {
+            establishDataConnection(dataConn, TransferTuner.Kind.LISTING, -1);
+            xfer.connected();
+            
+            if (recursive) {
+                complete = DirectoryLister.listRecursive(pathValidator.getRootDirectory(), dir,
+                    DirectoryLister.Format.NAMES, dataConn::sendText);
+            } else {
+                PathMatcher filter = matcher;
+                // 通配符带目录时（如 sub/*.csv）返回 sub/a.csv，客户端可以直接用于 RETR
+                String prefix = globPart != null ? dirPart : "";
+                StringBuilder chunk = new StringBuilder();
+                try (DirectoryStream<Path> stream = storage.list(dir,
+                        entry -> (filter == null || filter.matches(entry.getFileName()))
+                            && !PathValidator.isMetaPath(pathValidator.getRootDirectory(), entry))) {
+                    for (Path entry : stream) {
+                        chunk.append(prefix).append(entry.getFileName().toString()).append("\r\n");
+                        count++;
+                        // 大目录分块发送，不把整个列表攒在内存里
+                        if (chunk.length() >= NLST_CHUNK_CHARS) {
+                            dataConn.sendText(chunk);
+                            chunk.setLength(0);
+                        }
+                    }
+                }
+                if (chunk.length() > 0) {
+                    dataConn.sendText(chunk);
+                }
+                System.out.println("[ClientSession] NLST 已发送 " + count + " 个文件名");
+            }
+            dataConn.endOfData();
+        } catch (IOException e) {
+            reply(426, "数据连接失败: " + failureReason(e));
+            xfer.finish(dataConn, 426);
+            return;
+        } finally {
+            releaseDataConnection(dataConn);
+        }
+        
+        // 7. 发送传输完成响应
+        if (complete) {
+            reply(226, "传输完成");
+        } else {
+            reply(226, "传输完成（超过深度或条目数限制，列表已截断）");
+        }
+        xfer.finish(dataConn, 226);
+    }
+
+    /**
+     * 处理 RETR 命令 - 下载文件
+     * 
+     * 命令格式：RETR <filename>
+     */
+    private void handleRetr(String filename) throws IOException {
+        // 1. 检查是否已设置数据端口或被动模式
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
+            return;
+        }
+        
+        // 2. 参数校验
+        if (filename == null || filename.trim().isEmpty()) {
+            reply(501, "RETR 命令需要参数");
+            return;
+        }
+        
+        filename = filename.trim();
+        
+        // 3. 解析文件路径（相对于当前工作目录）
+        Path filePath;
+        try {
+            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(550, "无效的文件路径: " + e.getMessage());
+            return;
+        }
+        
+        // 4. 检查文件是否存在（一次读取全部属性）
+        BasicFileAttributes attrs;
+        try {
+            attrs = storage.stat(filePath);
+        } catch (IOException e) {
+            reply(550, "文件不存在: " + filename);
+            return;
+        }
+        
+        // 5. 检查是否为普通文件（不是目录）
+        if (!attrs.isRegularFile()) {
+            reply(550, filename + " 不是普通文件");
+            return;
+        }
+        
+        // 6. 检查文件是否可读
+        if (storage.isLocal() && !Files.isReadable(filePath)) {
+            reply(550, "文件不可读: " + filename);
+            return;
+        }
+        
+        // 7. 获取文件大小（用于日志）
+        long fileSize = attrs.size();
+        
+        // 8. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开" + (asciiType ? " ASCII " : "二进制") + "模式数据连接以传输 " + filename + " (" + fileSize + " 字节)");
+        
+        // 9. 建立数据连接并传输文件
+        TransferLog.Record xfer = beginTransfer("RETR", filePath);
+        DataConnection dataConn = openDataConnection();
+        if (asciiType) {
+            dataConn.enableAscii();
+        }
+        try {
+            // 根据模式连接数据端口
+            establishDataConnection(dataConn, TransferTuner.Kind.DOWNLOAD, fileSize);
+            xfer.connected();
+            
+            // 打开文件 Channel
+            try (SeekableByteChannel fileInput = storage.openRead(filePath)) {
+                // 流式传输文件内容
+                long bytesTransferred = dataConn.sendFromChannel(fileInput);
+                
+                System.out.println("[ClientSession] 文件 " + filename + " 传输完成: " + 
+                                 bytesTransferred + " 字节");
+            }
+            dataConn.endOfData();
+            
+        } catch (IOException e) {
+            // 数据连接失败
+            reply(426, "数据连接失败: " + failureReason(e));
+            xfer.finish(dataConn, 426);
+            return;
+        } finally {
+            // 无论成功与否，都要关闭数据连接并清理状态
+            releaseDataConnection(dataConn);
+        }
+        
+        // 10. 发送传输完成响应
+        reply(226, "传输完成");
+        xfer.finish(dataConn, 226);
+    }
+
+    /**
+     * 处理 STOR 命令 - 上传文件
+     * 
+     * 命令格式：STOR <filename>
+     */
+    private void handleStor(String filename) throws IOException {
+        // 1. 检查是否已设置数据端口或被动模式
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
+            return;
+        }
+        
+        // 2. 参数校验
+        if (filename == null || filename.trim().isEmpty()) {
+            reply(501, "STOR 命令需要参数");
+            return;
+        }
+        
+        filename = filename.trim();
+        
+        // 3. 解析文件路径（相对于当前工作目录）
+        Path filePath;
+        try {
+            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(550, "无效的文件路径: " + e.getMessage());
+            return;
+        }
+        
+        // 4. 检查父目录是否存在且可写
+        Path parentDir = filePath.getParent();
+        if (parentDir == null) {
+            reply(550, "无法确定父目录");
+            return;
+        }
+        
+        if (!storage.exists(parentDir)) {
+            reply(550, "目标目录不存在");
+            return;
+        }
+        
+        if (!storage.isDirectory(parentDir)) {
+            reply(550, "父路径不是目录");
+            return;
+        }
+        
+        if (!storage.isWritable(parentDir)) {
+            reply(550, "目标目录不可写");
+            return;
+        }
+        
+        // 5. 检查文件是否已存在（覆盖策略：直接覆盖）
+        boolean fileExists = storage.exists(filePath);
+        if (fileExists) {
+            System.out.println("[ClientSession] 警告: 文件 " + filename + " 已存在，将被覆盖");
+        }
+        
+        // 6. 取出 ALLO 声明的大小（只对紧随其后的一次 STOR 有效）
+        long expectedSize = allocSize;
+        allocSize = -1;
+        
+        // 7. 配额检查：只读内存中的账本，不遍历目录
+        QuotaLedger quota = QuotaLedger.instance();
+        if (quota != null && !quota.canStore(currentUser, expectedSize)) {
+            reply(552, "超出磁盘配额（已用 " + quota.getUsedBytes(currentUser) + " 字节）");
+            return;
+        }
+        
+        // 8. 发送"即将打开数据连接"的响应
+        reply(150, "正在打开" + (asciiType ? " ASCII " : "二进制") + "模式数据连接以接收 " + filename);
+        
+        // 9. 建立数据连接并接收文件（开启配额时边接收边记账，超出时中止）
+        boolean storeIncomplete = true;
+        QuotaLedger.Upload quotaUpload = quota == null ? null : quota.begin(currentUser, filePath);
+        TransferLog.Record xfer = beginTransfer("STOR", filePath);
+        DataConnection dataConn = openDataConnection();
+        if (asciiType) {
+            dataConn.enableAscii();
+        }
+        try {
+            // 根据模式连接数据端口
+            establishDataConnection(dataConn, TransferTuner.Kind.UPLOAD, expectedSize);
+            xfer.connected();
+            
+            DedupStore dedup = DedupStore.instance();
+            if (dedup != null) {
+                // 去重模式：内容先写入存储区并计算哈希，完成后再替换目标文件
+                DedupStore.Upload upload = dedup.begin();
+                try {
+                    long bytesReceived = dataConn.receiveToChannel(
+                        quotaUpload == null ? upload : quotaUpload.wrap(upload));
+                    boolean hit = dedup.commit(upload, filePath);
+                    System.out.println("[ClientSession] 文件 " + filename + " 接收完成: " + 
+                                     bytesReceived + " 字节" + (hit ? "（内容已存在，去重）" : ""));
+                } catch (IOException e) {
+                    upload.abort();
+                    storeIncomplete = false;  // 目标文件尚未被改动，不能删除
+                    throw e;
+                }
+            } else {
+                // 打开文件输出流
+                System.out.println("[ClientSession] 准备写入文件: " + filePath);
+                
+                // 不存在则创建，存在则清空（覆盖）
+                try (SeekableByteChannel fileOutput = storage.openWrite(filePath)) {
+                    
+                    System.out.println("[ClientSession] 文件输出流已创建，开始接收数据...");
+                    
+                    // 流式接收文件内容
+                    long bytesReceived = dataConn.receiveToChannel(
+                        quotaUpload == null ? fileOutput : quotaUpload.wrap(fileOutput));
+                    
+                    System.out.println("[ClientSession] 文件 " + filename + " 接收完成: " + 
+                                     bytesReceived + " 字节");
+                }
+            }
+            dataConn.endOfData();
+            if (quotaUpload != null) {
+                quotaUpload.commit(filePath);
+            }
+            
+        } catch (IOException e) {
+            // 数据连接失败或写入失败
+            System.err.println("[ClientSession] 文件上传失败: " + e.getClass().getName() + " - " + e.getMessage());
+            e.printStackTrace();  // 打印完整的堆栈跟踪以便调试
+            int code = e instanceof QuotaLedger.QuotaExceededException ? 552 : 426;
+            reply(code, "数据连接失败或写入失败: " + failureReason(e));
+            xfer.finish(dataConn, code);
+            
+            // 删除不完整的文件（可选）；去重模式下它可能已是 blob 的硬链接，删除前先记下 fileKey
+            try {
+                if (storeIncomplete && storage.exists(filePath)) {
+                    Object dedupKey = dedupKeyOf(filePath);
+                    storage.delete(filePath);
+                    releaseDedupKey(dedupKey);
+                    System.out.println("[ClientSession] 已删除不完整的文件: " + filename);
+                }
+            } catch (IOException deleteEx) {
+                System.err.println("[ClientSession] 无法删除不完整的文件: " + deleteEx.getMessage());
+            }
+            if (quotaUpload != null) {
+                quotaUpload.rollback(storeIncomplete);
+            }
+            
+            return;
+        } finally {
+            // 无论成功与否，都要关闭数据连接并清理状态
+            releaseDataConnection(dataConn);
+            // 文件内容已改变（或已删除），属性缓存失效，文件名索引同步
+            FileAttributeCache.invalidate(filePath);
+            if (storage.exists(filePath)) {
+                FileIndex.added(filePath);
+            } else {
+                FileIndex.removed(filePath);
+            }
+        }
+        
+        // 9. 发送传输完成响应
+        reply(226, "传输完成");
+        xfer.finish(dataConn, 226);
+    }
+
+    /**
+     * 处理 SIZE 命令 - 查询文件大小
+     * 
+     * 命令格式：SIZE <filename>
+     * 服务器响应：213 <字节数>
+     */
+    private void handleSize(String filename) throws IOException {
+        BasicFileAttributes attrs = lookupFileAttributes("SIZE", filename);
+        if (attrs != null) {
+            reply(213, String.valueOf(attrs.size()));
+        }
+    }
+    
+    /**
+     * 处理 MDTM 命令 - 查询文件修改时间
+     * 
+     * 命令格式：MDTM <filename>
+     * 服务器响应：213 YYYYMMDDHHMMSS（UTC 时间，RFC 3659）
+     */
+    private void handleMdtm(String filename) throws IOException {
+        BasicFileAttributes attrs = lookupFileAttributes("MDTM", filename);
+        if (attrs != null) {
+            reply(213, MDTM_FORMAT.format(attrs.lastModifiedTime().toInstant()));
+        }
+    }
+    
+    /**
+     * SIZE / MDTM 共用：解析路径并从属性缓存读取普通文件的属性
+     * 出错时已经发送了错误响应，返回 null
+     */
+    private BasicFileAttributes lookupFileAttributes(String cmd, String filename) throws IOException {
+        // 1. 参数校验
+        if (filename == null || filename.trim().isEmpty()) {
+            reply(501, cmd + " 命令需要参数");
+            return null;
+        }
+        
+        filename = filename.trim();
+        
+        // 2. 解析文件路径（相对于当前工作目录）
+        Path filePath;
+        try {
+            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            reply(550, "无效的文件路径: " + e.getMessage());
+            return null;
+        }
+        
+        // 3. 读取属性（文件不存在时抛出异常）
+        BasicFileAttributes attrs;
+        try {
+            // 属性缓存按本地文件的修改时间校验，其他后端直接读取
+            attrs = storage.isLocal() ? FileAttributeCache.get(filePath) : storage.stat(filePath);
+        } catch (IOException e) {
+            reply(550, "文件不存在: " + filename);
+            return null;
+        }
+        
+        // 4. 只对普通文件有效
+        if (!attrs.isRegularFile()) {
+            reply(550, filename + " 不是普通文件");
+            return null;
+        }
+        return attrs;
+    }
+
+    /**
+     * 处理 DELE 命令 - 删除文件
+     * 
+     * 命令格式：DELE <filename>
+     */
+    private void handleDele(String filename) throws IOException {
+        // 1. 参数校验
+        if (filename == null || filename.trim().isEmpty()) {
+            reply(501, "DELE 命令需要参数");
+            return;
+        }
+        
+        filename = filename.trim();
+        
+        // 2. 解析文件路径（相对于当前工作目录）
+        Path filePath;
+        try {
+            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(553, "无效的文件路径: " + e.getMessage());
+            return;
+        }
+        
+        // 3. 检查文件是否存在
+        BasicFileAttributes attrs;
+        try {
+            attrs = storage.stat(filePath);
+        } catch (IOException e) {
+            reply(550, "文件不存在: " + filename);
+            return;
+        }
+        
+        // 4. 检查是否为普通文件（不允许删除目录）
+        if (!attrs.isRegularFile()) {
+            reply(550, filename + " 不是普通文件（不能删除目录）");
+            return;
+        }
+        
+        // 5. 尝试删除文件
+        try {
+            Object fileKey = attrs.fileKey();
+            QuotaLedger quota = QuotaLedger.instance();
+            QuotaLedger.Holding holding = quota == null ? null : quota.holdingOf(filePath);
+            storage.delete(filePath);
+            FileAttributeCache.invalidate(filePath);
+            FileIndex.removed(filePath);
+            if (quota != null) {
+                quota.release(holding);
+            }
+            
+            // 去重模式下，删掉最后一个引用时回收 blob
+            DedupStore dedup = DedupStore.instance();
+            if (dedup != null) {
+                dedup.released(fileKey);
+            }
+            System.out.println("[ClientSession] 文件已删除: " + filename);
+            reply(250, "文件 " + filename + " 已删除");
+        } catch (IOException e) {
+            // 删除失败（可能是文件被占用、权限不足）
+            System.err.println("[ClientSession] 删除文件失败: " + e.getMessage());
+            reply(450, "无法删除文件: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 处理 RNFR 命令 - 指定要重命名的文件或目录
+     * 
+     * 命令格式：RNFR <路径>
+     * 服务器响应：350（等待 RNTO）或 550
+     */
+    private void handleRnfr(String name) throws IOException {
+        // 1. 参数校验
+        if (name == null || name.trim().isEmpty()) {
+            reply(501, "RNFR 命令需要参数");
+            return;
+        }
+        
+        name = name.trim();
+        
+        // 2. 解析路径（相对于当前工作目录）
+        Path sourcePath;
+        try {
+            sourcePath = pathValidator.resolvePath(currentWorkingDir, name);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(553, "无效的路径: " + e.getMessage());
+            return;
+        }
+        
+        // 3. 不允许重命名根目录
+        if (sourcePath.equals(pathValidator.getRootDirectory())) {
+            reply(550, "不能重命名根目录");
+            return;
+        }
+        
+        if (!storage.exists(sourcePath)) {
+            reply(550, "文件不存在: " + name);
+            return;
+        }
+        
+        renameFrom = sourcePath;
+        reply(350, "已就绪，请发送 RNTO 指定新名称");
+    }
+    
+    /**
+     * 处理 RNTO 命令 - 完成重命名（移动）
+     * 
+     * 命令格式：RNTO <新路径>
+     * 在同一文件系统内是一次 rename 系统调用，不复制数据
+     * 
+     * @param name 新路径
+     * @param sourcePath 上一条 RNFR 指定的路径（没有时为 null）
+     */
+    private void handleRnto(String name, Path sourcePath) throws IOException {
+        if (sourcePath == null) {
+            reply(503, "请先使用 RNFR 命令");
+            return;
+        }
+        
+        if (name == null || name.trim().isEmpty()) {
+            reply(501, "RNTO 命令需要参数");
+            return;
+        }
+        
+        name = name.trim();
+        
+        Path targetPath;
+        try {
+            targetPath = pathValidator.resolvePath(currentWorkingDir, name);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(553, "无效的路径: " + e.getMessage());
+            return;
+        }
+        
+        // 改成原来的名字：什么也不用做
+        if (targetPath.equals(sourcePath)) {
+            reply(250, "重命名成功");
+            return;
+        }
+        
+        // 目录不能移动到自己内部
+        if (targetPath.startsWith(sourcePath) && storage.isDirectory(sourcePath)) {
+            reply(553, "不能把目录移动到它自身之内");
+            return;
+        }
+        
+        // 目标是已存在的目录时不覆盖
+        if (storage.isDirectory(targetPath)) {
+            reply(553, "目标已存在且是目录: " + name);
+            return;
+        }
+        
+        // 覆盖已有文件时，被覆盖文件的用量要退还给它的归属用户
+        QuotaLedger quota = QuotaLedger.instance();
+        QuotaLedger.Holding replaced = null;
+        if (quota != null) {
+            // 用量重建期间：源所在目录要先计入，移动整个目录要等重建结束
+            quota.beforeMove(sourcePath);
+            replaced = quota.holdingOf(targetPath);
+        }
+        // 被覆盖的文件可能是去重 blob 的硬链接，替换后回收
+        Object replacedKey = dedupKeyOf(targetPath);
+        
+        try {
+            storage.move(sourcePath, targetPath);
+            FileAttributeCache.invalidate(sourcePath);
+            FileAttributeCache.invalidate(targetPath);
+            FileIndex.removed(sourcePath);
+            FileIndex.added(targetPath);
+            if (quota != null) {
+                quota.release(replaced);
+            }
+            releaseDedupKey(replacedKey);
+            System.out.println("[ClientSession] 已重命名: " + sourcePath + " -> " + targetPath);
+            reply(250, "重命名成功");
+        } catch (IOException e) {
+            System.err.println("[ClientSession] 重命名失败: " + e.getMessage());
+            reply(550, "重命名失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 处理 SITE COPY 命令 - 在服务端复制文件
+     * 
+     * 命令格式：SITE COPY <源文件> <目标>
+     *   目标是已存在的目录时复制到该目录下，文件名不变
+     *   两个名字以空白分隔；名字含空格时用双引号括起来，引号内的双引号写成两个（与 257 响应相同），
+     *   例如 SITE COPY "a b.txt" "备份/a b.txt"
+     * 
+     * 数据不经过客户端：先用 FileChannel.transferTo 复制到同目录下的临时文件
+     * （内核可直接在文件之间复制），完成后原子地重命名为目标文件，
+     * 其他客户端不会看到复制到一半的文件。
+     */
+    private void handleSiteCopy(String arg) throws IOException {
+        String[] names = splitQuotedArgs(arg);
+        if (names == null || names.length != 2) {
+            reply(501, "用法: SITE COPY <源文件> <目标>（名字含空格时用双引号括起来）");
+            return;
+        }
+        
+        // 1. 解析源和目标路径
+        Path sourcePath;
+        Path targetPath;
+        try {
+            sourcePath = pathValidator.resolvePath(currentWorkingDir, names[0]);
+            targetPath = pathValidator.resolvePath(currentWorkingDir, names[1]);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            reply(553, "无效的路径: " + e.getMessage());
+            return;
+        }
+        
+        // 2. 只支持复制普通文件
+        if (!Files.isRegularFile(sourcePath)) {
+            reply(550, names[0] + " 不存在或不是普通文件");
+            return;
+        }
+        
+        if (Files.isDirectory(targetPath)) {
+            targetPath = targetPath.resolve(sourcePath.getFileName());
+        }
+        
+        if (targetPath.equals(sourcePath)) {
+            reply(553, "源和目标是同一个文件");
+            return;
+        }
+        
+        Path parentDir = targetPath.getParent();
+        if (parentDir == null || !Files.isDirectory(parentDir)) {
+            reply(550, "目标目录不存在");
+            return;
+        }
+        
+        // 3. 复制出的文件归当前用户，先按源文件大小记账
+        QuotaLedger quota = QuotaLedger.instance();
+        QuotaLedger.Holding replaced = null;
+        long chargedBytes = 0;
+        if (quota != null) {
+            replaced = quota.holdingOf(targetPath);
+            chargedBytes = Files.size(sourcePath);
+            try {
+                quota.tryCharge(currentUser, chargedBytes, 1);
+            } catch (QuotaLedger.QuotaExceededException e) {
+                reply(552, e.getMessage());
+                return;
+            }
+        }
+        
+        // 4. 复制到临时文件，再原子重命名（被覆盖的文件可能是去重 blob 的硬链接，替换后回收）
+        Object replacedKey = dedupKeyOf(targetPath);
+        Path tempPath = parentDir.resolve("." + targetPath.getFileName() + ".copy-" + System.nanoTime());
+        long start = System.nanoTime();
+        try {
+            long copied;
+            try (FileChannel in = FileChannel.open(sourcePath, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE_NEW)) {
+                long size = in.size();
+                copied = 0;
+                while (copied < size) {
+                    long n = in.transferTo(copied, size - copied, out);
+                    if (n <= 0) {
+                        break;
+                    }
+                    copied += n;
+                }
+            }
+            if (quota != null) {
+                quota.setOwner(tempPath, currentUser);
+            }
+            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileAttributeCache.invalidate(targetPath);
+            FileIndex.added(targetPath);
+            if (quota != null) {
+                // 复制期间源文件可能变化，按实际复制的字节数结算
+                quota.charge(currentUser, copied - chargedBytes, 0);
+                quota.release(replaced);
+            }
+            releaseDedupKey(replacedKey);
+            
+            ServerMetrics.increment("copy.count");
+            ServerMetrics.add("copy.bytes", copied);
+            ServerMetrics.recordLatency("copy.duration", System.nanoTime() - start);
+            System.out.println("[ClientSession] 已复制 " + sourcePath + " -> " + targetPath + "，" + copied + " 字节");
+            reply(250, "复制完成，" + copied + " 字节");
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (IOException ignored) {
+            }
+            if (quota != null) {
+                quota.charge(currentUser, -chargedBytes, -1);
+            }
+            System.err.println("[ClientSession] 复制失败: " + e.getMessage());
+            reply(550, "复制失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 将被替换的文件的 fileKey，替换完成后交给 releaseDedupKey
+     * 
+     * @return 没有开启去重或文件不存在时为 null
+     */
+    private static Object dedupKeyOf(Path path) {
+        if (DedupStore.instance() == null) {
+            return null;
+        }
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * 去重模式下，被替换的文件是 blob 的最后一个引用时回收 blob
+     */
+    private static void releaseDedupKey(Object fileKey) {
+        DedupStore dedup = DedupStore.instance();
+        if (dedup != null && fileKey != null) {
+            dedup.released(fileKey);
+        }
+    }
+    
+    /**
+     * 按空白拆分参数，双引号括起来的部分可以包含空白，引号内的 "" 表示一个双引号
+     * 
+     * @return 拆分结果，引号没有闭合时返回 null
+     */
+    private static String[] splitQuotedArgs(String arg) {
+        java.util.List<String> args = new java.util.ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inToken = false;
+        boolean quoted = false;
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    current.append(c);
+                } else if (i + 1 < arg.length() && arg.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inToken = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                current.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inToken) {
+            args.add(current.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+    
+    /**
+     * 处理 SITE DELTASIG 命令 - 下载文件的块签名（差异上传的第一步）
+     * 
+     * 命令格式：SITE DELTASIG <文件> [块大小]
+     * 客户端用签名算出本地新版本与服务器旧版本的差异，再用 SITE DELTASTOR 上传差异
+     */
+    private void handleSiteDeltaSig(String arg) throws IOException {
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
+            return;
+        }
+        
+        String[] args = arg.split("\\s+");
+        if (arg.isEmpty() || args.length > 2) {
+            reply(501, "用法: SITE DELTASIG <文件> [块大小]");
+            return;
+        }
+        Path filePath = resolveDeltaFile(args[0]);
+        if (filePath == null) {
+            return;
+        }
+        int blockSize = args.length > 1 ? DeltaSync.blockSize(args[1]) : DeltaSync.DEFAULT_BLOCK_SIZE;
+        
+        reply(150, "正在打开二进制模式数据连接以传输 " + args[0] + " 的签名（块大小 " + blockSize + "）");
+        
+        DataConnection dataConn = openDataConnection();
+        try {
+            // 先建立数据连接再计算签名：被动模式下客户端等不到连接会先超时
+            establishDataConnection(dataConn, TransferTuner.Kind.DOWNLOAD, -1);
+            DeltaSync.Signature signature = DeltaSync.signature(filePath, blockSize, localProgress());
+            OutputStream sigOut = dataConn.getOutputStream();
+            signature.writeTo(sigOut);
+            dataConn.endOfData();
         } catch (IOException e) {
-            reply(550, "无效的文件路径: " + e.getMessage());
+            reply(426, "签名传输失败: " + failureReason(e));
             return;
+        } finally {
+            releaseDataConnection(dataConn);
         }
-        
-        // 4. 检查父目录是否存在且可写
-        Path parentDir = filePath.getParent();
-        if (parentDir == null) {
-            reply(550, "无法确定父目录");
+        reply(226, "传输完成");
+    }
+    
+    /**
+     * 处理 SITE DELTASTOR 命令 - 上传差异，在服务端重建新版本
+     * 
+     * 命令格式：SITE DELTASTOR <文件>
+     * 差异以服务器上的现有文件为基础（签名来自 SITE DELTASIG），
+     * 重建到同目录下的临时文件，校验整个文件的 SHA-256 后原子替换，
+     * 失败时原文件不受影响。
+     */
+    private void handleSiteDeltaStor(String arg) throws IOException {
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
             return;
         }
-        
-        if (!Files.exists(parentDir)) {
-            reply(550, "目标目录不存在");
+        if (arg.isEmpty()) {
+            reply(501, "用法: SITE DELTASTOR <文件>");
             return;
         }
-        
-        if (!Files.isDirectory(parentDir)) {
-            reply(550, "父路径不是目录");
+        Path filePath = resolveDeltaFile(arg);
+        if (filePath == null) {
             return;
         }
         
-        if (!Files.isWritable(parentDir)) {
-            reply(550, "目标目录不可写");
+        QuotaLedger quota = QuotaLedger.instance();
+        if (quota != null && !quota.canStore(currentUser, -1)) {
+            reply(552, "超出磁盘配额（已用 " + quota.getUsedBytes(currentUser) + " 字节）");
             return;
         }
         
-        // 5. 检查文件是否已存在（覆盖策略：直接覆盖）
-        boolean fileExists = Files.exists(filePath);
-        if (fileExists) {
-            System.out.println("[ClientSession] 警告: 文件 " + filename + " 已存在，将被覆盖");
+        reply(150, "正在打开二进制模式数据连接以接收 " + arg + " 的差异");
+        
+        // 1. 接收差异，重建到临时文件
+        Path tempPath = filePath.resolveSibling("." + filePath.getFileName() + ".delta-" + System.nanoTime());
+        TransferLog.Record xfer = beginTransfer("SITE DELTASTOR", filePath);
+        DataConnection dataConn = openDataConnection();
+        long newSize;
+        try {
+            establishDataConnection(dataConn, TransferTuner.Kind.UPLOAD, -1);
+            xfer.connected();
+            try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE_NEW)) {
+                newSize = DeltaSync.applyDelta(filePath, dataConn.getInputStream(), out, localProgress());
+            }
+            dataConn.endOfData();
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            System.err.println("[ClientSession] 差异上传失败: " + e.getMessage());
+            reply(426, "差异上传失败: " + failureReason(e));
+            xfer.finish(dataConn, 426);
+            return;
+        } finally {
+            releaseDataConnection(dataConn);
         }
         
-        // 6. 发送"即将打开数据连接"的响应
-        reply(150, "正在打开二进制模式数据连接以接收 " + filename);
+        // 2. 新版本归当前用户，按新大小记账
+        QuotaLedger.Holding replaced = null;
+        if (quota != null) {
+            replaced = quota.holdingOf(filePath);
+            try {
+                quota.tryCharge(currentUser, newSize, 1);
+            } catch (QuotaLedger.QuotaExceededException e) {
+                Files.deleteIfExists(tempPath);
+                reply(552, e.getMessage());
+                xfer.finish(dataConn, 552);
+                return;
+            }
+            quota.setOwner(tempPath, currentUser);
+        }
         
-        // 7. 建立数据连接并接收文件
-        DataConnection dataConn = new DataConnection();
+        // 3. 原子替换（去重模式下旧版本可能是 blob 的硬链接，替换后回收）
         try {
-            // 根据模式连接数据端口
-            if (passiveMode) {
-                dataConn.acceptFrom(passiveServerSocket);
-            } else {
-                dataConn.connect(dataAddress);
+            Object oldKey = Files.readAttributes(filePath, BasicFileAttributes.class).fileKey();
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileAttributeCache.invalidate(filePath);
+            FileIndex.added(filePath);
+            if (quota != null) {
+                quota.release(replaced);
             }
-            
-            // 打开文件输出流
-            System.out.println("[ClientSession] 准备写入文件: " + filePath);
-            System.out.println("[ClientSession] 父目录可写: " + Files.isWritable(parentDir));
-            
-            try (OutputStream fileOutput = Files.newOutputStream(filePath, 
-                    StandardOpenOption.CREATE,           // 不存在则创建
-                    StandardOpenOption.TRUNCATE_EXISTING  // 存在则清空（覆盖）
-                )) {
-                
-                System.out.println("[ClientSession] 文件输出流已创建，开始接收数据...");
-                
-                // 流式接收文件内容
-                long bytesReceived = dataConn.receiveToStream(fileOutput);
-                
-                System.out.println("[ClientSession] 文件 " + filename + " 接收完成: " + 
-                                 bytesReceived + " 字节");
+            DedupStore dedup = DedupStore.instance();
+            if (dedup != null) {
+                dedup.released(oldKey);
             }
-            
         } catch (IOException e) {
-            // 数据连接失败或写入失败
-            System.err.println("[ClientSession] 文件上传失败: " + e.getClass().getName() + " - " + e.getMessage());
-            e.printStackTrace();  // 打印完整的堆栈跟踪以便调试
-            reply(426, "数据连接失败或写入失败: " + e.getMessage());
-            
-            // 删除不完整的文件（可选）
-            try {
-                if (Files.exists(filePath)) {
-                    Files.delete(filePath);
-                    System.out.println("[ClientSession] 已删除不完整的文件: " + filename);
-                }
-            } catch (IOException deleteEx) {
-                System.err.println("[ClientSession] 无法删除不完整的文件: " + deleteEx.getMessage());
+            Files.deleteIfExists(tempPath);
+            if (quota != null) {
+                quota.charge(currentUser, -newSize, -1);
             }
-            
+            reply(550, "替换文件失败: " + e.getMessage());
+            xfer.finish(dataConn, 550);
             return;
-        } finally {
-            // 无论成功与否，都要关闭数据连接
-            dataConn.close();
-            
-            // 清理数据连接状态
-            if (passiveMode && passiveServerSocket != null) {
-                try {
-                    passiveServerSocket.close();
-                } catch (IOException ignored) {}
-                passiveServerSocket = null;
-                passiveMode = false;
-            }
-            dataAddress = null;
         }
         
-        // 8. 发送传输完成响应
-        reply(226, "传输完成");
+        System.out.println("[ClientSession] 差异上传完成: " + arg + "，新大小 " + newSize
+            + " 字节，接收 " + dataConn.getBytesTransferred() + " 字节");
+        reply(226, "传输完成，新版本 " + newSize + " 字节");
+        xfer.finish(dataConn, 226);
     }
-
+    
     /**
-     * 处理 DELE 命令 - 删除文件
+     * 处理 SITE DELTARETR 命令 - 差异下载
      * 
-     * 命令格式：DELE <filename>
+     * 命令格式：SITE DELTARETR <文件>
+     * 同一个数据连接上先由客户端发送本地旧版本的签名（签名自带长度，不需要关闭连接），
+     * 服务器再发回把旧版本变成服务器版本的差异。
+     * 两个方向共用一次传输，只支持流模式。
      */
-    private void handleDele(String filename) throws IOException {
-        // 1. 参数校验
-        if (filename == null || filename.trim().isEmpty()) {
-            reply(501, "DELE 命令需要参数");
+    private void handleSiteDeltaRetr(String arg) throws IOException {
+        if (!isDataPortReady()) {
+            reply(425, "请先使用 PORT 或 PASV 命令");
             return;
         }
-        
-        filename = filename.trim();
-        
-        // 2. 解析文件路径（相对于当前工作目录）
-        Path filePath;
-        try {
-            filePath = pathValidator.resolvePath(currentWorkingDir, filename);
-        } catch (SecurityException e) {
-            reply(550, "访问被拒绝: " + e.getMessage());
+        if (blockMode) {
+            reply(504, "块模式下不支持 SITE DELTARETR");
             return;
-        } catch (IOException e) {
-            reply(553, "无效的文件路径: " + e.getMessage());
+        }
+        if (arg.isEmpty()) {
+            reply(501, "用法: SITE DELTARETR <文件>");
             return;
         }
-        
-        // 3. 检查文件是否存在
-        if (!Files.exists(filePath)) {
-            reply(550, "文件不存在: " + filename);
+        Path filePath = resolveDeltaFile(arg);
+        if (filePath == null) {
             return;
         }
         
-        // 4. 检查是否为普通文件（不允许删除目录）
-        if (!Files.isRegularFile(filePath)) {
-            reply(550, filename + " 不是普通文件（不能删除目录）");
+        reply(150, "正在打开二进制模式数据连接，请先发送签名");
+        
+        long literalBytes;
+        TransferLog.Record xfer = beginTransfer("SITE DELTARETR", filePath);
+        DataConnection dataConn = openDataConnection();
+        try {
+            establishDataConnection(dataConn, TransferTuner.Kind.DOWNLOAD, -1);
+            xfer.connected();
+            DeltaSync.Signature basis = DeltaSync.Signature.readFrom(dataConn.getInputStream(), Files.size(filePath));
+            OutputStream deltaOut = dataConn.getOutputStream();
+            literalBytes = DeltaSync.writeDelta(filePath, basis, deltaOut, localProgress());
+            deltaOut.flush();
+        } catch (IOException e) {
+            reply(426, "差异下载失败: " + failureReason(e));
+            xfer.finish(dataConn, 426);
             return;
+        } finally {
+            releaseDataConnection(dataConn);
         }
         
-        // 5. 尝试删除文件
+        reply(226, "传输完成，字面数据 " + literalBytes + " 字节");
+        xfer.finish(dataConn, 226);
+    }
+    
+    /**
+     * 差异命令共用：把本地读写的字节数计入当前传输的进度，供速率监控判断传输没有停滞
+     */
+    private LongConsumer localProgress() {
+        Transfer transfer = activeTransfer;
+        return transfer == null ? bytes -> { } : transfer.localBytes::add;
+    }
+    
+    /**
+     * 差异命令共用：解析路径，只接受已存在的普通文件
+     * 出错时已经发送了错误响应，返回 null
+     */
+    private Path resolveDeltaFile(String name) throws IOException {
+        Path filePath;
         try {
-            Files.delete(filePath);
-            System.out.println("[ClientSession] 文件已删除: " + filename);
-            reply(250, "文件 " + filename + " 已删除");
+            filePath = pathValidator.resolvePath(currentWorkingDir, name);
+        } catch (SecurityException e) {
+            reply(550, "访问被拒绝: " + e.getMessage());
+            return null;
         } catch (IOException e) {
-            // 删除失败（可能是文件被占用、权限不足）
-            System.err.println("[ClientSession] 删除文件失败: " + e.getMessage());
-            reply(450, "无法删除文件: " + e.getMessage());
+            reply(553, "无效的路径: " + e.getMessage());
+            return null;
+        }
+        if (!Files.isRegularFile(filePath)) {
+            reply(550, name + " 不存在或不是普通文件");
+            return null;
         }
+        return filePath;
     }
 
     /**
@@ -1028,8 +2569,8 @@ public class ClientSession implements Runnable {
         }
         
         // 3. 检查目录是否已存在
-        if (Files.exists(dirPath)) {
-            if (Files.isDirectory(dirPath)) {
+        if (storage.exists(dirPath)) {
+            if (storage.isDirectory(dirPath)) {
                 reply(550, "目录已存在: " + dirname);
             } else {
                 reply(550, dirname + " 已存在但不是目录");
@@ -1037,21 +2578,386 @@ public class ClientSession implements Runnable {
             return;
         }
         
-        // 4. 尝试创建目录
+        // 4. 目录也占文件数配额
+        QuotaLedger quota = QuotaLedger.instance();
+        if (quota != null) {
+            quota.beforeChange(dirPath);
+            try {
+                quota.tryCharge(currentUser, 0, 1);
+            } catch (QuotaLedger.QuotaExceededException e) {
+                reply(552, e.getMessage());
+                return;
+            }
+        }
+        
+        // 5. 尝试创建目录
         try {
-            Files.createDirectory(dirPath);
+            storage.mkdir(dirPath);
+            FileAttributeCache.invalidate(dirPath);
+            FileIndex.added(dirPath);
+            if (quota != null) {
+                quota.setOwner(dirPath, currentUser);
+            }
             System.out.println("[ClientSession] 目录已创建: " + dirname);
             // 返回创建成功的响应，格式为 257 "<pathname>" created
             reply(257, "\"" + dirname + "\" 创建成功");
         } catch (IOException e) {
             // 创建失败（可能是权限不足、磁盘满等）
+            if (quota != null) {
+                quota.charge(currentUser, 0, -1);
+            }
             System.err.println("[ClientSession] 创建目录失败: " + e.getMessage());
             reply(550, "无法创建目录: " + e.getMessage());
         }
     }
 
     
+    /**
+     * 处理 AUTH 命令 - 把控制连接升级为 TLS（显式 FTPS，RFC 4217）
+     * 
+     * 命令格式：AUTH TLS（也接受 AUTH SSL / AUTH TLS-C）
+     * 回复 234 之后立即在控制连接上进行 TLS 握手，之后的命令和响应都经过加密
+     */
+    private void handleAuth(String mechanism) throws IOException {
+        String mech = mechanism.trim().toUpperCase(Locale.ROOT);
+        if (!mech.equals("TLS") && !mech.equals("TLS-C") && !mech.equals("SSL")) {
+            reply(504, "不支持的安全机制: " + mechanism);
+            return;
+        }
+        if (!TlsSupport.isAvailable()) {
+            reply(431, "服务器未配置 TLS");
+            return;
+        }
+        if (controlSecure) {
+            reply(503, "控制连接已经加密");
+            return;
+        }
+        
+        reply(234, "AUTH " + mech + " 成功，开始 TLS 握手");
+        
+        // 握手失败时抛出异常，会话随之结束（此时明文和密文已经无法区分）
+        javax.net.ssl.SSLSocket secure = TlsSupport.handshake(controlSocket, "control", null);
+        this.in = new BufferedReader(new InputStreamReader(secure.getInputStream(), CONN_CHARSET));
+        this.out = new BufferedWriter(new OutputStreamWriter(secure.getOutputStream(), CONN_CHARSET));
+        controlSecure = true;
+        controlTlsSession = secure.getSession();
+        System.out.println("[ClientSession] 控制连接已加密: " + secure.getSession().getProtocol()
+            + " " + secure.getSession().getCipherSuite());
+    }
+    
+    /**
+     * 处理 PBSZ 命令 - TLS 下保护缓冲区大小只能是 0
+     */
+    private void handlePbsz(String size) throws IOException {
+        if (!controlSecure) {
+            reply(503, "请先使用 AUTH TLS");
+            return;
+        }
+        pbszReceived = true;
+        reply(200, "PBSZ=0");
+    }
+    
+    /**
+     * 处理 PROT 命令 - 设置数据连接保护级别
+     * 
+     * 命令格式：PROT C（明文）或 PROT P（加密）
+     */
+    private void handleProt(String level) throws IOException {
+        if (!controlSecure) {
+            reply(503, "请先使用 AUTH TLS");
+            return;
+        }
+        if (!pbszReceived) {
+            reply(503, "请先使用 PBSZ");
+            return;
+        }
+        switch (level.trim().toUpperCase(Locale.ROOT)) {
+            case "P":
+                // 保护级别改变后，块模式留下的连接不能再用
+                if (!protectData) {
+                    closeBlockConnection();
+                }
+                protectData = true;
+                reply(200, "数据连接将使用 TLS");
+                break;
+            case "C":
+                if (TlsSupport.REQUIRED) {
+                    reply(534, "服务器要求数据连接加密");
+                } else {
+                    if (protectData) {
+                        closeBlockConnection();
+                    }
+                    protectData = false;
+                    reply(200, "数据连接将不加密");
+                }
+                break;
+            case "S":
+            case "E":
+                reply(536, "不支持的保护级别: " + level);
+                break;
+            default:
+                reply(504, "未知的保护级别: " + level);
+        }
+    }
+    
+    /**
+     * 处理 ABOR 命令 - 中止正在进行的传输
+     * 
+     * 有传输时：关闭数据连接，传输线程回复 426，随后这里回复 226
+     * 没有传输时：直接回复 226
+     */
+    private void handleAbor() throws IOException {
+        Transfer running = activeTransfer;
+        if (running == null) {
+            reply(226, "没有正在进行的传输");
+            return;
+        }
+        if (running.cancelQueued()) {
+            // 还在排队，没有打开过数据连接
+            running.abort();
+            activeTransfer = null;
+            reply(426, "传输已取消");
+        } else {
+            running.abort();
+            running.await();
+        }
+        ServerMetrics.increment("transfer.aborted");
+        reply(226, "ABOR 成功，传输已中止");
+    }
+    
+    /**
+     * 处理 STAT 命令
+     * 
+     * 有传输时回复传输进度（已传输字节数和速率），没有传输时回复会话状态
+     */
+    private void handleStat() throws IOException {
+        Transfer running = activeTransfer;
+        if (running != null && !running.isStarted()) {
+            reply(213, "等待传输 " + running.command + "：传输线程繁忙，已排队 "
+                + (System.nanoTime() - running.startNanos) / 1_000_000 + " ms");
+            return;
+        }
+        if (running != null) {
+            DataConnection conn = running.dataConn;
+            long bytes = conn == null ? 0 : conn.getBytesTransferred();
+            long elapsedNanos = System.nanoTime() - running.startNanos;
+            long kbps = TransferWatchdog.bytesPerSecond(bytes, elapsedNanos) / 1024;
+            reply(213, "正在传输 " + running.command + "：已传输 " + bytes + " 字节，用时 "
+                + elapsedNanos / 1_000_000 + " ms，速率 " + kbps + " KB/s");
+            return;
+        }
+        synchronized (out) {
+            out.write("211-FTP 服务器状态\r\n");
+            out.write(" 客户端: " + controlSocket.getInetAddress().getHostAddress() + "\r\n");
+            out.write(" 用户: " + (authenticated ? currentUser : "未登录") + "\r\n");
+            out.write(" 当前目录: " + currentWorkingDir + "\r\n");
+            out.write(" 数据连接: " + (passiveMode ? "被动模式" : dataAddress != null ? "主动模式 " + dataAddress : "未设置") + "\r\n");
+            out.write(" 传输类型: " + (asciiType ? "ASCII" : "二进制") + "\r\n");
+            out.write(" 传输模式: " + (blockMode ? "块模式" + (blockConnection != null ? "（数据连接已打开）" : "") : "流模式") + "\r\n");
+            out.write("211 End\r\n");
+            out.flush();
+            replySent(211);
+        }
+    }
+    
     // ==================== 工具方法 ====================
+    /**
+     * 在传输线程中执行一次数据传输，会话线程立即返回继续读取控制连接
+     * 
+     * @param command 命令名（用于 STAT）
+     * @param lane 传输线程池的通道（交互 / 批量）
+     * @param body 传输的处理函数，响应由它自己发送
+     * @throws IOException 要求加密而数据连接未加密时，发送 521 响应失败
+     */
+    private void startTransfer(String command, TaskScheduler.Lane lane, TransferBody body) throws IOException {
+        if (TlsSupport.REQUIRED && !protectData) {
+            reply(521, "数据连接必须加密，请先使用 PROT P");
+            return;
+        }
+        Transfer transfer = new Transfer(command, passiveMode ? passiveServerSocket : null);
+        activeTransfer = transfer;
+        transfer.future = TaskScheduler.submitTransfer(lane, () -> {
+            if (!transfer.markStarted()) {
+                return;
+            }
+            TransferWatchdog.watch(transfer);
+            try {
+                body.run();
+            } catch (Exception e) {
+                try {
+                    reply(500, "服务器错误: " + e.getMessage());
+                } catch (IOException ignored) {
+                }
+            } finally {
+                TransferWatchdog.unwatch(transfer);
+                activeTransfer = null;
+            }
+        });
+    }
+    
+
+    /**
+     * RETR 使用的传输通道：小文件走交互通道，不排在大文件后面
+     * 这里只为调度查一次大小，路径无效等错误留给 handleRetr 回复
+     */
+    private TaskScheduler.Lane downloadLane(String filename) {
+        if (filename == null || filename.trim().isEmpty()) {
+            return TaskScheduler.Lane.INTERACTIVE;
+        }
+        try {
+            Path filePath = pathValidator.resolvePath(currentWorkingDir, filename.trim());
+            return TaskScheduler.laneForDownload(storage.stat(filePath).size());
+        } catch (IOException | SecurityException e) {
+            return TaskScheduler.Lane.INTERACTIVE;
+        }
+    }
+    
+    /**
+     * 按当前模式建立数据连接（被动模式等待客户端连入，主动模式连接客户端）
+     * 并根据传输类型和预计大小选择 Socket 参数
+     * 
+     * @param dataConn 待建立的数据连接
+     * @param kind 传输类型
+     * @param expectedSize 预计字节数，未知时传 -1
+     */
+    private void establishDataConnection(DataConnection dataConn, TransferTuner.Kind kind, long expectedSize)
+            throws IOException {
+        TransferTuner.Params params = TransferTuner.choose(controlSocket.getInetAddress(), kind, expectedSize);
+        if (protectData) {
+            dataConn.enableTls(controlTlsSession);
+        }
+        // 登记到当前传输，ABOR 时可以关闭它
+        Transfer transfer = activeTransfer;
+        if (transfer != null) {
+            transfer.dataConn = dataConn;
+        }
+        if (dataConn.isConnected()) {
+            // 块模式下沿用上一次传输的连接
+            ServerMetrics.increment("data.reused");
+            return;
+        }
+        if (passiveMode) {
+            // 被动模式：等待客户端连接
+            dataConn.acceptFrom(passiveServerSocket, params);
+        } else {
+            // 主动模式：连接到客户端数据端口
+            dataConn.connect(dataAddress, params);
+        }
+        if (transfer != null && transfer.aborted) {
+            // 连接建立过程中收到了 ABOR
+            throw new IOException("传输已中止");
+        }
+    }
+    
+    /**
+     * 开始记录一次传输（写入传输日志）
+     * 
+     * @param command 命令名
+     * @param path 传输的文件或目录
+     */
+    private TransferLog.Record beginTransfer(String command, Path path) {
+        return TransferLog.begin(command, currentUser,
+            controlSocket.getInetAddress().getHostAddress(), pathValidator.toVirtualPath(path));
+    }
+    
+    /**
+     * 传输失败的原因（被 ABOR 中止时底层异常往往没有消息）
+     */
+    private String failureReason(IOException e) {
+        Transfer transfer = activeTransfer;
+        if (transfer != null && transfer.stalled) {
+            return "传输速率低于 " + TransferWatchdog.MIN_RATE + " 字节/秒，已中止";
+        }
+        if (transfer != null && transfer.aborted) {
+            return "传输已中止";
+        }
+        return e.getMessage();
+    }
+    
+    /**
+     * 是否可以建立数据连接（已设置 PORT / PASV，或者有块模式留下的连接）
+     */
+    private boolean isDataPortReady() {
+        return passiveMode || dataAddress != null || blockConnection != null;
+    }
+    
+    /**
+     * 取得本次传输使用的数据连接
+     * 块模式下优先沿用上一次传输留下的连接，否则创建新的连接
+     */
+    private DataConnection openDataConnection() {
+        DataConnection reused = blockConnection;
+        blockConnection = null;
+        if (reused != null) {
+            if (reused.isConnected()) {
+                reused.prepareReuse();
+                return reused;
+            }
+            reused.close();
+        }
+        DataConnection dataConn = new DataConnection();
+        if (blockMode) {
+            dataConn.enableBlockMode();
+        }
+        return dataConn;
+    }
+    
+    /**
+     * 关闭块模式留下的数据连接
+     */
+    private void closeBlockConnection() {
+        DataConnection conn = blockConnection;
+        blockConnection = null;
+        if (conn != null) {
+            conn.close();
+        }
+    }
+    
+    /**
+     * 关闭数据连接并清理 PORT/PASV 状态
+     * 流模式下每次传输之后客户端都需要重新发送 PORT 或 PASV；
+     * 块模式下正常结束的连接保留下来，下一次传输直接使用
+     */
+    private void releaseDataConnection(DataConnection dataConn) {
+        SessionRecorder.data(recordId, dataConn.getBytesTransferred());
+        Transfer transfer = activeTransfer;
+        dataConn.commitEvent(transfer != null ? transfer.command : null);
+        if (blockMode && dataConn.isReusable()) {
+            blockConnection = dataConn;
+        } else {
+            dataConn.close();
+        }
+        
+        if (passiveMode && passiveServerSocket != null) {
+            try {
+                passiveServerSocket.close();
+            } catch (IOException ignored) {}
+            passiveServerSocket = null;
+            passiveMode = false;
+        }
+        dataAddress = null;
+    }
+    
+    /**
+     * 命令与参数之间的空白（与正则 \s 相同，不包括全角空格等，文件名可以以它们开头）
+     */
+    private static boolean isCommandSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
+    /**
+     * 命令名转大写；客户端几乎总是发送大写命令，此时不再调用 toUpperCase 生成第二个字符串
+     */
+    private static String upperCaseVerb(String commandLine, int verbEnd) {
+        for (int i = 0; i < verbEnd; i++) {
+            char c = commandLine.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                return commandLine.substring(0, verbEnd).toUpperCase(Locale.ROOT);
+            }
+        }
+        return verbEnd == commandLine.length() ? commandLine : commandLine.substring(0, verbEnd);
+    }
+    
     /**
      * 向客户端发送 FTP 响应
      * FTP 响应格式：<code> <message>\r\n
@@ -1061,12 +2967,29 @@ public class ClientSession implements Runnable {
      * @param message 响应消息
      */
     private void reply(int code, String message) throws IOException {
-        // 格式化响应：码 + 空格 + 消息 + 换行符
-        String response = code + " " + message + "\r\n";
-        out.write(response);
-        out.flush();// 刷新缓冲区
+        // 响应：码 + 空格 + 消息 + 换行符，分段写入 BufferedWriter，不再先拼成一个字符串
+        // 传输线程和会话线程都会发送响应，需要互斥
+        synchronized (out) {
+            out.write('0' + code / 100 % 10);
+            out.write('0' + code / 10 % 10);
+            out.write('0' + code % 10);
+            out.write(' ');
+            out.write(message);
+            out.write("\r\n");
+            out.flush();// 刷新缓冲区
+            // 在锁内记录，录制顺序与客户端收到的顺序一致
+            replySent(code);
+        }
         
         // 可选：打印到服务器日志，便于调试
-        System.out.println("[ClientSession] " + currentUser + " <- " + response.trim());
+        System.out.println("[ClientSession] " + currentUser + " <- " + code + " " + message);
+    }
+    
+    /**
+     * 响应已写出：交给会话录制，并记下响应码供 JFR 命令事件使用
+     */
+    private void replySent(int code) {
+        SessionRecorder.reply(recordId, code);
+        lastReplyCode = code;
     }
 }
\ No newline at end of file
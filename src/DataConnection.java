@@ -3,8 +3,18 @@ package data;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.StandardCharsets;
 
+import javax.net.ssl.SSLSession;
+
 /**
  * 数据连接工具类
  * 
@@ -13,14 +23,21 @@ import java.nio.charset.StandardCharsets;
  * 2. 发送数据（目录列表、文件内容等）
  * 3. 接收数据（上传的文件）
  * 4. 自动关闭连接
+ * 
+ * 读写缓冲区来自 BufferPool（直接内存），不再每次传输 new byte[]。
+ * Socket 由 SocketChannel 创建，发送时直接写 Channel，直接缓冲区无需再复制一次；
+ * 接收时仍通过 Socket 的输入流读取，以保留 SO_TIMEOUT 读超时。
+ * 
+ * 块模式（MODE B）下读写都经过 BlockMode 分帧，文件结束由 endOfData() 标记，
+ * 连接可以留给同一会话的下一次传输继续使用。
  */
 public class DataConnection {
     
     /** 数据连接的超时时间（毫秒）*/
     private static final int TIMEOUT = 30000;  // 30 秒
     
-    /** 数据 Socket */
-    private Socket dataSocket;
+    /** 数据 Socket（ABOR 时由控制线程关闭，所以是 volatile） */
+    private volatile Socket dataSocket;
     
     /** 输入流 */
     private InputStream inputStream;
@@ -28,6 +45,79 @@ public class DataConnection {
     /** 输出流 */
     private OutputStream outputStream;
     
+    /** 发送用的 Channel（有 SocketChannel 时直接使用它） */
+    private WritableByteChannel outputChannel;
+    
+    /** 接收用的 Channel（包装输入流，读超时仍然有效） */
+    private ReadableByteChannel inputChannel;
+    
+    /** 本次传输使用的读写缓冲区大小 */
+    private int ioBufferSize = TransferTuner.DEFAULT_IO_BUFFER;
+    
+    /** 已发送或接收的字节数（供传输日志和 STAT 使用，传输过程中随时可读） */
+    private volatile long bytesTransferred = 0;
+    
+    /** 第一个字节发出或收到的时刻（System.nanoTime，0 表示还没有） */
+    private long firstByteNanos = 0;
+    
+    /** 读写本地文件所花的时间（纳秒） */
+    private long localIoNanos = 0;
+    
+    /** 是否在连接建立后进行 TLS 握手（PROT P） */
+    private boolean tls = false;
+    
+    /** 控制连接的 TLS 会话（ftp.tls.requireReuse 时数据连接必须恢复它） */
+    private SSLSession controlSession;
+    
+    /** 是否使用块模式分帧（MODE B） */
+    private boolean blockMode = false;
+    
+    /** 块模式的分帧写入器和读取器（流模式下为 null） */
+    private BlockMode.Writer blockWriter;
+    private BlockMode.Reader blockReader;
+    
+    /** 本次传输是否从数据连接接收过数据（决定 endOfData 是读取还是发送 EOF 标记） */
+    private boolean receiving = false;
+    
+    /** 本次传输是否已正常结束（块模式下连接可以继续使用） */
+    private boolean reusable = false;
+    
+    /** 本次传输是否为 ASCII 类型（TYPE A），sendFromChannel / receiveToChannel 转换换行 */
+    private boolean ascii = false;
+    
+    /** 建立连接（含 TLS 握手）所花的时间（纳秒，复用的连接为 0） */
+    private long connectWaitNanos = 0;
+    
+    /** 本次传输的 JFR 事件（提交后为 null） */
+    private FtpEvents.Transfer event = beginEvent(false);
+    
+    /**
+     * 要求本连接使用 TLS（PROT P），必须在 connect / acceptFrom 之前调用
+     * 
+     * TLS Socket 没有对应的 SocketChannel，发送时改为写它的输出流
+     * 
+     * @param controlSession 控制连接的 TLS 会话
+     */
+    public void enableTls(SSLSession controlSession) {
+        this.tls = true;
+        this.controlSession = controlSession;
+    }
+    
+    /**
+     * 使用块模式（MODE B），必须在 connect / acceptFrom 之前调用
+     */
+    public void enableBlockMode() {
+        this.blockMode = true;
+    }
+    
+    /**
+     * 本次传输使用 ASCII 类型（TYPE A）：发送时 LF → CRLF，接收时 CRLF → LF
+     * 只影响 sendFromChannel / receiveToChannel；复用连接时由 prepareReuse 恢复为二进制
+     */
+    public void enableAscii() {
+        this.ascii = true;
+    }
+    
     /**
      * 连接到客户端的数据端口（主动模式）
      * 
@@ -35,16 +125,35 @@ public class DataConnection {
      * @throws IOException 如果连接失败
      */
     public void connect(InetSocketAddress address) throws IOException {
+        connect(address, null);
+    }
+    
+    /**
+     * 连接到客户端的数据端口（主动模式），并应用调优参数
+     * 
+     * @param address 客户端数据端口地址
+     * @param params 调优参数（null 表示使用默认值）
+     * @throws IOException 如果连接失败
+     */
+    public void connect(InetSocketAddress address, TransferTuner.Params params) throws IOException {
         System.out.println("[DataConnection] 正在连接到客户端数据端口: " + address);
         
         // 创建 Socket 并连接
-        dataSocket = new Socket();
+        // Socket 缓冲区必须在 connect 之前设置，才能参与 TCP 窗口缩放协商
+        dataSocket = SocketChannel.open().socket();
         dataSocket.setSoTimeout(TIMEOUT);
+        applyBufferSizes(params);
+        
+        long start = System.nanoTime();
         dataSocket.connect(address, TIMEOUT);
+        // 三次握手的耗时约等于一个 RTT
+        TransferTuner.recordRtt(address.getAddress(), System.nanoTime() - start);
+        applyParams(params);
+        startTlsIfEnabled();
         
         // 获取输入输出流
-        inputStream = dataSocket.getInputStream();
-        outputStream = dataSocket.getOutputStream();
+        openStreams();
+        connectWaitNanos = System.nanoTime() - start;
         
         System.out.println("[DataConnection] 数据连接已建立");
     }
@@ -56,36 +165,232 @@ public class DataConnection {
      * @throws IOException 如果接受连接失败
      */
     public void acceptFrom(java.net.ServerSocket serverSocket) throws IOException {
+        acceptFrom(serverSocket, null);
+    }
+    
+    /**
+     * 接受客户端连接（被动模式），并应用调优参数
+     * 
+     * @param serverSocket 服务器端监听的Socket
+     * @param params 调优参数（null 表示使用默认值）
+     * @throws IOException 如果接受连接失败
+     */
+    public void acceptFrom(java.net.ServerSocket serverSocket, TransferTuner.Params params) throws IOException {
         System.out.println("[DataConnection] 等待客户端连接到被动模式端口: " + serverSocket.getLocalPort());
         
+        // 接收缓冲区需要设置在监听 Socket 上，新连接才会继承
+        if (params != null && params.receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(params.receiveBufferSize);
+        }
+        
         // 等待客户端连接
+        long start = System.nanoTime();
         dataSocket = serverSocket.accept();
         dataSocket.setSoTimeout(TIMEOUT);
+        applyBufferSizes(params);
+        applyParams(params);
+        startTlsIfEnabled();
         
         // 获取输入输出流
+        openStreams();
+        connectWaitNanos = System.nanoTime() - start;
+        
+        System.out.println("[DataConnection] 客户端已连接到被动模式数据端口");
+    }
+    
+    /**
+     * 设置 Socket 收发缓冲区（0 表示保持系统默认）
+     */
+    private void applyBufferSizes(TransferTuner.Params params) throws IOException {
+        if (params == null) {
+            return;
+        }
+        if (params.sendBufferSize > 0) {
+            dataSocket.setSendBufferSize(params.sendBufferSize);
+        }
+        if (params.receiveBufferSize > 0) {
+            dataSocket.setReceiveBufferSize(params.receiveBufferSize);
+        }
+    }
+    
+    /**
+     * 应用其余调优参数，并把实际生效的值记录到指标中
+     * （操作系统可能会把缓冲区大小调整为自己的上限）
+     */
+    private void applyParams(TransferTuner.Params params) throws IOException {
+        if (params == null) {
+            return;
+        }
+        dataSocket.setTcpNoDelay(params.tcpNoDelay);
+        ioBufferSize = params.ioBufferSize;
+        
+        String prefix = "tuner." + params.kind.name().toLowerCase();
+        ServerMetrics.set(prefix + ".effectiveSndbuf", dataSocket.getSendBufferSize());
+        ServerMetrics.set(prefix + ".effectiveRcvbuf", dataSocket.getReceiveBufferSize());
+        System.out.println("[DataConnection] 调优参数: " + params);
+    }
+    
+    /**
+     * PROT P 时在已连接的 Socket 上完成 TLS 握手（服务端角色）
+     */
+    private void startTlsIfEnabled() throws IOException {
+        if (!tls) {
+            return;
+        }
+        try {
+            dataSocket = TlsSupport.handshake(dataSocket, "data",
+                TlsSupport.REQUIRE_REUSE ? controlSession : null);
+        } catch (IOException e) {
+            dataSocket.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * 获取输入输出流和对应的 Channel
+     */
+    private void openStreams() throws IOException {
         inputStream = dataSocket.getInputStream();
         outputStream = dataSocket.getOutputStream();
         
-        System.out.println("[DataConnection] 客户端已连接到被动模式数据端口");
+        // TLS Socket 的 getChannel() 返回底层明文 Channel，不能直接写
+        SocketChannel channel = tls ? null : dataSocket.getChannel();
+        outputChannel = channel != null ? channel : Channels.newChannel(outputStream);
+        inputChannel = Channels.newChannel(inputStream);
+        
+        if (blockMode) {
+            // 块模式：所有读写（包括打包用的流）都经过分帧
+            blockWriter = new BlockMode.Writer(outputChannel);
+            blockReader = new BlockMode.Reader(inputChannel);
+            outputChannel = blockWriter;
+            inputChannel = blockReader;
+            outputStream = Channels.newOutputStream(blockWriter);
+            inputStream = Channels.newInputStream(blockReader);
+        }
+    }
+    
+    /**
+     * 标记本次传输的数据结束
+     * 
+     * 流模式下什么也不做（关闭连接即表示文件结束）；
+     * 块模式下发送方写出 EOF 块，接收方读到 EOF 块为止（丢弃调用方没有读完的数据），
+     * 之后连接可以留给下一次传输（isReusable）。
+     * 
+     * @throws IOException 如果发送或读取失败
+     */
+    public void endOfData() throws IOException {
+        if (!blockMode) {
+            return;
+        }
+        if (receiving) {
+            if (!blockReader.isAtEof()) {
+                ByteBuffer buffer = BufferPool.acquire(ioBufferSize);
+                try {
+                    while (blockReader.read(buffer) != -1) {
+                        buffer.clear();
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+            }
+        } else {
+            blockWriter.writeEof();
+            outputStream.flush();
+        }
+        reusable = true;
+    }
+    
+    /**
+     * 块模式下本次传输已正常结束且连接仍然打开，可以用于下一次传输
+     */
+    public boolean isReusable() {
+        return reusable && isConnected();
+    }
+    
+    /**
+     * 复用连接开始新的传输：清零本次传输的统计
+     */
+    public void prepareReuse() {
+        bytesTransferred = 0;
+        firstByteNanos = 0;
+        localIoNanos = 0;
+        connectWaitNanos = 0;
+        receiving = false;
+        reusable = false;
+        ascii = false;
+        blockReader.reset();
+        event = beginEvent(true);
+    }
+    
+    private static FtpEvents.Transfer beginEvent(boolean reused) {
+        FtpEvents.Transfer transferEvent = new FtpEvents.Transfer();
+        transferEvent.reused = reused;
+        transferEvent.begin();
+        return transferEvent;
+    }
+    
+    /**
+     * 本次传输结束：提交 JFR 传输事件（每次传输只提交一次）
+     * 
+     * @param command 传输命令名（null 表示未知）
+     */
+    public void commitEvent(String command) {
+        FtpEvents.Transfer transferEvent = event;
+        if (transferEvent == null) {
+            return;
+        }
+        event = null;
+        transferEvent.end();
+        if (transferEvent.shouldCommit()) {
+            transferEvent.command = command;
+            transferEvent.direction = receiving ? "receive" : "send";
+            transferEvent.mode = blockMode ? "B" : "S";
+            transferEvent.tls = tls;
+            transferEvent.bytes = bytesTransferred;
+            transferEvent.connectWait = connectWaitNanos;
+            transferEvent.localIo = localIoNanos;
+            transferEvent.commit();
+        }
     }
     
     /**
      * 发送文本数据（如目录列表）
+     * 边编码边发送，不为整段文本生成字节数组
      * 
      * @param text 要发送的文本内容
      * @throws IOException 如果发送失败
      */
-    public void sendText(String text) throws IOException {
-        if (outputStream == null) {
+    public void sendText(CharSequence text) throws IOException {
+        if (outputChannel == null) {
             throw new IOException("Data connection not established");
         }
         
-        // 将文本转换为字节并发送
-        byte[] data = text.getBytes(StandardCharsets.UTF_8);
-        outputStream.write(data);
-        outputStream.flush();
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        CharBuffer chars = CharBuffer.wrap(text);
+        ByteBuffer buffer = BufferPool.acquire(ioBufferSize);
+        long totalBytes = 0;
+        try {
+            // 分块编码：缓冲区满了（OVERFLOW）就先发出去，再继续编码剩余部分
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (result.isUnderflow()) {
+                    encoder.flush(buffer);
+                    buffer.flip();
+                    totalBytes += writeFully(buffer);
+                    break;
+                }
+                buffer.flip();
+                totalBytes += writeFully(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
         
-        System.out.println("[DataConnection] 已发送 " + data.length + " 字节文本数据");
+        System.out.println("[DataConnection] 已发送 " + totalBytes + " 字节文本数据");
     }
     
     /**
@@ -95,16 +400,76 @@ public class DataConnection {
      * @throws IOException 如果发送失败
      */
     public void sendBytes(byte[] data) throws IOException {
-        if (outputStream == null) {
+        if (outputChannel == null) {
             throw new IOException("Data connection not established");
         }
         
-        outputStream.write(data);
-        outputStream.flush();
+        writeFully(ByteBuffer.wrap(data));
         
         System.out.println("[DataConnection] 已发送 " + data.length + " 字节二进制数据");
     }
     
+    /**
+     * 获取带缓冲的输出流，用于边生成边发送的场景（如打包下载）
+     * 调用方写完后需要 flush，关闭仍由 close() 统一处理
+     * 
+     * @return 数据连接的输出流
+     * @throws IOException 如果连接尚未建立
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            throw new IOException("Data connection not established");
+        }
+        // 计数包装：STAT 可以看到打包下载的进度
+        OutputStream counting = new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesTransferred++;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesTransferred += len;
+            }
+        };
+        return new BufferedOutputStream(counting, ioBufferSize);
+    }
+    
+    /**
+     * 获取带缓冲的输入流，用于边接收边处理的场景（如打包上传）
+     * 
+     * @return 数据连接的输入流
+     * @throws IOException 如果连接尚未建立
+     */
+    public InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            throw new IOException("Data connection not established");
+        }
+        receiving = true;
+        InputStream counting = new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesTransferred++;
+                }
+                return b;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    bytesTransferred += n;
+                }
+                return n;
+            }
+        };
+        return new BufferedInputStream(counting, ioBufferSize);
+    }
+    
     /**
      * 从输入流读取数据（用于上传文件）
      * 
@@ -116,6 +481,7 @@ public class DataConnection {
         if (inputStream == null) {
             throw new IOException("Data connection not established");
         }
+        receiving = true;
         return inputStream.read(buffer);
     }
     
@@ -128,21 +494,63 @@ public class DataConnection {
      * @throws IOException 如果传输失败
      */
     public long sendFromStream(InputStream inputStream) throws IOException {
-        if (outputStream == null) {
+        // 文件输入流会直接得到它的 FileChannel
+        return sendFromChannel(Channels.newChannel(inputStream));
+    }
+    
+    /**
+     * 从 Channel 读取数据并发送（流式传输）
+     * 文件用 FileChannel 打开时，文件和 Socket 两端都直接使用直接缓冲区
+     * ASCII 类型时边读边把 LF 转换为 CRLF（见 AsciiMode）
+     * 
+     * @param source 源 Channel（如 FileChannel）
+     * @return 传输的总字节数（网络上的字节数，ASCII 类型时含转换加入的 CR）
+     * @throws IOException 如果传输失败
+     */
+    public long sendFromChannel(ReadableByteChannel source) throws IOException {
+        if (outputChannel == null) {
             throw new IOException("Data connection not established");
         }
         
-        byte[] buffer = new byte[8192];  // 8KB 缓冲区
-        int bytesRead;
+        // 缓冲区大小由调优器决定，默认 8KB
+        ByteBuffer buffer = BufferPool.acquire(ioBufferSize);
+        // ASCII 类型：转换后的数据放进第二个缓冲区（两倍大小，一般一次就能转换完）
+        // 二进制类型不经过它，仍然是读出来直接写
+        ByteBuffer converted = ascii ? BufferPool.acquire(ioBufferSize * 2) : null;
+        AsciiMode.Encoder encoder = ascii ? new AsciiMode.Encoder() : null;
         long totalBytes = 0;
-        
-        // 循环读取并发送
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
-            totalBytes += bytesRead;
+        long start = System.nanoTime();
+        try {
+            // 循环读取并发送，分别统计读文件的耗时
+            while (true) {
+                long readStart = System.nanoTime();
+                int n = source.read(buffer);
+                localIoNanos += System.nanoTime() - readStart;
+                if (n == -1) {
+                    break;
+                }
+                buffer.flip();
+                if (encoder == null) {
+                    totalBytes += writeFully(buffer);
+                } else {
+                    while (buffer.hasRemaining()) {
+                        encoder.encode(buffer, converted);
+                        converted.flip();
+                        totalBytes += writeFully(converted);
+                        converted.clear();
+                    }
+                }
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.release(buffer);
+            if (converted != null) {
+                BufferPool.release(converted);
+            }
         }
         
         outputStream.flush();
+        TransferTuner.recordThroughput(dataSocket.getInetAddress(), totalBytes, System.nanoTime() - start);
         
         System.out.println("[DataConnection] 已传输 " + totalBytes + " 字节");
         return totalBytes;
@@ -157,32 +565,133 @@ public class DataConnection {
      * @throws IOException 如果接收失败
      */
     public long receiveToStream(OutputStream outputStream) throws IOException {
-        if (inputStream == null) {
+        long totalBytes = receiveToChannel(Channels.newChannel(outputStream));
+        outputStream.flush();
+        return totalBytes;
+    }
+    
+    /**
+     * 接收数据并写入 Channel（流式接收）
+     * ASCII 类型时边收边把 CRLF 转换为 LF（见 AsciiMode）
+     * 
+     * @param target 目标 Channel（如 FileChannel）
+     * @return 接收的总字节数（网络上的字节数）
+     * @throws IOException 如果接收失败
+     */
+    public long receiveToChannel(WritableByteChannel target) throws IOException {
+        if (inputChannel == null) {
             throw new IOException("Data connection not established");
         }
+        receiving = true;
         
-        byte[] buffer = new byte[8192];  // 8KB 缓冲区
-        int bytesRead;
+        // 缓冲区大小由调优器决定，默认 8KB
+        ByteBuffer buffer = BufferPool.acquire(ioBufferSize);
+        // ASCII 类型：CRLF → LF 后写入第二个缓冲区（输出不会比输入长，同样大小即可）
+        ByteBuffer converted = ascii ? BufferPool.acquire(ioBufferSize) : null;
+        AsciiMode.Decoder decoder = ascii ? new AsciiMode.Decoder() : null;
         long totalBytes = 0;
-        
-        // 循环接收并写入
-        while ((bytesRead = inputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
-            totalBytes += bytesRead;
+        long start = System.nanoTime();
+        try {
+            // 循环接收并写入，分别统计写文件的耗时
+            while (inputChannel.read(buffer) != -1) {
+                buffer.flip();
+                if (firstByteNanos == 0 && buffer.hasRemaining()) {
+                    firstByteNanos = System.nanoTime();
+                }
+                long writeStart = System.nanoTime();
+                int chunk = buffer.remaining();
+                if (decoder == null) {
+                    writeFully(target, buffer);
+                } else {
+                    while (buffer.hasRemaining()) {
+                        decoder.decode(buffer, converted);
+                        converted.flip();
+                        writeFully(target, converted);
+                        converted.clear();
+                    }
+                }
+                localIoNanos += System.nanoTime() - writeStart;
+                totalBytes += chunk;
+                bytesTransferred += chunk;
+                buffer.clear();
+            }
+            if (decoder != null) {
+                // 最后一个字节是单独的 CR
+                decoder.finish(converted);
+                converted.flip();
+                writeFully(target, converted);
+            }
+        } finally {
+            BufferPool.release(buffer);
+            if (converted != null) {
+                BufferPool.release(converted);
+            }
         }
         
-        outputStream.flush();
+        TransferTuner.recordThroughput(dataSocket.getInetAddress(), totalBytes, System.nanoTime() - start);
         
         System.out.println("[DataConnection] 已接收 " + totalBytes + " 字节");
         return totalBytes;
     }
     
+    /**
+     * 把缓冲区剩余内容全部写到本地文件
+     */
+    private static void writeFully(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+    
+    /**
+     * 把缓冲区剩余内容全部写到数据连接
+     * 
+     * @return 写出的字节数
+     */
+    private int writeFully(ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += outputChannel.write(buffer);
+            if (firstByteNanos == 0 && written > 0) {
+                firstByteNanos = System.nanoTime();
+            }
+        }
+        bytesTransferred += written;
+        return written;
+    }
+    
+    /**
+     * 已发送或接收的字节数（sendText / sendBytes / sendFromChannel / receiveToChannel 累计）
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+    
+    /**
+     * 第一个字节发出或收到的时刻（System.nanoTime），还没有时返回 0
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+    
+    /**
+     * 传输过程中读写本地文件所花的时间（纳秒）
+     */
+    public long getLocalIoNanos() {
+        return localIoNanos;
+    }
+    
     /**
      * 关闭数据连接
      * 
      * 数据传输完成后必须关闭，释放资源
      */
     public void close() {
+        // TLS 连接先关闭 Socket：发送 close_notify 后对端才会把会话留在缓存里，
+        // 先关闭输入流会在未收到对端 close_notify 时中断入站方向，客户端会作废该会话
+        if (tls) {
+            closeSocket();
+        }
         try {
             if (inputStream != null) {
                 inputStream.close();
@@ -199,6 +708,10 @@ public class DataConnection {
             // 忽略关闭错误
         }
         
+        closeSocket();
+    }
+    
+    private void closeSocket() {
         try {
             if (dataSocket != null && !dataSocket.isClosed()) {
                 dataSocket.close();
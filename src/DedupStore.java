@@ -0,0 +1,318 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内容寻址的去重存储（可选，-Dftp.dedup=true 开启）
+ *
+ * 用户经常把同一个发布包、数据集上传到许多目录。开启后 STOR 的流程变为：
+ * 1. 边接收边计算 SHA-256，内容先写到存储区的临时文件
+ * 2. 内容对应的 blob（.ftp-meta/dedup/objects/ab/abcdef...）已存在时丢弃临时文件，
+ *    不存在时把临时文件移动为 blob
+ * 3. 用户看到的文件是 blob 的硬链接，原子地替换到目标位置
+ *
+ * 引用计数直接使用文件系统的硬链接数（nlink）：blob 自身占 1，每个可见文件再加 1。
+ * 内存索引记录 inode（fileKey）→ 内容哈希，启动时扫描 blob 目录重建，无需另行持久化；
+ * 可见文件被 DELE 或被覆盖后，若 blob 的链接数只剩 1 就回收它。
+ * 启动时也会回收所有链接数为 1 的孤立 blob。
+ *
+ * 注意：可见文件与 blob 共享 inode，不能原地改写；所有写入都必须写新文件再替换，
+ * 写入方在覆盖已有文件前应先调用 breakLink。
+ */
+public final class DedupStore {
+
+    /** 存储区在元数据目录下的子目录名 */
+    private static final String STORE_DIR_NAME = "dedup";
+
+    /** 当前启用的实例（未开启时为 null） */
+    private static volatile DedupStore instance;
+
+    private final Path objectsDir;
+    private final Path tempDir;
+
+    /** inode → 内容哈希 */
+    private final Map<Object, String> hashByFileKey = new ConcurrentHashMap<>();
+
+    /** blob 的提交和回收互斥，避免刚确认存在的 blob 在建立链接前被回收 */
+    private final Object lock = new Object();
+
+    private DedupStore(Path storeDir) {
+        this.objectsDir = storeDir.resolve("objects");
+        this.tempDir = storeDir.resolve("tmp");
+    }
+
+    /**
+     * 开启去重存储：创建目录、检查硬链接支持、重建索引并回收孤立 blob
+     *
+     * @param metaDir 元数据目录（PathValidator.getMetaDirectory()）
+     * @return 是否成功开启（文件系统不支持硬链接或 unix:nlink 时返回 false）
+     */
+    public static boolean enable(Path metaDir) {
+        DedupStore store = new DedupStore(metaDir.resolve(STORE_DIR_NAME));
+        try {
+            Files.createDirectories(store.objectsDir);
+            Files.createDirectories(store.tempDir);
+            store.checkSupport();
+            store.rebuildIndex();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("[DedupStore] 无法开启去重存储: " + e.getMessage());
+            return false;
+        }
+        instance = store;
+        return true;
+    }
+
+    /**
+     * 当前启用的实例，未开启时返回 null
+     */
+    public static DedupStore instance() {
+        return instance;
+    }
+
+    /**
+     * 如果 path 是某个 blob 的硬链接，先删除它，避免后续原地写入改动共享内容
+     * 去重未开启或 path 不存在时什么也不做
+     */
+    public static void breakLink(Path path) throws IOException {
+        DedupStore store = instance;
+        if (store == null || !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Object key = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        if (key != null && store.hashByFileKey.containsKey(key)) {
+            Files.delete(path);
+            store.released(key);
+        }
+    }
+
+    /**
+     * 一次上传：临时文件 + 边写边计算哈希的 Channel
+     */
+    public final class Upload implements WritableByteChannel {
+        private final Path tempFile;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size = 0;
+
+        private Upload() throws IOException {
+            this.tempFile = Files.createTempFile(tempDir, "upload-", ".tmp");
+            this.channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 不可用", e);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            // 先用副本更新摘要（不移动 src 的位置），再写入文件
+            ByteBuffer view = src.duplicate();
+            int written = channel.write(src);
+            view.limit(view.position() + written);
+            digest.update(view);
+            size += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * 放弃本次上传，删除临时文件
+         */
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                System.err.println("[DedupStore] 无法删除临时文件 " + tempFile + ": " + e.getMessage());
+            }
+        }
+
+        public long size() {
+            return size;
+        }
+    }
+
+    /**
+     * 开始一次上传
+     */
+    public Upload begin() throws IOException {
+        return new Upload();
+    }
+
+    /**
+     * 完成上传：把内容存入 blob，并让 target 成为 blob 的硬链接
+     *
+     * @param upload 已写完的上传
+     * @param target 用户可见的目标文件
+     * @return true 表示内容已存在（去重命中），false 表示新 blob
+     * @throws IOException 文件操作失败（此时临时文件已删除，target 保持原样）
+     */
+    public boolean commit(Upload upload, Path target) throws IOException {
+        upload.close();
+        String hash = toHex(upload.digest.digest());
+        Path blob = blobPath(hash);
+        Path linkTemp = target.resolveSibling("." + target.getFileName() + ".dedup-" + System.nanoTime());
+
+        // 记录被覆盖文件的 inode，替换后检查它的 blob 是否还被引用
+        Object replacedKey = null;
+        if (Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+            replacedKey = Files.readAttributes(target, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        }
+
+        boolean hit;
+        try {
+            synchronized (lock) {
+                Files.createDirectories(blob.getParent());
+                if (Files.exists(blob)) {
+                    hit = true;
+                    Files.delete(upload.tempFile);
+                } else {
+                    hit = false;
+                    Files.move(upload.tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+                    hashByFileKey.put(fileKey(blob), hash);
+                }
+                // 先在目标目录建立临时链接，再原子替换，读者不会看到缺失的文件
+                Files.createLink(linkTemp, blob);
+            }
+            Files.move(linkTemp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            upload.abort();
+            Files.deleteIfExists(linkTemp);
+            throw e;
+        }
+
+        if (replacedKey != null) {
+            released(replacedKey);
+        }
+
+        if (hit) {
+            ServerMetrics.increment("dedup.hit");
+            ServerMetrics.add("dedup.bytesSaved", upload.size);
+        } else {
+            ServerMetrics.increment("dedup.miss");
+            ServerMetrics.add("dedup.bytesStored", upload.size);
+        }
+        return hit;
+    }
+
+    /**
+     * 一个可见文件被删除或替换之后调用：blob 不再被引用时回收
+     *
+     * @param fileKey 被删除文件删除前的 fileKey
+     */
+    public void released(Object fileKey) {
+        String hash = fileKey == null ? null : hashByFileKey.get(fileKey);
+        if (hash == null) {
+            return;
+        }
+        Path blob = blobPath(hash);
+        synchronized (lock) {
+            try {
+                if (linkCount(blob) <= 1) {
+                    Files.deleteIfExists(blob);
+                    hashByFileKey.remove(fileKey);
+                    ServerMetrics.increment("dedup.reclaimed");
+                    System.out.println("[DedupStore] 已回收 blob " + hash);
+                }
+            } catch (IOException e) {
+                System.err.println("[DedupStore] 回收 blob 失败 " + hash + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 扫描 blob 目录，重建 inode → 哈希索引，回收孤立 blob，清理残留临时文件
+     */
+    private void rebuildIndex() throws IOException {
+        int blobs = 0;
+        int reclaimed = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(objectsDir)) {
+            for (Path shard : shards) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard)) {
+                    for (Path blob : stream) {
+                        if (linkCount(blob) <= 1) {
+                            Files.delete(blob);
+                            reclaimed++;
+                        } else {
+                            hashByFileKey.put(fileKey(blob), blob.getFileName().toString());
+                            blobs++;
+                        }
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDir)) {
+            for (Path temp : stream) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        System.out.println("[DedupStore] 去重存储已开启，blob 数=" + blobs + "，回收孤立 blob " + reclaimed + " 个");
+    }
+
+    /**
+     * 检查文件系统是否支持硬链接和 unix:nlink 属性
+     */
+    private void checkSupport() throws IOException {
+        Path probe = Files.createTempFile(tempDir, "probe-", ".tmp");
+        Path link = tempDir.resolve(probe.getFileName() + ".link");
+        try {
+            Files.createLink(link, probe);
+            if (linkCount(probe) != 2) {
+                throw new IOException("硬链接计数不可用");
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException("无法创建探测链接", e);
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(probe);
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return objectsDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static int linkCount(Path path) throws IOException {
+        return (Integer) Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,623 @@
+package data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * 差异传输（rsync 算法）
+ *
+ * 大文件每次只改动一小部分时，只传输改动的内容：
+ * 1. 接收方把旧版本按固定大小分块，每块算一个弱校验（可滚动）和一个强校验（SHA-256 前 16 字节），即签名
+ * 2. 发送方拿到签名后逐字节滑动窗口：弱校验命中且强校验相同的位置输出"复制第 i 块"，
+ *    其余内容原样输出为字面数据
+ * 3. 接收方按指令从旧版本复制块、写入字面数据，得到新版本，最后用整个文件的 SHA-256 校验
+ *
+ * 签名格式（大端）：
+ *   int 魔数 'FDS1' | int 块大小 | long 文件大小 | int 块数 | 每块 int 弱校验 + 16 字节强校验
+ * 差异格式（大端）：
+ *   int 魔数 'FDD1' | int 块大小 | long 新文件大小 | 指令... | 'E' + 32 字节 SHA-256
+ *   指令：'C' int 起始块 int 块数（复制连续的块）；'L' int 长度 + 数据（字面数据）
+ *
+ * 服务器上的签名用 ForkJoin 并行计算，按（路径、文件大小、修改时间、块大小）缓存，
+ * 同一个文件再次同步时不必重新读一遍。
+ *
+ * 计算签名、扫描新版本、从旧版本复制块时网络上可能很久没有数据，
+ * 这些本地读写的字节数通过 progress 回调报告，传输速率监控据此判断传输仍在进行。
+ *
+ * 配置：
+ *   -Dftp.delta.blockSize=65536     默认块大小（客户端可以在命令中指定）
+ *   -Dftp.delta.cacheEntries=32     缓存的签名个数
+ *
+ * 指标：delta.sig.cacheHit / delta.sig.computed / delta.copiedBytes / delta.literalBytes
+ */
+public final class DeltaSync {
+
+    public static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("ftp.delta.blockSize", 64 * 1024);
+
+    public static final int MIN_BLOCK_SIZE = 1024;
+
+    public static final int MAX_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    private static final int MAX_CACHE_ENTRIES = Integer.getInteger("ftp.delta.cacheEntries", 32);
+
+    private static final int SIGNATURE_MAGIC = 0x46445331;  // "FDS1"
+
+    private static final int DELTA_MAGIC = 0x46444431;      // "FDD1"
+
+    private static final int STRONG_BYTES = 16;
+
+    /** 单条字面数据指令的最大长度 */
+    private static final int MAX_LITERAL = 1024 * 1024;
+
+    /** 签名最多的块数 */
+    private static final int MAX_BLOCKS = 16 * 1024 * 1024;
+
+    /**
+     * 客户端发来的签名在"服务器文件按最小块大小分块的块数"之外最多再多出的块数
+     * （防止客户端声明一个超大的签名占满内存，旧版本比服务器文件大很多时应使用更大的块）
+     */
+    private static final int BASIS_EXTRA_BLOCKS = 1024;
+
+    /** 每个并行任务负责的连续块数 */
+    private static final int BLOCKS_PER_TASK = 256;
+
+    /** 签名计算线程池：以读文件和哈希为主，线程数取 CPU 核数 */
+    private static final ForkJoinPool SIGN_POOL =
+        new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private static final Map<Path, Signature> CACHE = new ConcurrentHashMap<>();
+
+    private DeltaSync() {
+    }
+
+    /**
+     * 规范化客户端指定的块大小（无效时使用默认值）
+     */
+    public static int blockSize(String arg) {
+        try {
+            int size = Integer.parseInt(arg);
+            return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+        } catch (NumberFormatException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * 一个文件的块签名
+     */
+    public static final class Signature {
+        final int blockSize;
+        final long fileSize;
+        final int[] weak;
+        final byte[] strong;
+        /** 缓存校验用：文件的修改时间和 fileKey */
+        final long modifiedMillis;
+        final Object fileKey;
+
+        Signature(int blockSize, long fileSize, int[] weak, byte[] strong, long modifiedMillis, Object fileKey) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+            this.weak = weak;
+            this.strong = strong;
+            this.modifiedMillis = modifiedMillis;
+            this.fileKey = fileKey;
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+
+        /** 第 index 块的实际长度（最后一块可能不满） */
+        int blockLength(int index) {
+            return (int) Math.min(blockSize, fileSize - (long) index * blockSize);
+        }
+
+        boolean strongEquals(int index, byte[] digest) {
+            return Arrays.equals(strong, index * STRONG_BYTES, (index + 1) * STRONG_BYTES,
+                digest, 0, STRONG_BYTES);
+        }
+
+        /**
+         * 写出签名
+         */
+        public void writeTo(OutputStream output) throws IOException {
+            DataOutputStream out = new DataOutputStream(output);
+            out.writeInt(SIGNATURE_MAGIC);
+            out.writeInt(blockSize);
+            out.writeLong(fileSize);
+            out.writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                out.writeInt(weak[i]);
+                out.write(strong, i * STRONG_BYTES, STRONG_BYTES);
+            }
+            out.flush();
+        }
+
+        /**
+         * 读取对方发来的签名（只读取签名本身的长度，不依赖流结束）
+         *
+         * @param serverFileSize 服务器上对应文件的大小，用来限制签名的块数
+         */
+        public static Signature readFrom(InputStream input, long serverFileSize) throws IOException {
+            DataInputStream in = new DataInputStream(input);
+            if (in.readInt() != SIGNATURE_MAGIC) {
+                throw new IOException("签名格式错误");
+            }
+            int blockSize = in.readInt();
+            long fileSize = in.readLong();
+            int count = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || fileSize < 0
+                    || count < 0 || count != (fileSize + blockSize - 1) / blockSize) {
+                throw new IOException("签名格式错误");
+            }
+            long maxBlocks = Math.min(MAX_BLOCKS, serverFileSize / MIN_BLOCK_SIZE + BASIS_EXTRA_BLOCKS);
+            if (count > maxBlocks) {
+                throw new IOException("签名的块数过多（" + count + "），请使用更大的块");
+            }
+            int[] weak = new int[count];
+            byte[] strong = new byte[count * STRONG_BYTES];
+            for (int i = 0; i < count; i++) {
+                weak[i] = in.readInt();
+                in.readFully(strong, i * STRONG_BYTES, STRONG_BYTES);
+            }
+            return new Signature(blockSize, fileSize, weak, strong, -1, null);
+        }
+    }
+
+    // ==================== 签名 ====================
+
+    /**
+     * 取得文件的签名（优先使用缓存）
+     *
+     * @param progress 重新计算时报告已读取的字节数（可能在多个线程中调用）
+     */
+    public static Signature signature(Path file, int blockSize, LongConsumer progress) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        Signature cached = CACHE.get(file);
+        if (cached != null && cached.blockSize == blockSize && cached.fileSize == attrs.size()
+                && cached.modifiedMillis == modified && Objects.equals(cached.fileKey, attrs.fileKey())) {
+            ServerMetrics.increment("delta.sig.cacheHit");
+            return cached;
+        }
+
+        long start = System.nanoTime();
+        Signature computed = compute(file, blockSize, attrs.size(), modified, attrs.fileKey(), progress);
+        ServerMetrics.increment("delta.sig.computed");
+        ServerMetrics.recordLatency("delta.sig.duration", System.nanoTime() - start);
+
+        if (CACHE.size() >= MAX_CACHE_ENTRIES) {
+            // 超出上限时随便淘汰一个，签名重新计算的代价只是读一遍文件
+            CACHE.keySet().stream().findAny().ifPresent(CACHE::remove);
+        }
+        CACHE.put(file, computed);
+        return computed;
+    }
+
+    /**
+     * 并行计算签名：每个任务负责一段连续的块，各自定位读取
+     */
+    private static Signature compute(Path file, int blockSize, long fileSize, long modified, Object fileKey,
+                                     LongConsumer progress) throws IOException {
+        long count = (fileSize + blockSize - 1) / blockSize;
+        if (count > MAX_BLOCKS) {
+            throw new IOException("文件过大，请使用更大的块");
+        }
+        int blocks = (int) count;
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_BYTES];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int first = 0; first < blocks; first += BLOCKS_PER_TASK) {
+                int from = first;
+                int to = Math.min(blocks, first + BLOCKS_PER_TASK);
+                tasks.add(() -> {
+                    MessageDigest digest = sha256();
+                    byte[] block = new byte[blockSize];
+                    for (int i = from; i < to; i++) {
+                        int length = (int) Math.min(blockSize, fileSize - (long) i * blockSize);
+                        readFully(channel, ByteBuffer.wrap(block, 0, length), (long) i * blockSize);
+                        weak[i] = weakChecksum(block, 0, length);
+                        digest.update(block, 0, length);
+                        System.arraycopy(digest.digest(), 0, strong, i * STRONG_BYTES, STRONG_BYTES);
+                        progress.accept(length);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> done : SIGN_POOL.invokeAll(tasks)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("签名计算被中断");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                : new IOException("签名计算失败", e.getCause());
+        }
+        return new Signature(blockSize, fileSize, weak, strong, modified, fileKey);
+    }
+
+    // ==================== 生成差异 ====================
+
+    /**
+     * 根据对方旧版本的签名，生成把旧版本变成 newFile 的差异
+     *
+     * @param progress 报告从 newFile 读取的字节数
+     * @return 发送的字面数据字节数
+     */
+    public static long writeDelta(Path newFile, Signature basis, OutputStream output, LongConsumer progress)
+            throws IOException {
+        WeakIndex index = new WeakIndex(basis);
+        int blockSize = basis.blockSize;
+        MessageDigest digest = sha256();
+        DeltaWriter out = new DeltaWriter(output);
+
+        try (FileChannel channel = FileChannel.open(newFile, StandardOpenOption.READ)) {
+            out.header(blockSize, channel.size());
+
+            // buf 中 [start, start + windowLength) 是当前窗口，[literalStart, start) 是尚未发出的字面数据
+            byte[] buf = new byte[Math.max(blockSize * 2, blockSize + 256 * 1024)];
+            int limit = 0;
+            int start = 0;
+            int literalStart = 0;
+            boolean eof = false;
+            int a = 0;
+            int b = 0;
+            boolean haveChecksum = false;
+
+            while (true) {
+                // 窗口之后没有可滚入的字节：先发出字面数据、整理缓冲区，再从文件补充
+                if (!eof && limit - start <= blockSize) {
+                    out.literal(buf, literalStart, start - literalStart);
+                    System.arraycopy(buf, start, buf, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                    literalStart = 0;
+                    while (limit < buf.length) {
+                        int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        digest.update(buf, limit, n);
+                        limit += n;
+                        progress.accept(n);
+                    }
+                }
+
+                int windowLength = Math.min(blockSize, limit - start);
+                if (windowLength == 0) {
+                    break;
+                }
+                if (!haveChecksum) {
+                    int sum = weakChecksum(buf, start, windowLength);
+                    a = sum & 0xFFFF;
+                    b = sum >>> 16;
+                    haveChecksum = true;
+                }
+
+                int match = findBlock(basis, index, (b << 16) | a, buf, start, windowLength);
+                if (match >= 0) {
+                    out.literal(buf, literalStart, start - literalStart);
+                    out.copy(match);
+                    start += windowLength;
+                    literalStart = start;
+                    haveChecksum = false;
+                    continue;
+                }
+
+                // 未命中：窗口右移一个字节；已到文件末尾时剩余部分全部作为字面数据
+                if (windowLength < blockSize || start + windowLength >= limit) {
+                    break;
+                }
+                int out8 = buf[start] & 0xFF;
+                int in8 = buf[start + windowLength] & 0xFF;
+                a = (a - out8 + in8) & 0xFFFF;
+                b = (b - windowLength * out8 + a) & 0xFFFF;
+                start++;
+                // 单条字面数据不超过上限
+                if (start - literalStart >= MAX_LITERAL) {
+                    out.literal(buf, literalStart, start - literalStart);
+                    literalStart = start;
+                }
+            }
+            out.literal(buf, literalStart, limit - literalStart);
+        }
+        out.end(digest.digest());
+        ServerMetrics.add("delta.copiedBytes", out.copiedBlocks * (long) blockSize);
+        ServerMetrics.add("delta.literalBytes", out.literalBytes);
+        return out.literalBytes;
+    }
+
+    /**
+     * 弱校验到块号的索引（同一个弱校验可能对应多个块）
+     *
+     * 滑动窗口每移动一个字节查一次，所以不用 HashMap（每次查找都要装箱一个 Integer）：
+     * 开放寻址的 int 表，槽位存弱校验和该弱校验的第一个块号，相同弱校验的其余块用 next 串起来。
+     * 表的大小至少是块数的两倍，未命中的查找平均只看一两个槽位。
+     */
+    private static final class WeakIndex {
+        /** 槽位中的弱校验 */
+        final int[] keys;
+        /** 槽位中第一个块号 + 1，0 表示空槽位 */
+        final int[] heads;
+        /** 与第 i 块弱校验相同的下一个块号，-1 表示没有 */
+        final int[] next;
+        final int mask;
+
+        WeakIndex(Signature basis) {
+            int count = basis.blockCount();
+            int capacity = Integer.highestOneBit(Math.max(4, count) * 2 - 1) << 1;
+            keys = new int[capacity];
+            heads = new int[capacity];
+            next = new int[count];
+            mask = capacity - 1;
+            // 倒序插入，链表中的块号从小到大
+            for (int i = count - 1; i >= 0; i--) {
+                int weak = basis.weak[i];
+                int slot = slot(weak);
+                if (heads[slot] == 0) {
+                    keys[slot] = weak;
+                    next[i] = -1;
+                } else {
+                    next[i] = heads[slot] - 1;
+                }
+                heads[slot] = i + 1;
+            }
+        }
+
+        /** 弱校验所在的槽位（或应该放入的空槽位） */
+        private int slot(int weak) {
+            int slot = mix(weak) & mask;
+            while (heads[slot] != 0 && keys[slot] != weak) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /** 第一个弱校验相同的块号，没有时返回 -1 */
+        int first(int weak) {
+            return heads[slot(weak)] - 1;
+        }
+
+        /** 弱校验的低 16 位是字节和，分布很不均匀，打散后再取槽位 */
+        private static int mix(int weak) {
+            int h = weak * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * 在签名中查找与窗口内容相同的块，没有时返回 -1
+     * 弱校验命中后才计算强校验
+     */
+    private static int findBlock(Signature basis, WeakIndex index, int weak,
+                                 byte[] buf, int offset, int length) {
+        byte[] strong = null;
+        for (int candidate = index.first(weak); candidate >= 0; candidate = index.next[candidate]) {
+            if (basis.blockLength(candidate) != length) {
+                continue;
+            }
+            if (strong == null) {
+                MessageDigest digest = sha256();
+                digest.update(buf, offset, length);
+                strong = digest.digest();
+            }
+            if (basis.strongEquals(candidate, strong)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 差异输出：相邻的复制指令合并为一条
+     */
+    private static final class DeltaWriter {
+        final DataOutputStream out;
+        int pendingFirst = -1;
+        int pendingCount = 0;
+        long copiedBlocks = 0;
+        long literalBytes = 0;
+
+        DeltaWriter(OutputStream output) {
+            this.out = new DataOutputStream(output);
+        }
+
+        void header(int blockSize, long newSize) throws IOException {
+            out.writeInt(DELTA_MAGIC);
+            out.writeInt(blockSize);
+            out.writeLong(newSize);
+        }
+
+        void copy(int block) throws IOException {
+            copiedBlocks++;
+            if (pendingCount > 0 && pendingFirst + pendingCount == block) {
+                pendingCount++;
+                return;
+            }
+            flushCopy();
+            pendingFirst = block;
+            pendingCount = 1;
+        }
+
+        void literal(byte[] data, int offset, int length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+            flushCopy();
+            // 单条字面数据不超过 MAX_LITERAL
+            for (int done = 0; done < length; ) {
+                int n = Math.min(MAX_LITERAL, length - done);
+                out.writeByte('L');
+                out.writeInt(n);
+                out.write(data, offset + done, n);
+                done += n;
+            }
+            literalBytes += length;
+        }
+
+        void end(byte[] sha256) throws IOException {
+            flushCopy();
+            out.writeByte('E');
+            out.write(sha256);
+            out.flush();
+        }
+
+        private void flushCopy() throws IOException {
+            if (pendingCount > 0) {
+                out.writeByte('C');
+                out.writeInt(pendingFirst);
+                out.writeInt(pendingCount);
+                pendingCount = 0;
+            }
+        }
+    }
+
+    // ==================== 应用差异 ====================
+
+    /**
+     * 按差异指令把 basis 重建为新版本，写入 target
+     * 指令无效或结果的 SHA-256 不一致时抛出异常（target 中的内容不可用）
+     *
+     * @param progress 报告从 basis 复制的字节数（字面数据已经计入数据连接）
+     * @return 新版本的大小
+     */
+    public static long applyDelta(Path basis, InputStream input, FileChannel target, LongConsumer progress)
+            throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != DELTA_MAGIC) {
+            throw new IOException("差异格式错误");
+        }
+        int blockSize = in.readInt();
+        long expectedSize = in.readLong();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || expectedSize < 0) {
+            throw new IOException("差异格式错误");
+        }
+
+        MessageDigest digest = sha256();
+        byte[] buf = new byte[Math.max(blockSize, 64 * 1024)];
+        long written = 0;
+        try (FileChannel source = FileChannel.open(basis, StandardOpenOption.READ)) {
+            long basisSize = source.size();
+            while (true) {
+                int op;
+                try {
+                    op = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    throw new IOException("差异数据不完整");
+                }
+                if (op == 'E') {
+                    break;
+                }
+                if (op == 'C') {
+                    long first = in.readInt();
+                    long count = in.readInt();
+                    long offset = first * blockSize;
+                    long end = Math.min(basisSize, offset + count * blockSize);
+                    if (first < 0 || count <= 0 || offset >= basisSize) {
+                        throw new IOException("差异数据无效：块号越界");
+                    }
+                    while (offset < end) {
+                        int length = (int) Math.min(buf.length, end - offset);
+                        readFully(source, ByteBuffer.wrap(buf, 0, length), offset);
+                        digest.update(buf, 0, length);
+                        writeFully(target, ByteBuffer.wrap(buf, 0, length));
+                        offset += length;
+                        written += length;
+                        progress.accept(length);
+                    }
+                } else if (op == 'L') {
+                    int remaining = in.readInt();
+                    if (remaining <= 0 || remaining > MAX_LITERAL) {
+                        throw new IOException("差异数据无效：字面数据长度 " + remaining);
+                    }
+                    while (remaining > 0) {
+                        int length = Math.min(buf.length, remaining);
+                        in.readFully(buf, 0, length);
+                        digest.update(buf, 0, length);
+                        writeFully(target, ByteBuffer.wrap(buf, 0, length));
+                        remaining -= length;
+                        written += length;
+                    }
+                } else {
+                    throw new IOException("差异数据无效：未知指令 " + op);
+                }
+                if (written > expectedSize) {
+                    throw new IOException("差异数据无效：超出声明的大小");
+                }
+            }
+        }
+
+        byte[] expected = new byte[32];
+        in.readFully(expected);
+        if (written != expectedSize || !MessageDigest.isEqual(expected, digest.digest())) {
+            throw new IOException("重建结果校验失败");
+        }
+        return written;
+    }
+
+    // ==================== 工具 ====================
+
+    /**
+     * rsync 的弱校验：低 16 位是字节和，高 16 位是前缀和之和，可以按字节滚动更新
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xFF;
+            b += a;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 不可用", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("文件在读取过程中被截短");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package data;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 目录列表工具类
+ *
+ * 作用：
+ * 1. 把文件属性格式化为 Unix ls -l 风格的一行
+ * 2. 递归列出目录树（LIST -R / NLST -R）
+ *
+ * 递归列表使用 ForkJoin 并行遍历：每个目录一个任务，读完自己的条目后
+ * 为子目录 fork 新任务。输出线程按先序（目录本身 → 子目录按名称排序）依次等待
+ * 各任务完成并写出，所以输出顺序是固定的，同时后面的目录已经在并行读取。
+ */
+public class DirectoryLister {
+
+    /** 递归的最大深度 */
+    public static final int MAX_DEPTH = Integer.getInteger("ftp.list.maxDepth", 32);
+
+    /** 一次递归列表最多输出的条目数 */
+    public static final int MAX_ENTRIES = Integer.getInteger("ftp.list.maxEntries", 200000);
+
+    /** 目录遍历线程池：遍历以 I/O 为主，线程数取 CPU 核数的 2 倍 */
+    private static final ForkJoinPool WALK_POOL =
+        new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun",
+        "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    /**
+     * 输出目标（通常是数据连接的 sendText）
+     */
+    public interface BlockSink {
+        void accept(String text) throws IOException;
+    }
+
+    /**
+     * 一行的格式
+     */
+    public enum Format {
+        /** ls -l 风格（LIST） */
+        LONG,
+        /** 只有文件名（NLST） */
+        NAMES
+    }
+
+    private DirectoryLister() {
+    }
+
+    /**
+     * 构建 Unix ls -l 格式的一行
+     * 格式: drwxr-xr-x 1 owner group size month day time filename
+     *
+     * @param filename 文件名
+     * @param attrs 文件属性（一次 readAttributes 取得，不再分别调用 isDirectory / size）
+     * @return 以 \r\n 结尾的一行
+     */
+    public static String formatEntry(String filename, BasicFileAttributes attrs) {
+        return appendEntry(new StringBuilder(64), filename, attrs).toString();
+    }
+
+    /**
+     * 把 ls -l 格式的一行追加到 sb（LIST 逐条调用，不经过 String.format）
+     * 输出与 "%s %3d %-8s %-8s %8d %s %2d %02d:%02d %s\r\n" 相同
+     *
+     * @return sb
+     */
+    public static StringBuilder appendEntry(StringBuilder sb, String filename, BasicFileAttributes attrs) {
+        boolean isDirectory = attrs.isDirectory();
+        long size = isDirectory ? 0 : attrs.size();
+
+        // 格式化时间为 "Jan 14 16:00" 格式
+        LocalDateTime dateTime = LocalDateTime.ofInstant(
+            attrs.lastModifiedTime().toInstant(),
+            ZoneId.systemDefault()
+        );
+
+        // 权限、链接数、所有者、组都是固定的
+        sb.append(isDirectory ? "drwxr-xr-x   1 owner    group    " : "-rw-r--r--   1 owner    group    ");
+        for (int width = decimalLength(size); width < 8; width++) {
+            sb.append(' ');
+        }
+        sb.append(size).append(' ');
+
+        int day = dateTime.getDayOfMonth();
+        int hour = dateTime.getHour();
+        int minute = dateTime.getMinute();
+        sb.append(MONTHS[dateTime.getMonthValue() - 1]).append(' ');
+        if (day < 10) {
+            sb.append(' ');
+        }
+        sb.append(day).append(' ');
+        sb.append((char) ('0' + hour / 10)).append((char) ('0' + hour % 10)).append(':');
+        sb.append((char) ('0' + minute / 10)).append((char) ('0' + minute % 10)).append(' ');
+        return sb.append(filename).append("\r\n");
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 递归列出目录树
+     *
+     * LONG 格式与 ls -lR 相同：每个目录先输出 "路径:" 标题行，再输出条目，目录之间空一行。
+     * NAMES 格式每行一个相对路径（如 "sub/a.txt"）。
+     * 符号链接不会被跟随，所有路径都保证位于 root 之内。
+     *
+     * @param root FTP 根目录（PathValidator.getRootDirectory()）
+     * @param dir 要列出的目录（已经过 PathValidator 校验）
+     * @param format 行格式
+     * @param sink 输出目标
+     * @return true 表示完整列出，false 表示因深度或条目数限制被截断
+     * @throws IOException 如果输出失败
+     */
+    public static boolean listRecursive(Path root, Path dir, Format format, BlockSink sink) throws IOException {
+        WalkState state = new WalkState(root, format);
+        DirTask top = new DirTask(state, dir, ".", 0);
+        WALK_POOL.execute(top);
+
+        try {
+            emit(top, sink);
+        } finally {
+            // 输出失败（如客户端断开）时让尚未开始的任务尽快结束
+            state.cancelled.set(true);
+        }
+        ServerMetrics.increment("list.recursive.count");
+        ServerMetrics.add("list.recursive.entries", state.entryCount.get());
+        if (state.truncated.get()) {
+            ServerMetrics.increment("list.recursive.truncated");
+        }
+        return !state.truncated.get();
+    }
+
+    /**
+     * 按先序输出：等待当前目录完成 → 输出 → 依次输出各子目录
+     */
+    private static void emit(DirTask task, BlockSink sink) throws IOException {
+        task.join();
+        if (task.block.length() > 0) {
+            sink.accept(task.block);
+        }
+        for (DirTask child : task.children) {
+            emit(child, sink);
+        }
+    }
+
+    /**
+     * 一次递归列表共享的状态
+     */
+    private static final class WalkState {
+        final Path root;
+        final Format format;
+        final AtomicInteger entryCount = new AtomicInteger();
+        final AtomicBoolean truncated = new AtomicBoolean();
+        final AtomicBoolean cancelled = new AtomicBoolean();
+
+        WalkState(Path root, Format format) {
+            this.root = root;
+            this.format = format;
+        }
+    }
+
+    /**
+     * 单个目录的遍历任务
+     */
+    private static final class DirTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final WalkState state;
+        private final Path dir;
+        private final String label;
+        private final int depth;
+
+        /** 本目录的输出文本 */
+        String block = "";
+
+        /** 子目录任务（按名称排序） */
+        final List<DirTask> children = new ArrayList<>();
+
+        DirTask(WalkState state, Path dir, String label, int depth) {
+            this.state = state;
+            this.dir = dir;
+            this.label = label;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (state.cancelled.get()) {
+                return;
+            }
+
+            // 1. 读取条目并按名称排序，保证输出顺序稳定
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+            } catch (IOException | SecurityException e) {
+                System.err.println("[DirectoryLister] 无法读取目录 " + dir + ": " + e.getMessage());
+                return;
+            }
+            entries.sort(Comparator.comparing(p -> p.getFileName().toString()));
+
+            StringBuilder sb = new StringBuilder();
+            if (state.format == Format.LONG) {
+                if (depth > 0) {
+                    sb.append("\r\n");
+                }
+                sb.append(label).append(":\r\n");
+            }
+
+            // 2. 格式化每个条目，子目录创建新任务
+            for (Path entry : entries) {
+                if (PathValidator.isMetaPath(state.root, entry)) {
+                    continue;
+                }
+                if (state.entryCount.incrementAndGet() > MAX_ENTRIES) {
+                    state.truncated.set(true);
+                    break;
+                }
+
+                // 不跟随符号链接，避免链接指向根目录之外或形成环
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    continue;
+                }
+
+                String name = entry.getFileName().toString();
+                String childLabel = label.equals(".") ? name : label + "/" + name;
+                if (state.format == Format.LONG) {
+                    appendEntry(sb, name, attrs);
+                } else {
+                    sb.append(childLabel.startsWith("./") ? childLabel.substring(2) : childLabel).append("\r\n");
+                }
+
+                if (attrs.isDirectory() && entry.normalize().startsWith(state.root)) {
+                    if (depth + 1 > MAX_DEPTH) {
+                        state.truncated.set(true);
+                    } else {
+                        String subLabel = label.equals(".") ? "./" + name : childLabel;
+                        children.add(new DirTask(state, entry, subLabel, depth + 1));
+                    }
+                }
+            }
+            block = sb.toString();
+
+            // 3. 子目录任务并行执行，不在这里等待，由输出线程按顺序 join
+            for (DirTask child : children) {
+                child.fork();
+            }
+        }
+    }
+}
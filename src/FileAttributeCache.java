@@ -0,0 +1,123 @@
+package data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 文件属性缓存（所有会话共享）
+ *
+ * 客户端几乎在每次 RETR 前都会先发 SIZE / MDTM 判断是否需要下载，
+ * 轮询型客户端会反复查询同一批文件。这里按解析后的 Path 缓存 BasicFileAttributes：
+ * 1. 条目在 TTL（默认 2 秒）后过期，重新读取
+ * 2. 本服务器的写操作（STOR/DELE/MKD 等）会立即使对应条目失效
+ * 3. 条目数有上限，超出时先清理过期条目，仍然超出则随机淘汰一部分
+ *
+ * 读取属性和失效可能同时发生：invalidate 之前开始的读取可能拿到旧属性。
+ * 每个路径按哈希落在一个失效计数上，invalidate 先加计数再删条目；
+ * 读取完成后只有计数没变才写入缓存，旧属性不会覆盖掉刚做的失效。
+ *
+ * 指标：attrCache.hit / attrCache.miss / attrCache.evicted
+ */
+public final class FileAttributeCache {
+
+    /** 条目有效期，可通过 -Dftp.attrCache.ttlMillis 调整 */
+    private static final long TTL_NANOS = Long.getLong("ftp.attrCache.ttlMillis", 2000L) * 1_000_000L;
+
+    /** 最多缓存的条目数 */
+    private static final int MAX_ENTRIES = Integer.getInteger("ftp.attrCache.maxEntries", 10000);
+
+    private static final Map<Path, Entry> CACHE = new ConcurrentHashMap<>();
+
+    /** 失效计数的分组数（2 的幂） */
+    private static final int STRIPES = 64;
+
+    /** 各分组的失效计数 */
+    private static final AtomicLongArray GENERATIONS = new AtomicLongArray(STRIPES);
+
+    /**
+     * 缓存条目
+     */
+    private static final class Entry {
+        final BasicFileAttributes attrs;
+        final long loadedAt;
+
+        Entry(BasicFileAttributes attrs, long loadedAt) {
+            this.attrs = attrs;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private FileAttributeCache() {
+    }
+
+    /**
+     * 读取文件属性（优先使用缓存）
+     *
+     * @param path 已经过 PathValidator 校验的路径
+     * @return 文件属性
+     * @throws IOException 文件不存在或无法读取（不会被缓存）
+     */
+    public static BasicFileAttributes get(Path path) throws IOException {
+        long now = System.nanoTime();
+        Entry entry = CACHE.get(path);
+        if (entry != null && now - entry.loadedAt < TTL_NANOS) {
+            ServerMetrics.increment("attrCache.hit");
+            return entry.attrs;
+        }
+
+        ServerMetrics.increment("attrCache.miss");
+        int stripe = stripe(path);
+        long generation = GENERATIONS.get(stripe);
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (CACHE.size() >= MAX_ENTRIES) {
+            evict(now);
+        }
+        // 读取期间有过失效：结果照常返回，但不写入缓存
+        Entry loaded = new Entry(attrs, now);
+        CACHE.compute(path, (k, old) -> GENERATIONS.get(stripe) == generation ? loaded : old);
+        return attrs;
+    }
+
+    /**
+     * 使某个路径的缓存失效（写操作之后调用）
+     */
+    public static void invalidate(Path path) {
+        if (path != null) {
+            GENERATIONS.incrementAndGet(stripe(path));
+            CACHE.remove(path);
+        }
+    }
+
+    private static int stripe(Path path) {
+        int h = path.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * 清理缓存：先删过期条目，仍超过上限的 90% 则继续淘汰
+     */
+    private static void evict(long now) {
+        int removed = 0;
+        Iterator<Entry> it = CACHE.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().loadedAt >= TTL_NANOS) {
+                it.remove();
+                removed++;
+            }
+        }
+        int target = MAX_ENTRIES * 9 / 10;
+        it = CACHE.values().iterator();
+        while (CACHE.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+            removed++;
+        }
+        ServerMetrics.add("attrCache.evicted", removed);
+    }
+}
@@ -0,0 +1,554 @@
+package data;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内存中的文件名索引（SITE FIND）
+ *
+ * 结构是一棵按路径分段的树：每个节点只保存本级名字（字符串驻留，同名的段只存一份）
+ * 和按名字排序的子节点数组。子节点数组写时复制，查找不加锁。
+ *
+ * 索引的维护：
+ * 1. 启动时在后台用 ForkJoin 并行遍历整棵目录树
+ * 2. 每个目录注册 WatchService，外部（如直接在服务器上操作）的增删由监听线程同步
+ * 3. 服务器自己的写操作（STOR / DELE / MKD / RNTO 等）直接调用 added / removed，
+ *    不必等待文件系统事件
+ * 事件丢失（OVERFLOW）时重新扫描对应目录。
+ *
+ * 默认开启，-Dftp.index=false 关闭。
+ */
+public final class FileIndex {
+
+    /** 最多注册的目录监听数（受 inotify max_user_watches 限制），超出的目录只靠服务器自己的写操作维护 */
+    private static final int MAX_WATCHES = Integer.getInteger("ftp.index.maxWatches", 65536);
+
+    /** SITE FIND 每累积这么多字符就发送一次 */
+    private static final int CHUNK_CHARS = 32 * 1024;
+
+    /** 遍历线程池（遍历以 I/O 为主，线程数取 CPU 核数的 2 倍） */
+    private static final ForkJoinPool WALK_POOL =
+        new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final Comparator<Node> BY_NAME = Comparator.comparing(n -> n.name);
+
+    /** 当前启用的实例（未开启时为 null） */
+    private static volatile FileIndex instance;
+
+    /**
+     * 树中的一个节点
+     */
+    private static final class Node {
+        final String name;
+        final boolean directory;
+        /** 按名字排序，整体替换（写时复制） */
+        volatile Node[] children = NO_CHILDREN;
+
+        Node(String name, boolean directory) {
+            this.name = name;
+            this.directory = directory;
+        }
+
+        Node child(String childName) {
+            Node[] snapshot = children;
+            int lo = 0;
+            int hi = snapshot.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = snapshot[mid].name.compareTo(childName);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return snapshot[mid];
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Path root;
+    private final Node top = new Node("", true);
+
+    /**
+     * 名字驻留表
+     * 键和值都是弱引用：没有节点再引用某个名字时（文件已删除、临时文件名等）条目随 GC 消失，
+     * 表的大小跟着树中现存的不同名字走，不会只增不减（WeakHashMap 不是线程安全的，访问时锁住它）
+     */
+    private final Map<String, WeakReference<String>> names = new WeakHashMap<>();
+
+    private final AtomicLong entryCount = new AtomicLong();
+    private volatile boolean ready = false;
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final AtomicInteger watchCount = new AtomicInteger();
+
+    private FileIndex(Path root, WatchService watcher) {
+        this.root = root;
+        this.watcher = watcher;
+    }
+
+    /**
+     * 开启索引：启动监听线程，在后台构建索引
+     *
+     * @param root FTP 根目录
+     * @return 是否成功开启
+     */
+    public static boolean enable(Path root) {
+        WatchService watcher;
+        try {
+            watcher = root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            System.err.println("[FileIndex] 无法创建 WatchService: " + e.getMessage());
+            return false;
+        }
+        FileIndex index = new FileIndex(root, watcher);
+        instance = index;
+
+        Thread watchThread = new Thread(index::watchLoop, "ftp-index-watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        Thread buildThread = new Thread(index::build, "ftp-index-build");
+        buildThread.setDaemon(true);
+        buildThread.start();
+        return true;
+    }
+
+    /**
+     * 当前启用的实例，未开启时返回 null
+     */
+    public static FileIndex instance() {
+        return instance;
+    }
+
+    /**
+     * 初次构建是否已完成
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 索引中的条目数
+     */
+    public long size() {
+        return entryCount.get();
+    }
+
+    // ==================== 服务器写操作的通知 ====================
+
+    /**
+     * 文件或目录已创建（目录会连同其下内容一起加入）
+     * 未开启索引时什么也不做
+     */
+    public static void added(Path path) {
+        FileIndex index = instance;
+        if (index != null) {
+            index.add(path);
+        }
+    }
+
+    /**
+     * 文件或目录已删除（目录会连同其下内容一起移除）
+     * 未开启索引时什么也不做
+     */
+    public static void removed(Path path) {
+        FileIndex index = instance;
+        if (index != null) {
+            index.remove(path);
+        }
+    }
+
+    // ==================== 查找 ====================
+
+    /**
+     * 在 base 之下查找匹配通配符的路径，结果为虚拟路径（如 /pub/a.iso），每行一个
+     *
+     * 通配符不含 / 时只匹配最后一级名字（类似 find -name），
+     * 含 / 时匹配相对于 base 的整个路径（如 src/**.java）。
+     *
+     * @param base 查找的起点目录（已经过 PathValidator 校验）
+     * @param glob 通配符
+     * @param sink 输出目标，结果分块写出
+     * @return 匹配的条目数
+     * @throws IOException 输出失败
+     * @throws IllegalArgumentException 通配符格式错误
+     */
+    public int find(Path base, String glob, DirectoryLister.BlockSink sink) throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        boolean fullPath = glob.indexOf('/') >= 0;
+
+        Node start = lookup(base);
+        if (start == null || !start.directory) {
+            return 0;
+        }
+        String basePath = base.equals(root) ? "" : "/" + root.relativize(base).toString().replace('\\', '/');
+
+        FindState state = new FindState(matcher, fullPath, sink);
+        findIn(start, basePath, "", state);
+        if (state.chunk.length() > 0) {
+            sink.accept(state.chunk.toString());
+        }
+        ServerMetrics.increment("index.find.count");
+        ServerMetrics.add("index.find.matches", state.matches);
+        return state.matches;
+    }
+
+    private static final class FindState {
+        final PathMatcher matcher;
+        final boolean fullPath;
+        final DirectoryLister.BlockSink sink;
+        final StringBuilder chunk = new StringBuilder();
+        int matches = 0;
+
+        FindState(PathMatcher matcher, boolean fullPath, DirectoryLister.BlockSink sink) {
+            this.matcher = matcher;
+            this.fullPath = fullPath;
+            this.sink = sink;
+        }
+    }
+
+    private void findIn(Node dir, String virtualPath, String relativePath, FindState state) throws IOException {
+        for (Node child : dir.children) {
+            String childVirtual = virtualPath + "/" + child.name;
+            String childRelative = relativePath.isEmpty() ? child.name : relativePath + "/" + child.name;
+            Path candidate = root.getFileSystem().getPath(state.fullPath ? childRelative : child.name);
+            if (state.matcher.matches(candidate)) {
+                state.chunk.append(childVirtual).append("\r\n");
+                state.matches++;
+                if (state.chunk.length() >= CHUNK_CHARS) {
+                    state.sink.accept(state.chunk.toString());
+                    state.chunk.setLength(0);
+                }
+            }
+            if (child.directory) {
+                findIn(child, childVirtual, childRelative, state);
+            }
+        }
+    }
+
+    // ==================== 构建与维护 ====================
+
+    /**
+     * 初次构建：并行遍历整棵树
+     */
+    private void build() {
+        long start = System.nanoTime();
+        register(root);
+        WALK_POOL.invoke(new WalkTask(top, root));
+        ready = true;
+        ServerMetrics.recordLatency("index.build", System.nanoTime() - start);
+        System.out.println("[FileIndex] 文件名索引构建完成: " + entryCount.get() + " 个条目，"
+            + watchCount.get() + " 个目录监听，用时 "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * 遍历一个目录，把条目合并进节点，子目录 fork 新任务
+     */
+    private final class WalkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final Path dir;
+
+        WalkTask(Node node, Path dir) {
+            this.node = node;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<Node> found = new ArrayList<>();
+            List<Path> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    if (PathValidator.isMetaPath(root, entry)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    found.add(new Node(intern(entry.getFileName().toString()), attrs.isDirectory()));
+                    if (attrs.isDirectory()) {
+                        subdirs.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[FileIndex] 无法读取目录 " + dir + ": " + e.getMessage());
+                return;
+            }
+
+            merge(node, found);
+            List<WalkTask> tasks = new ArrayList<>();
+            for (Path subdir : subdirs) {
+                Node child = node.child(subdir.getFileName().toString());
+                if (child != null && child.directory) {
+                    register(subdir);
+                    tasks.add(new WalkTask(child, subdir));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * 把扫描到的条目合并进节点：已存在的节点保留（连同其子树），新的加入
+     */
+    private void merge(Node node, List<Node> found) {
+        synchronized (node) {
+            Node[] existing = node.children;
+            List<Node> result = new ArrayList<>(existing.length + found.size());
+            result.addAll(Arrays.asList(existing));
+            int added = 0;
+            for (Node n : found) {
+                if (node.child(n.name) == null) {
+                    result.add(n);
+                    added++;
+                }
+            }
+            if (added == 0) {
+                return;
+            }
+            Node[] array = result.toArray(NO_CHILDREN);
+            Arrays.sort(array, BY_NAME);
+            node.children = array;
+            entryCount.addAndGet(added);
+        }
+    }
+
+    /**
+     * 重新扫描一个目录，使索引与磁盘一致（事件丢失时使用）
+     */
+    private void rescan(Path dir) {
+        Node node = lookup(dir);
+        if (node == null || !node.directory) {
+            add(dir);
+            return;
+        }
+        Set<String> onDisk = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                onDisk.add(entry.getFileName().toString());
+            }
+        } catch (IOException e) {
+            remove(dir);
+            return;
+        }
+        for (Node child : node.children) {
+            if (!onDisk.contains(child.name)) {
+                remove(dir.resolve(child.name));
+            }
+        }
+        WALK_POOL.invoke(new WalkTask(node, dir));
+    }
+
+    private void add(Path path) {
+        if (!path.startsWith(root) || path.equals(root) || PathValidator.isMetaPath(root, path)) {
+            return;
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return;
+        }
+
+        // 逐级找到（必要时创建）父节点
+        Node parent = top;
+        Path relative = root.relativize(path);
+        for (int i = 0; i < relative.getNameCount() - 1; i++) {
+            String segment = intern(relative.getName(i).toString());
+            Node next = parent.child(segment);
+            if (next == null) {
+                merge(parent, List.of(new Node(segment, true)));
+                next = parent.child(segment);
+            }
+            parent = next;
+        }
+
+        String name = intern(path.getFileName().toString());
+        Node existing = parent.child(name);
+        if (existing != null && existing.directory != attrs.isDirectory()) {
+            remove(path);
+            existing = null;
+        }
+        if (existing == null) {
+            merge(parent, List.of(new Node(name, attrs.isDirectory())));
+        }
+        if (attrs.isDirectory()) {
+            register(path);
+            WALK_POOL.invoke(new WalkTask(parent.child(name), path));
+        }
+    }
+
+    private void remove(Path path) {
+        if (!path.startsWith(root) || path.equals(root)) {
+            return;
+        }
+        Path relative = root.relativize(path);
+        Node parent = top;
+        for (int i = 0; i < relative.getNameCount() - 1 && parent != null; i++) {
+            parent = parent.child(relative.getName(i).toString());
+        }
+        if (parent == null) {
+            return;
+        }
+        String name = relative.getFileName().toString();
+        synchronized (parent) {
+            Node target = parent.child(name);
+            if (target == null) {
+                return;
+            }
+            Node[] existing = parent.children;
+            Node[] array = new Node[existing.length - 1];
+            int j = 0;
+            for (Node n : existing) {
+                if (n != target) {
+                    array[j++] = n;
+                }
+            }
+            parent.children = array;
+            entryCount.addAndGet(-count(target));
+            if (!target.directory) {
+                return;
+            }
+        }
+        // 目录被删除或移走：取消它和子目录的监听（移走的目录监听仍然有效，但路径已经不对了）
+        for (Map.Entry<WatchKey, Path> e : watchedDirs.entrySet()) {
+            if (e.getValue().startsWith(path) && watchedDirs.remove(e.getKey()) != null) {
+                e.getKey().cancel();
+                watchCount.decrementAndGet();
+            }
+        }
+    }
+
+    private Node lookup(Path path) {
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        Node node = top;
+        if (path.equals(root)) {
+            return node;
+        }
+        for (Path segment : root.relativize(path)) {
+            node = node.child(segment.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * 为目录注册监听（超过上限后不再注册）
+     */
+    private void register(Path dir) {
+        if (watchCount.get() >= MAX_WATCHES) {
+            ServerMetrics.increment("index.unwatched");
+            return;
+        }
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+            if (watchedDirs.put(key, dir) == null) {
+                watchCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            ServerMetrics.increment("index.unwatched");
+        }
+    }
+
+    /**
+     * 监听线程：把文件系统事件同步到索引
+     */
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watchedDirs.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            ServerMetrics.increment("index.overflow");
+                            rescan(dir);
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            add(child);
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            remove(child);
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("[FileIndex] 处理文件系统事件失败: " + e.getMessage());
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // 目录已被删除，监听自动失效
+                if (watchedDirs.remove(key) != null) {
+                    watchCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private String intern(String name) {
+        synchronized (names) {
+            WeakReference<String> ref = names.get(name);
+            String existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            names.put(name, new WeakReference<>(name));
+            return name;
+        }
+    }
+
+    private static long count(Node node) {
+        long total = 1;
+        for (Node child : node.children) {
+            total += count(child);
+        }
+        return total;
+    }
+}
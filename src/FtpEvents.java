@@ -0,0 +1,155 @@
+package data;
+
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder 事件
+ *
+ * 生产环境可以一直开着低开销的录制，延迟突增时把这里的会话、命令和传输事件
+ * 与同一时间段的 GC、Socket 读写、线程阻塞等 JDK 事件对照，不需要挂性能分析器。
+ * 未开启录制时 commit() 几乎没有开销；所有事件都不采集调用栈。
+ *
+ * 使用随附的配置（src/ftp.jfc）：
+ *   java -XX:StartFlightRecording:settings=ftp.jfc,maxage=6h,disk=true,dumponexit=true,filename=ftp.jfr \
+ *        -cp . data.FtpServer
+ * 查看：jfr print --events ftp.Command ftp.jfr，或用 JDK Mission Control 打开
+ */
+public final class FtpEvents {
+
+    /** 线程分配统计（HotSpot 的扩展接口，其他 JVM 上为 null） */
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = threadBean();
+
+    private FtpEvents() {
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+
+    /**
+     * 当前线程累计分配的堆内存字节数，不支持时返回 -1
+     * 只在命令事件开启时调用，对比前后两次得到一条命令的分配量
+     */
+    static long threadAllocatedBytes() {
+        if (THREAD_BEAN == null || !THREAD_BEAN.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return THREAD_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * 新连接从 accept 返回到会话线程开始处理（持续时间即线程池排队时间）
+     */
+    @Name("ftp.Accept")
+    @Label("FTP Accept")
+    @Category({"FTP Server", "Session"})
+    @Description("新连接从 accept 返回到会话线程开始处理的时间")
+    @StackTrace(false)
+    public static final class Accept extends Event {
+        @Label("Client Address")
+        String clientAddress;
+
+        @Label("Rejected")
+        @Description("超过每 IP 连接数上限被拒绝")
+        boolean rejected;
+    }
+
+    /**
+     * 一个会话从开始处理到关闭
+     */
+    @Name("ftp.Session")
+    @Label("FTP Session")
+    @Category({"FTP Server", "Session"})
+    @StackTrace(false)
+    public static final class Session extends Event {
+        @Label("Client Address")
+        String clientAddress;
+
+        @Label("User")
+        String user;
+
+        @Label("Commands")
+        int commands;
+
+        @Label("TLS")
+        boolean tls;
+    }
+
+    /**
+     * 一条命令的处理（传输命令只包含转交给传输线程之前的部分）
+     */
+    @Name("ftp.Command")
+    @Label("FTP Command")
+    @Category({"FTP Server", "Command"})
+    @StackTrace(false)
+    public static final class Command extends Event {
+        @Label("Verb")
+        String verb;
+
+        @Label("User")
+        String user;
+
+        @Label("Reply Code")
+        @Description("处理期间发出的最后一个响应码，0 表示还没有响应（异步传输）")
+        int replyCode;
+
+        @Label("Allocated")
+        @Description("会话线程处理这条命令分配的堆内存，-1 表示 JVM 不支持统计")
+        @DataAmount
+        long allocated = -1;
+    }
+
+    /**
+     * 一次数据传输（从创建或复用数据连接到释放）
+     */
+    @Name("ftp.Transfer")
+    @Label("FTP Transfer")
+    @Category({"FTP Server", "Transfer"})
+    @StackTrace(false)
+    public static final class Transfer extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Direction")
+        @Description("send 或 receive")
+        String direction;
+
+        @Label("Mode")
+        @Description("S（流模式）或 B（块模式）")
+        String mode;
+
+        @Label("TLS")
+        boolean tls;
+
+        @Label("Reused Connection")
+        boolean reused;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Connect Wait")
+        @Description("等待客户端连入（被动模式）或连接客户端（主动模式），包括 TLS 握手")
+        @Timespan
+        long connectWait;
+
+        @Label("Local I/O")
+        @Description("读写本地文件的时间")
+        @Timespan
+        long localIo;
+    }
+}
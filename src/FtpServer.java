@@ -1,12 +1,19 @@
 package data;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * FTP 服务器主类
@@ -15,6 +22,12 @@ import java.util.concurrent.Executors;
  * 1. 监听指定端口（2121）
  * 2. 接受客户端连接
  * 3. 为每个连接创建一个 ClientSession 并分配线程处理
+ * 
+ * 接受连接的线程只做 accept 和提交任务，会话的构造（创建读写流等）
+ * 放到线程池中完成，避免 accept 循环被拖慢导致内核 backlog 堆积。
+ * 通过 -Dftp.acceptors=N 可以开启多个 accept 线程：
+ * 系统支持 SO_REUSEPORT 时每个线程绑定一个独立的监听 Socket，由内核分发连接；
+ * 否则 N 个线程共享同一个监听 Socket。
  */
 public class FtpServer {
     
@@ -24,8 +37,14 @@ public class FtpServer {
     /** FTP 控制端口 */
     private static final int CONTROL_PORT = 2121;
     
-    /** 线程池：最多同时处理 32 个连接 */
-    private static final int POOL_SIZE = 32;
+    /** accept 线程数（默认 1，即原来的单线程 accept） */
+    private static final int ACCEPTOR_COUNT = Math.max(1, Integer.getInteger("ftp.acceptors", 1));
+    
+    /** 监听队列长度：批量任务时段连接集中到达，默认的 50 太小 */
+    private static final int ACCEPT_BACKLOG = 1024;
+    
+    /** 已接受的连接总数（多个 accept 线程共享） */
+    private static final AtomicInteger CLIENT_COUNT = new AtomicInteger();
     
     /**
      * 主方法
@@ -55,53 +74,230 @@ public class FtpServer {
         UserStore userStore = UserStore.create();
         System.out.println("[FtpServer] 用户表已初始化");
         
-        // 3. 创建线程池
-        // newFixedThreadPool(POOL_SIZE)：创建固定大小的线程池
-        // 它可以最多同时运行 32 个任务，超过的任务会排队等候
-        ExecutorService threadPool = Executors.newFixedThreadPool(POOL_SIZE);
-
+        // 3. 线程池：会话线程和传输线程分开，批量传输不会占满会话线程
+        ExecutorService threadPool = TaskScheduler.control();
         
-        System.out.println("[FtpServer] 线程池已创建，容量=" + POOL_SIZE);
+        System.out.println("[FtpServer] 线程池已创建，" + TaskScheduler.describe());
         
+        // 4. 路径验证器只读、线程安全，所有会话共用一个，避免每个连接都检查一次根目录
+        PathValidator pathValidator;
         try {
-            // 4. 启动服务器
-            ServerSocket serverSocket = new ServerSocket(CONTROL_PORT);
-            System.out.println("[FtpServer] FTP 服务器启动成功，监听端口 " + CONTROL_PORT);
+            pathValidator = new PathValidator(FTP_ROOT_DIR);
+        } catch (IOException e) {
+            System.err.println("[FtpServer] 根目录检查失败: " + e.getMessage());
+            return;
+        }
+        
+        // 存储后端：-Dftp.storage=local（默认）| memory
+        Storage storage;
+        String storageKind = System.getProperty("ftp.storage", "local");
+        if ("memory".equalsIgnoreCase(storageKind)) {
+            storage = new MemoryStorage(pathValidator.getRootDirectory());
+            System.out.println("[FtpServer] 使用内存存储，去重、配额、文件名索引和打包传输不可用");
+        } else {
+            if (!"local".equalsIgnoreCase(storageKind)) {
+                System.out.println("[FtpServer] 未知的存储后端 " + storageKind + "，使用本地文件系统");
+            }
+            storage = LocalStorage.INSTANCE;
+        }
+        
+        // 可选：开启内容去重存储（-Dftp.dedup=true）
+        // 配额的归属记在 inode 的扩展属性上，去重会让不同用户的文件共享 inode，两者不能同时开启，配额优先
+        if (storage.isLocal() && Boolean.getBoolean("ftp.dedup") && userStore.hasQuotas()) {
+            System.out.println("[FtpServer] 已配置磁盘配额，上传去重不能同时开启，按普通模式运行");
+        } else if (storage.isLocal() && Boolean.getBoolean("ftp.dedup")) {
+            if (DedupStore.enable(pathValidator.getMetaDirectory())) {
+                System.out.println("[FtpServer] 上传去重已开启");
+            } else {
+                System.out.println("[FtpServer] 上传去重未能开启，按普通模式运行");
+            }
+        }
+        
+        // 配额：为任何用户配置了 -Dftp.quota.* 时开启
+        if (storage.isLocal() && userStore.hasQuotas()) {
+            if (QuotaLedger.enable(pathValidator.getRootDirectory(), pathValidator.getMetaDirectory(), userStore)) {
+                System.out.println("[FtpServer] 磁盘配额已开启");
+            } else {
+                System.out.println("[FtpServer] 磁盘配额未能开启，上传不受配额限制");
+            }
+        }
+        
+        // 显式 FTPS：配置了 -Dftp.tls.keystore 时支持 AUTH TLS
+        if (TlsSupport.init()) {
+            System.out.println("[FtpServer] 已支持 AUTH TLS" + (TlsSupport.REQUIRED ? "（强制加密）" : ""));
+        } else if (TlsSupport.REQUIRED) {
+            System.err.println("[FtpServer] 要求加密但 TLS 未能初始化，拒绝启动");
+            return;
+        }
+        
+        // 文件名索引（SITE FIND），-Dftp.index=false 关闭
+        if (storage.isLocal() && !"false".equalsIgnoreCase(System.getProperty("ftp.index"))) {
+            FileIndex.enable(pathValidator.getRootDirectory());
+        }
+        
+        // 传输日志：默认写到元数据目录下，可用 -Dftp.xferlog=<文件> 指定
+        String xferlogPath = System.getProperty("ftp.xferlog");
+        TransferLog.start(xferlogPath != null
+            ? Paths.get(xferlogPath).toAbsolutePath()
+            : pathValidator.getMetaDirectory().resolve("xferlog"));
+        
+        // 可选：会话录制，供 SessionReplay 重放（-Dftp.record=<文件>）
+        String recordPath = System.getProperty("ftp.record");
+        if (recordPath != null) {
+            SessionRecorder.start(Paths.get(recordPath).toAbsolutePath());
+        }
+        
+        try {
+            // 5. 启动服务器（创建一个或多个监听 Socket）
+            List<ServerSocket> listeners = openListeners();
+            System.out.println("[FtpServer] FTP 服务器启动成功，监听端口 " + CONTROL_PORT
+                + "，accept 线程数=" + ACCEPTOR_COUNT + "，监听 Socket 数=" + listeners.size());
             System.out.println("[FtpServer] 等待客户端连接...");
             
-            // 5. 主循环：接受连接
-            int clientCount = 0;
-            while (true) {
+            // 6. 启动 accept 线程：线程 i 使用第 i 个监听 Socket（共享模式下都用同一个）
+            List<Thread> acceptors = new ArrayList<>();
+            for (int i = 0; i < ACCEPTOR_COUNT; i++) {
+                ServerSocket listener = listeners.get(i % listeners.size());
+                Thread acceptor = new Thread(
+                    () -> acceptLoop(listener, threadPool, pathValidator, userStore, storage),
+                    "ftp-acceptor-" + i);
+                acceptor.start();
+                acceptors.add(acceptor);
+            }
+            
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+            
+        } catch (IOException e) {
+            System.err.println("[FtpServer] 服务器启动失败: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 创建监听 Socket
+     * 
+     * 多 accept 线程且系统支持 SO_REUSEPORT 时，为每个线程各绑定一个监听 Socket，
+     * 内核会把新连接分散到各个 Socket 的队列上；否则只创建一个。
+     */
+    private static List<ServerSocket> openListeners() throws IOException {
+        List<ServerSocket> listeners = new ArrayList<>();
+        
+        int count = 1;
+        if (ACCEPTOR_COUNT > 1) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                if (probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    count = ACCEPTOR_COUNT;
+                } else {
+                    System.out.println("[FtpServer] 系统不支持 SO_REUSEPORT，" + ACCEPTOR_COUNT + " 个线程共享一个监听 Socket");
+                }
+            }
+        }
+        
+        for (int i = 0; i < count; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (count > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(CONTROL_PORT), ACCEPT_BACKLOG);
+            listeners.add(channel.socket());
+        }
+        return listeners;
+    }
+    
+    /**
+     * accept 主循环
+     * 
+     * 这里只接受连接并提交任务，打印日志和构造 ClientSession 都在线程池中进行。
+     * 指标：
+     *   accept.handoff    - 从 accept 返回到提交完成的耗时（accept 路径本身的开销）
+     *   session.queueWait - 从 accept 返回到会话线程开始处理的耗时（线程池排队时间）
+     */
+    private static void acceptLoop(ServerSocket serverSocket, ExecutorService threadPool,
+                                   PathValidator pathValidator, UserStore userStore, Storage storage) {
+        while (true) {
+            Socket clientSocket;
+            try {
                 // 接受客户端连接（阻塞直到有连接到来）
-                Socket clientSocket = serverSocket.accept();
-                clientCount++;
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                System.err.println("[FtpServer] accept 失败: " + e.getMessage());
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                continue;
+            }
+            
+            long acceptedAt = System.nanoTime();
+            ServerMetrics.increment("accept.count");
+            FtpEvents.Accept acceptEvent = new FtpEvents.Accept();
+            acceptEvent.begin();
+            
+            // 同一 IP 并发连接过多：在 accept 线程直接回复 421，不占用会话线程
+            InetAddress clientIp = clientSocket.getInetAddress();
+            if (!RateLimiter.tryAcquireConnection(clientIp)) {
+                rejectConnection(clientSocket);
+                commitAcceptEvent(acceptEvent, clientIp, true);
+                continue;
+            }
+            int clientNo = CLIENT_COUNT.incrementAndGet();
+            
+            threadPool.submit(() -> {
+                ServerMetrics.recordLatency("session.queueWait", System.nanoTime() - acceptedAt);
+                commitAcceptEvent(acceptEvent, clientIp, false);
+                
                 // 输出连接信息
                 String clientAddr = clientSocket.getInetAddress().getHostAddress() + ":" + 
                                     clientSocket.getPort();
-                System.out.println("[FtpServer] 客户端 #" + clientCount + " 已连接: " + clientAddr);
+                System.out.println("[FtpServer] 客户端 #" + clientNo + " 已连接: " + clientAddr);
                 
                 try {
-                    // 创建会话，传入根目录路径
-                    ClientSession session = new ClientSession(
-                        clientSocket, 
-                        FTP_ROOT_DIR,  // 传入根目录
-                        userStore
-                    );
-                    
-                    threadPool.submit(session);
-                    
-                } catch (IOException e) {
-                    System.out.println("[FtpServer] 创建会话失败: " + e.getMessage());
+                    ClientSession session;
                     try {
-                        clientSocket.close();
-                    } catch (IOException ignored) {
+                        // 创建会话，共用同一个路径验证器和存储后端
+                        session = new ClientSession(clientSocket, pathValidator, userStore, storage);
+                    } catch (IOException e) {
+                        System.out.println("[FtpServer] 创建会话失败: " + e.getMessage());
+                        try {
+                            clientSocket.close();
+                        } catch (IOException ignored) {
+                        }
+                        return;
                     }
+                    session.run();
+                } finally {
+                    RateLimiter.releaseConnection(clientIp);
                 }
-            }
+            });
             
-        } catch (IOException e) {
-            System.err.println("[FtpServer] 服务器启动失败: " + e.getMessage());
-            e.printStackTrace();
+            ServerMetrics.recordLatency("accept.handoff", System.nanoTime() - acceptedAt);
+        }
+    }
+    
+    /**
+     * 提交 JFR 连接事件；未开启录制或低于阈值时不做字符串转换
+     */
+    private static void commitAcceptEvent(FtpEvents.Accept event, InetAddress clientIp, boolean rejected) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.clientAddress = clientIp.getHostAddress();
+            event.rejected = rejected;
+            event.commit();
+        }
+    }
+    
+    /**
+     * 拒绝超过连接数上限的客户端：回复 421 后关闭
+     * 回复只有一行，写入新连接的发送缓冲区不会阻塞 accept 线程
+     */
+    private static void rejectConnection(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            socket.getOutputStream().write(
+                "421 来自该地址的连接过多，请稍后再试\r\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
         }
     }
 }
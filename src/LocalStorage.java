@@ -0,0 +1,80 @@
+package data;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 本地文件系统存储（默认后端）
+ *
+ * 读写返回 FileChannel，发送和接收时文件端仍然直接使用直接缓冲区。
+ */
+public final class LocalStorage implements Storage {
+
+    public static final LocalStorage INSTANCE = new LocalStorage();
+
+    private LocalStorage() {
+    }
+
+    @Override
+    public BasicFileAttributes stat(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    @Override
+    public DirectoryStream<Path> list(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        return filter == null ? Files.newDirectoryStream(dir) : Files.newDirectoryStream(dir, filter);
+    }
+
+    @Override
+    public SeekableByteChannel openRead(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public SeekableByteChannel openWrite(Path path) throws IOException {
+        // 目标是去重 blob 的硬链接时先断开，不能原地改写共享内容
+        DedupStore.breakLink(path);
+        return FileChannel.open(path,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,             // 不存在则创建
+            StandardOpenOption.TRUNCATE_EXISTING); // 存在则清空（覆盖）
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        Files.delete(path);
+    }
+
+    @Override
+    public void mkdir(Path path) throws IOException {
+        Files.createDirectory(path);
+    }
+
+    @Override
+    public void move(Path source, Path target) throws IOException {
+        try {
+            // 优先原子移动
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public boolean isWritable(Path dir) {
+        return Files.isWritable(dir);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+}
@@ -0,0 +1,532 @@
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 内存存储（-Dftp.storage=memory）
+ *
+ * 文件内容放在直接缓冲区（堆外）的分块中，不占 Java 堆，也不会被 GC 反复复制：
+ * 第一块 4KB，之后每块翻倍，最大 64KB，小文件不会浪费一整块。
+ *
+ * 并发：
+ * 1. 读取不加锁：文件内容是不可变的快照，写入方关闭 Channel 时整体替换，
+ *    在此之前（包括写入失败时）其他客户端读到的都是旧内容，不会读到写了一半的数据；
+ *    替换用 getAndSet，并发的写入、删除各自回收自己换下来的内容，不会重复回收
+ * 2. 目录结构的修改（创建、删除、移动）在同一把锁内完成，保证父子关系一致
+ *
+ * 容量上限 -Dftp.storage.memory.maxBytes（默认 512MB），超出时写入失败。
+ * 指标：storage.memory.bytes（已分配的字节数）
+ */
+public final class MemoryStorage implements Storage {
+
+    private static final int FIRST_CHUNK = 4 * 1024;
+
+    private static final int MAX_CHUNK = 64 * 1024;
+
+    private static final long MAX_BYTES = Long.getLong("ftp.storage.memory.maxBytes", 512L * 1024 * 1024);
+
+    /** 所有条目，键是根目录下的绝对路径 */
+    private final Map<Path, Node> nodes = new ConcurrentHashMap<>();
+
+    /** 已分配的分块字节数 */
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong nextKey = new AtomicLong();
+
+    /** 目录结构修改锁 */
+    private final Object structureLock = new Object();
+
+    /**
+     * @param root 根目录（与 PathValidator 的根目录相同）
+     */
+    public MemoryStorage(Path root) {
+        nodes.put(root, new Node(true));
+        System.out.println("[MemoryStorage] 内存存储已启用，容量上限 " + MAX_BYTES + " 字节");
+    }
+
+    /**
+     * 不可变的文件内容
+     */
+    private static final class Content {
+        static final Content EMPTY = new Content(new ByteBuffer[0], 0);
+
+        /** 每块的 limit 是有效字节数，只能通过 duplicate() 读取 */
+        final ByteBuffer[] chunks;
+        final long size;
+
+        Content(ByteBuffer[] chunks, long size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        long allocated() {
+            long total = 0;
+            for (ByteBuffer chunk : chunks) {
+                total += chunk.capacity();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * 文件或目录
+     */
+    private final class Node {
+        final boolean directory;
+        final Long key = nextKey.incrementAndGet();
+        final FileTime created = FileTime.fromMillis(System.currentTimeMillis());
+        volatile FileTime modified = created;
+        final AtomicReference<Content> content = new AtomicReference<>(Content.EMPTY);
+        /** 子条目名称（只有目录使用） */
+        final ConcurrentSkipListSet<String> children;
+
+        Node(boolean directory) {
+            this.directory = directory;
+            this.children = directory ? new ConcurrentSkipListSet<>() : null;
+        }
+
+        BasicFileAttributes attributes() {
+            Content snapshot = content.get();
+            FileTime mtime = modified;
+            return new BasicFileAttributes() {
+                @Override
+                public FileTime lastModifiedTime() {
+                    return mtime;
+                }
+
+                @Override
+                public FileTime lastAccessTime() {
+                    return mtime;
+                }
+
+                @Override
+                public FileTime creationTime() {
+                    return created;
+                }
+
+                @Override
+                public boolean isRegularFile() {
+                    return !directory;
+                }
+
+                @Override
+                public boolean isDirectory() {
+                    return directory;
+                }
+
+                @Override
+                public boolean isSymbolicLink() {
+                    return false;
+                }
+
+                @Override
+                public boolean isOther() {
+                    return false;
+                }
+
+                @Override
+                public long size() {
+                    return directory ? 0 : snapshot.size;
+                }
+
+                @Override
+                public Object fileKey() {
+                    return key;
+                }
+            };
+        }
+    }
+
+    @Override
+    public BasicFileAttributes stat(Path path) throws IOException {
+        return node(path).attributes();
+    }
+
+    @Override
+    public DirectoryStream<Path> list(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        Node node = node(dir);
+        if (!node.directory) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        List<Path> entries = new ArrayList<>(node.children.size());
+        for (String name : node.children) {
+            Path entry = dir.resolve(name);
+            if (filter == null || filter.accept(entry)) {
+                entries.add(entry);
+            }
+        }
+        return new DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public SeekableByteChannel openRead(Path path) throws IOException {
+        Node node = node(path);
+        if (node.directory) {
+            throw new FileSystemException(path.toString(), null, "是目录");
+        }
+        return new Reader(node.content.get());
+    }
+
+    @Override
+    public SeekableByteChannel openWrite(Path path) throws IOException {
+        Node node;
+        synchronized (structureLock) {
+            node = nodes.get(path);
+            if (node == null) {
+                Node parent = directoryNode(path.getParent());
+                node = new Node(false);
+                nodes.put(path, node);
+                parent.children.add(path.getFileName().toString());
+            } else if (node.directory) {
+                throw new FileSystemException(path.toString(), null, "是目录");
+            }
+        }
+        // 新内容在关闭时整体替换，写入期间旧内容保持可读
+        return new Writer(path, node);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        synchronized (structureLock) {
+            Node node = node(path);
+            if (path.getParent() == null || !nodes.containsKey(path.getParent())) {
+                throw new FileSystemException(path.toString(), null, "不能删除根目录");
+            }
+            if (node.directory && !node.children.isEmpty()) {
+                throw new DirectoryNotEmptyException(path.toString());
+            }
+            nodes.remove(path);
+            nodes.get(path.getParent()).children.remove(path.getFileName().toString());
+            release(node.content.getAndSet(Content.EMPTY));
+        }
+    }
+
+    @Override
+    public void mkdir(Path path) throws IOException {
+        synchronized (structureLock) {
+            if (nodes.containsKey(path)) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+            Node parent = directoryNode(path.getParent());
+            nodes.put(path, new Node(true));
+            parent.children.add(path.getFileName().toString());
+        }
+    }
+
+    @Override
+    public void move(Path source, Path target) throws IOException {
+        synchronized (structureLock) {
+            Node node = node(source);
+            Node targetParent = directoryNode(target.getParent());
+            Node existing = nodes.get(target);
+            if (existing != null) {
+                if (existing.directory) {
+                    throw new FileAlreadyExistsException(target.toString());
+                }
+                release(existing.content.getAndSet(Content.EMPTY));
+            }
+            // 目录连同其下所有条目一起改键
+            if (node.directory) {
+                List<Path> descendants = new ArrayList<>();
+                for (Path key : nodes.keySet()) {
+                    if (key.startsWith(source) && !key.equals(source)) {
+                        descendants.add(key);
+                    }
+                }
+                for (Path key : descendants) {
+                    nodes.put(target.resolve(source.relativize(key)), nodes.remove(key));
+                }
+            }
+            nodes.remove(source);
+            nodes.put(target, node);
+            nodes.get(source.getParent()).children.remove(source.getFileName().toString());
+            targetParent.children.add(target.getFileName().toString());
+        }
+    }
+
+    @Override
+    public boolean isWritable(Path dir) {
+        return isDirectory(dir);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    private Node node(Path path) throws NoSuchFileException {
+        Node node = path == null ? null : nodes.get(path);
+        if (node == null) {
+            throw new NoSuchFileException(String.valueOf(path));
+        }
+        return node;
+    }
+
+    private Node directoryNode(Path path) throws IOException {
+        Node node = node(path);
+        if (!node.directory) {
+            throw new NotDirectoryException(path.toString());
+        }
+        return node;
+    }
+
+    /**
+     * 替换文件内容并回收旧内容占用的字节数
+     * 文件在写入期间被删除或移走时，新内容直接丢弃
+     * （删除方已经换下了内容时由删除方回收，这里不再重复回收）
+     */
+    private void publish(Path path, Node node, Content content) {
+        release(node.content.getAndSet(content));
+        node.modified = FileTime.fromMillis(System.currentTimeMillis());
+        if (nodes.get(path) != node && node.content.compareAndSet(content, Content.EMPTY)) {
+            release(content);
+        }
+    }
+
+    private void release(Content content) {
+        long bytes = content.allocated();
+        if (bytes > 0) {
+            ServerMetrics.set("storage.memory.bytes", allocatedBytes.addAndGet(-bytes));
+        }
+    }
+
+    /**
+     * 分配一块直接缓冲区，超出容量上限时失败
+     */
+    private ByteBuffer allocate(int size) throws IOException {
+        long total = allocatedBytes.addAndGet(size);
+        if (total > MAX_BYTES) {
+            allocatedBytes.addAndGet(-size);
+            throw new IOException("内存存储空间不足（上限 " + MAX_BYTES + " 字节）");
+        }
+        ServerMetrics.set("storage.memory.bytes", total);
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * 读取一个内容快照
+     */
+    private static final class Reader implements SeekableByteChannel {
+        private final Content content;
+        private long position = 0;
+        private boolean open = true;
+
+        Reader(Content content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (position >= content.size) {
+                return -1;
+            }
+            // 找到 position 所在的块（顺序读时通常就在前几块之内）
+            long offset = position;
+            int index = 0;
+            while (offset >= content.chunks[index].limit()) {
+                offset -= content.chunks[index].limit();
+                index++;
+            }
+            int total = 0;
+            while (dst.hasRemaining() && index < content.chunks.length) {
+                ByteBuffer src = content.chunks[index].duplicate();
+                src.position((int) offset);
+                if (src.remaining() > dst.remaining()) {
+                    src.limit(src.position() + dst.remaining());
+                }
+                total += src.remaining();
+                dst.put(src);
+                offset = 0;
+                index++;
+            }
+            position += total;
+            return total;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("position < 0");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return content.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * 顺序写入新内容，关闭时整体替换文件内容
+     */
+    private final class Writer implements SeekableByteChannel {
+        private final Path path;
+        private final Node node;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+        private long size = 0;
+        private boolean open = true;
+
+        Writer(Path path, Node node) {
+            this.path = path;
+            this.node = node;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int written = 0;
+            while (src.hasRemaining()) {
+                if (current == null || !current.hasRemaining()) {
+                    int next = current == null ? FIRST_CHUNK : Math.min(current.capacity() * 2, MAX_CHUNK);
+                    try {
+                        current = allocate(next);
+                    } catch (IOException e) {
+                        discard();
+                        throw e;
+                    }
+                    chunks.add(current);
+                }
+                int n = Math.min(src.remaining(), current.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                current.put(part);
+                src.position(src.position() + n);
+                written += n;
+            }
+            size += written;
+            return written;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new NonReadableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            // 只支持顺序追加
+            if (newPosition != size) {
+                throw new UnsupportedOperationException("内存存储只支持顺序写入");
+            }
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long newSize) {
+            if (newSize < size) {
+                throw new UnsupportedOperationException("内存存储只支持顺序写入");
+            }
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            ByteBuffer[] finished = new ByteBuffer[chunks.size()];
+            for (int i = 0; i < finished.length; i++) {
+                ByteBuffer chunk = chunks.get(i);
+                chunk.flip();
+                finished[i] = chunk.asReadOnlyBuffer();
+            }
+            publish(path, node, new Content(finished, size));
+        }
+
+        /**
+         * 写入失败：释放已分配的分块，文件保持原来的内容
+         */
+        private void discard() {
+            open = false;
+            release(new Content(chunks.toArray(new ByteBuffer[0]), size));
+            chunks.clear();
+        }
+    }
+}
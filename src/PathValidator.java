@@ -15,6 +15,9 @@ import java.nio.file.Paths;
  */
 public class PathValidator {
     
+    /** 服务器内部数据目录名（位于根目录下，客户端不可见也不可访问） */
+    public static final String META_DIR_NAME = ".ftp-meta";
+    
     /** FTP 虚拟根目录的绝对路径 */
     private final Path rootDirectory;
     
@@ -53,6 +56,23 @@ public class PathValidator {
         return rootDirectory;
     }
     
+    /**
+     * 获取服务器内部数据目录（去重存储等）
+     */
+    public Path getMetaDirectory() {
+        return rootDirectory.resolve(META_DIR_NAME);
+    }
+    
+    /**
+     * 判断路径是否位于服务器内部数据目录中
+     * 
+     * @param root FTP 根目录
+     * @param path 已规范化的路径
+     */
+    public static boolean isMetaPath(Path root, Path path) {
+        return path.startsWith(root.resolve(META_DIR_NAME));
+    }
+    
     /**
      * 解析用户路径并验证安全性
      * 
@@ -120,6 +140,11 @@ public class PathValidator {
             throw new SecurityException("Access denied: path outside root directory");
         }
         
+        // 服务器内部数据目录不对客户端开放
+        if (isMetaPath(rootDirectory, targetPath)) {
+            throw new SecurityException("Access denied: reserved path");
+        }
+        
         // 6. 返回安全的路径
         return targetPath;
     }
@@ -0,0 +1,618 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 用户磁盘配额账本
+ *
+ * 请求处理过程中从不遍历目录树：每个用户的已用字节数和文件数保存在内存中，
+ * 由 STOR / DELE / MKD 等命令增量更新，配额检查只是读两个计数器。
+ *
+ * 文件归属记录在文件自身的扩展属性 user.ftp.owner 中（随文件一起重命名、移动）。
+ * 账本会定期写到 .ftp-meta/quota/usage，启动时：
+ * 1. 先加载上次保存的账本，服务器立即可以做配额检查
+ * 2. 后台用 ForkJoin 并行遍历整棵目录树，按扩展属性重新统计；
+ *    统计完成后把账本校正为统计结果加上统计期间发生的增量
+ *
+ * 重建期间的修改：要让"统计结果 + 期间增量"准确，统计必须只看到开始时的状态。
+ * 所有会改动用量的操作在动文件之前调用 holdingOf / beforeChange，
+ * 等所在目录统计完（还没轮到时由调用线程当场统计这一个目录）再修改；
+ * 目录的统计和对它的修改按目录加锁互斥。移动整个目录会改变还没统计的子树的位置，
+ * 所以重建期间移动目录要等重建结束。账本的基准在 enable 中、接受连接之前记下，
+ * 不存在跨越重建开始的操作。
+ *
+ * 只统计带有归属属性的文件（开启配额之前上传的文件不计入任何用户）。
+ * 归属跟着 inode 走，而去重模式下不同用户内容相同的文件共享 inode，
+ * 所以配置了配额时不开启去重（见 FtpServer）。
+ */
+public final class QuotaLedger {
+
+    /** 扩展属性名（实际名字为 user.ftp.owner） */
+    private static final String OWNER_ATTR = "ftp.owner";
+
+    /** 账本保存间隔（秒） */
+    private static final long PERSIST_SECONDS = Long.getLong("ftp.quota.persistSeconds", 30);
+
+    /** 重建时的并行度 */
+    private static final int REBUILD_THREADS = Integer.getInteger("ftp.quota.rebuildThreads",
+        Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+
+    /** 当前启用的实例（未配置配额时为 null） */
+    private static volatile QuotaLedger instance;
+
+    /**
+     * 超出配额
+     */
+    public static class QuotaExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QuotaExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 一个用户的用量
+     */
+    private static final class Usage {
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+    }
+
+    /**
+     * 一个已存在文件的归属和大小（删除或覆盖前读取）
+     */
+    public static final class Holding {
+        final String owner;
+        final long size;
+        final boolean directory;
+
+        Holding(String owner, long size, boolean directory) {
+            this.owner = owner;
+            this.size = size;
+            this.directory = directory;
+        }
+    }
+
+    private final Path root;
+    private final Path ledgerFile;
+    private final UserStore userStore;
+    private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+
+    /** 进行中的重建（没有时为 null） */
+    private volatile Rebuild rebuilding;
+
+    /** 目录锁的分组数（2 的幂）：同一目录的统计和修改互斥 */
+    private static final int DIR_LOCKS = 64;
+
+    private final Object[] dirLocks = new Object[DIR_LOCKS];
+
+    /**
+     * 一次重建的状态
+     */
+    private static final class Rebuild {
+        /** 开始时的账本：用户名 → {字节数, 文件数} */
+        final Map<String, long[]> base = new HashMap<>();
+        /** 已统计过条目的目录 */
+        final Set<Path> scannedDirs = ConcurrentHashMap.newKeySet();
+        /** 统计结果 */
+        final Map<String, Usage> totals = new ConcurrentHashMap<>();
+        /** 当场统计持有读锁，结算持有写锁：结算之后不再有统计结果写入 */
+        final ReadWriteLock settleLock = new ReentrantReadWriteLock();
+        /** 已结算（或放弃） */
+        boolean settled = false;
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    private QuotaLedger(Path root, Path ledgerFile, UserStore userStore) {
+        this.root = root;
+        this.ledgerFile = ledgerFile;
+        this.userStore = userStore;
+        for (int i = 0; i < DIR_LOCKS; i++) {
+            dirLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * 开启配额：加载账本，启动后台重建和定期保存
+     *
+     * @param root FTP 根目录
+     * @param metaDir 元数据目录
+     * @param userStore 提供每个用户的配额
+     * @return 是否成功开启（文件系统不支持扩展属性时返回 false）
+     */
+    public static boolean enable(Path root, Path metaDir, UserStore userStore) {
+        try {
+            if (!Files.getFileStore(root).supportsFileAttributeView(UserDefinedFileAttributeView.class)) {
+                System.err.println("[QuotaLedger] 文件系统不支持扩展属性，无法记录文件归属");
+                return false;
+            }
+            Path quotaDir = metaDir.resolve("quota");
+            Files.createDirectories(quotaDir);
+            QuotaLedger ledger = new QuotaLedger(root, quotaDir.resolve("usage"), userStore);
+            ledger.load();
+            // 在接受连接之前记下基准，之后的每次修改都落在重建期间
+            Rebuild rebuild = new Rebuild();
+            for (Map.Entry<String, Usage> e : ledger.usage.entrySet()) {
+                rebuild.base.put(e.getKey(), new long[] {e.getValue().bytes.get(), e.getValue().files.get()});
+            }
+            ledger.rebuilding = rebuild;
+            instance = ledger;
+
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ftp-quota");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.execute(ledger::rebuild);
+            scheduler.scheduleWithFixedDelay(ledger::persist, PERSIST_SECONDS, PERSIST_SECONDS, TimeUnit.SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(ledger::persist, "ftp-quota-persist"));
+            return true;
+        } catch (IOException e) {
+            System.err.println("[QuotaLedger] 无法开启配额: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 当前启用的实例，未开启时返回 null
+     */
+    public static QuotaLedger instance() {
+        return instance;
+    }
+
+    public long getUsedBytes(String user) {
+        Usage u = usage.get(user);
+        return u == null ? 0 : u.bytes.get();
+    }
+
+    public long getUsedFiles(String user) {
+        Usage u = usage.get(user);
+        return u == null ? 0 : u.files.get();
+    }
+
+    /**
+     * 开始传输之前的检查：还能再存 expectedBytes 字节和一个文件吗
+     *
+     * @param expectedBytes 预计大小（未知时传 -1，只检查是否已经用满）
+     */
+    public boolean canStore(String user, long expectedBytes) {
+        long bytesLimit = userStore.getQuotaBytes(user);
+        long filesLimit = userStore.getQuotaFiles(user);
+        if (bytesLimit != UserStore.UNLIMITED) {
+            long used = getUsedBytes(user);
+            if (used >= bytesLimit || (expectedBytes > 0 && used + expectedBytes > bytesLimit)) {
+                return false;
+            }
+        }
+        return filesLimit == UserStore.UNLIMITED || getUsedFiles(user) < filesLimit;
+    }
+
+    /**
+     * 在配额范围内记账，超出时不记账并抛出异常
+     */
+    public void tryCharge(String user, long bytes, long files) throws QuotaExceededException {
+        Usage u = usageOf(user);
+        if (!tryAdd(u.bytes, bytes, userStore.getQuotaBytes(user))) {
+            throw new QuotaExceededException("超出磁盘配额（已用 " + u.bytes.get() + " 字节）");
+        }
+        if (!tryAdd(u.files, files, userStore.getQuotaFiles(user))) {
+            u.bytes.addAndGet(-bytes);
+            throw new QuotaExceededException("超出文件数配额（已有 " + u.files.get() + " 个）");
+        }
+    }
+
+    /**
+     * 无条件记账（释放时传负数）
+     */
+    public void charge(String user, long bytes, long files) {
+        if (user == null) {
+            return;
+        }
+        Usage u = usageOf(user);
+        u.bytes.addAndGet(bytes);
+        u.files.addAndGet(files);
+    }
+
+    /**
+     * 读取已存在文件的归属和大小，不存在或没有归属时返回 null
+     * 在删除、覆盖或创建 path 之前调用（同时起到 beforeChange 的作用）
+     */
+    public Holding holdingOf(Path path) {
+        beforeChange(path);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            String owner = readOwner(path);
+            return owner == null ? null : new Holding(owner, attrs.isDirectory() ? 0 : attrs.size(), attrs.isDirectory());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 即将创建、删除或改写 path（不是移动目录）：重建期间等它所在的目录统计完
+     * 还没轮到的目录由调用线程当场统计，不用等整个重建
+     */
+    public void beforeChange(Path path) {
+        Rebuild rebuild = rebuilding;
+        Path dir = path.getParent();
+        if (rebuild == null || dir == null || rebuild.scannedDirs.contains(dir)) {
+            return;
+        }
+        rebuild.settleLock.readLock().lock();
+        try {
+            if (!rebuild.settled) {
+                scanDirectory(rebuild, dir);
+            }
+        } finally {
+            rebuild.settleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 即将移动 source（RNTO 的源）：目录要等重建结束，文件同 beforeChange
+     */
+    public void beforeMove(Path source) {
+        Rebuild rebuild = rebuilding;
+        if (rebuild == null) {
+            return;
+        }
+        if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                rebuild.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            beforeChange(source);
+        }
+    }
+
+    /**
+     * 文件被删除或被替换之后，从原归属用户的用量中扣除
+     */
+    public void release(Holding holding) {
+        if (holding != null) {
+            charge(holding.owner, -holding.size, -1);
+        }
+    }
+
+    /**
+     * 记录文件归属
+     */
+    public void setOwner(Path path, String user) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(path,
+                UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            view.write(OWNER_ATTR, StandardCharsets.UTF_8.encode(user));
+        } catch (IOException e) {
+            System.err.println("[QuotaLedger] 无法记录文件归属 " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 一次上传的记账：边接收边记账，超出配额时立即中止传输
+     *
+     * 覆盖自己的文件时，旧文件的大小可以先抵用；
+     * 上传成功后按实际大小结算，失败时退还已记的账。
+     */
+    public final class Upload {
+        private final String user;
+        private final Holding previous;
+        /** 可以抵用的旧文件字节数 */
+        private final long credit;
+        /** 已接收的字节数 */
+        private long received = 0;
+        /** 已记账的字节数 */
+        private long charged = 0;
+
+        private Upload(String user, Path target) {
+            this.user = user;
+            this.previous = holdingOf(target);
+            this.credit = previous != null && !previous.directory && user.equals(previous.owner) ? previous.size : 0;
+        }
+
+        /**
+         * 包装写入目标：每次写入前先记账
+         */
+        public WritableByteChannel wrap(WritableByteChannel target) {
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    int n = src.remaining();
+                    long excess = Math.max(0, received + n - credit) - charged;
+                    if (excess > 0) {
+                        tryCharge(user, excess, 0);
+                        charged += excess;
+                    }
+                    received += n;
+                    return target.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return target.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target.close();
+                }
+            };
+        }
+
+        /**
+         * 上传成功：目标文件归当前用户，旧文件的用量从原归属用户扣除
+         */
+        public void commit(Path target) {
+            setOwner(target, user);
+            // 已记账的只是超出抵用额的部分，这里补齐为完整的新文件大小和一个文件
+            charge(user, received - charged, 1);
+            release(previous);
+        }
+
+        /**
+         * 上传失败：退还已记的账
+         *
+         * @param targetRemoved 目标文件是否已被删除（旧内容也不存在了）
+         */
+        public void rollback(boolean targetRemoved) {
+            charge(user, -charged, 0);
+            if (targetRemoved) {
+                release(previous);
+            }
+        }
+    }
+
+    /**
+     * 开始一次上传的记账
+     */
+    public Upload begin(String user, Path target) {
+        return new Upload(user, target);
+    }
+
+    // ==================== 持久化与重建 ====================
+
+    /**
+     * 加载上次保存的账本（每行：用户名 字节数 文件数）
+     */
+    private void load() throws IOException {
+        if (!Files.exists(ledgerFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length != 3) {
+                    continue;
+                }
+                try {
+                    Usage u = usageOf(parts[0]);
+                    u.bytes.set(Long.parseLong(parts[1]));
+                    u.files.set(Long.parseLong(parts[2]));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        System.out.println("[QuotaLedger] 已加载配额账本，共 " + usage.size() + " 个用户");
+    }
+
+    /**
+     * 保存账本：先写临时文件再原子替换
+     */
+    private synchronized void persist() {
+        Path temp = ledgerFile.resolveSibling(ledgerFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Usage> e : usage.entrySet()) {
+                writer.write(e.getKey() + " " + e.getValue().bytes.get() + " " + e.getValue().files.get() + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("[QuotaLedger] 保存配额账本失败: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, ledgerFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[QuotaLedger] 保存配额账本失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 并行遍历目录树，按归属属性重新统计
+     */
+    private void rebuild() {
+        Rebuild rebuild = rebuilding;
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(REBUILD_THREADS);
+        boolean complete = false;
+        try {
+            pool.invoke(new ScanTask(rebuild, root));
+            complete = true;
+        } catch (RuntimeException e) {
+            System.err.println("[QuotaLedger] 重建配额账本失败，继续使用已加载的账本: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+
+        // 结算：当前值 = 基准 + 期间增量，校正为 统计结果 + 期间增量
+        rebuild.settleLock.writeLock().lock();
+        try {
+            rebuild.settled = true;
+            if (complete) {
+                for (String user : rebuild.totals.keySet()) {
+                    usageOf(user);
+                }
+                for (Map.Entry<String, Usage> e : usage.entrySet()) {
+                    Usage totals = rebuild.totals.get(e.getKey());
+                    long[] before = rebuild.base.getOrDefault(e.getKey(), new long[2]);
+                    e.getValue().bytes.addAndGet((totals == null ? 0 : totals.bytes.get()) - before[0]);
+                    e.getValue().files.addAndGet((totals == null ? 0 : totals.files.get()) - before[1]);
+                }
+            }
+        } finally {
+            rebuild.settleLock.writeLock().unlock();
+        }
+        rebuilding = null;
+        rebuild.done.countDown();
+        if (!complete) {
+            return;
+        }
+        persist();
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        ServerMetrics.recordLatency("quota.rebuild", System.nanoTime() - start);
+        System.out.println("[QuotaLedger] 配额账本重建完成，用时 " + millis + " ms，共 " + usage.size() + " 个用户"
+            + "，其中 " + rebuild.scannedDirs.size() + " 个目录");
+    }
+
+    /**
+     * 统计一个目录的条目（不含子目录的内容），返回子目录
+     * 已经统计过的目录（修改前当场统计过）只列出子目录，不再计数
+     */
+    private List<Path> scanDirectory(Rebuild rebuild, Path dir) {
+        List<Path> subdirs = new ArrayList<>();
+        synchronized (dirLocks[(dir.hashCode() ^ (dir.hashCode() >>> 16)) & (DIR_LOCKS - 1)]) {
+            boolean count = !rebuild.scannedDirs.contains(dir);
+            Map<String, long[]> local = new HashMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    if (PathValidator.isMetaPath(root, entry)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (!attrs.isDirectory() && !attrs.isRegularFile()) {
+                        continue;
+                    }
+                    if (count) {
+                        String owner;
+                        try {
+                            owner = readOwner(entry);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        if (owner != null) {
+                            long[] t = local.computeIfAbsent(owner, k -> new long[2]);
+                            t[0] += attrs.isDirectory() ? 0 : attrs.size();
+                            t[1]++;
+                        }
+                    }
+                    if (attrs.isDirectory()) {
+                        subdirs.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[QuotaLedger] 无法读取目录 " + dir + ": " + e.getMessage());
+            }
+            for (Map.Entry<String, long[]> e : local.entrySet()) {
+                Usage u = rebuild.totals.computeIfAbsent(e.getKey(), k -> new Usage());
+                u.bytes.addAndGet(e.getValue()[0]);
+                u.files.addAndGet(e.getValue()[1]);
+            }
+            rebuild.scannedDirs.add(dir);
+        }
+        return subdirs;
+    }
+
+    /**
+     * 统计一个目录，子目录 fork 新任务
+     */
+    private final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Rebuild rebuild;
+        private final transient Path dir;
+
+        ScanTask(Rebuild rebuild, Path dir) {
+            this.rebuild = rebuild;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subtasks = new ArrayList<>();
+            for (Path subdir : scanDirectory(rebuild, dir)) {
+                ScanTask task = new ScanTask(rebuild, subdir);
+                task.fork();
+                subtasks.add(task);
+            }
+            for (ScanTask task : subtasks) {
+                task.join();
+            }
+        }
+    }
+
+    // ==================== 工具方法 ====================
+
+    private Usage usageOf(String user) {
+        return usage.computeIfAbsent(user, k -> new Usage());
+    }
+
+    /**
+     * 在不超过 limit 的前提下加上 delta（delta 不为正或不限制时总是成功）
+     */
+    private static boolean tryAdd(AtomicLong counter, long delta, long limit) {
+        if (delta <= 0 || limit == UserStore.UNLIMITED) {
+            counter.addAndGet(delta);
+            return true;
+        }
+        while (true) {
+            long current = counter.get();
+            if (current + delta > limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + delta)) {
+                return true;
+            }
+        }
+    }
+
+    private static String readOwner(Path path) throws IOException {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(path,
+            UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(OWNER_ATTR));
+            view.read(OWNER_ATTR, buffer);
+            buffer.flip();
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            // 没有该属性
+            return null;
+        }
+    }
+}
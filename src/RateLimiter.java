@@ -0,0 +1,231 @@
+package data;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按客户端 IP 限流
+ *
+ * 配置错误的定时任务客户端会在失败后立刻重连、重试登录，一个 IP 就能占满会话线程。
+ * 这里在三个位置拦截，被拦截的请求不读文件系统、不查用户表：
+ * 1. accept 线程：同一 IP 的并发连接数超过上限时直接回复 421 并关闭
+ * 2. USER / PASS：每分钟登录尝试次数超过上限时回复 530
+ * 3. 每条命令：每秒命令数超过上限时回复 421 并关闭会话
+ *
+ * 计数不加锁：每个 IP 一组分桶的 LongAdder 滑动窗口，过期的桶在下次访问时清零，
+ * 清零和计数并发时可能少算几次，对限流没有影响。
+ * 后台线程每分钟清理一次没有连接、窗口已过期的 IP。
+ *
+ * 配置（0 表示不限制）：
+ *   -Dftp.limit.connectionsPerIp=50     每个 IP 的并发连接数
+ *   -Dftp.limit.loginsPerMinute=30      每个 IP 每分钟的登录尝试次数
+ *   -Dftp.limit.commandsPerSecond=200   每个 IP 每秒的命令数
+ *
+ * 指标：limit.connections.rejected / limit.logins.rejected / limit.commands.rejected，
+ *       limit.clients（正在跟踪的 IP 数）
+ */
+public final class RateLimiter {
+
+    public static final int MAX_CONNECTIONS = Integer.getInteger("ftp.limit.connectionsPerIp", 50);
+
+    public static final int MAX_LOGINS_PER_MINUTE = Integer.getInteger("ftp.limit.loginsPerMinute", 30);
+
+    public static final int MAX_COMMANDS_PER_SECOND = Integer.getInteger("ftp.limit.commandsPerSecond", 200);
+
+    private static final long LOGIN_WINDOW_MILLIS = 60_000;
+
+    private static final long COMMAND_WINDOW_MILLIS = 1_000;
+
+    private static final long SWEEP_MILLIS = 60_000;
+
+    private static final Map<InetAddress, Client> CLIENTS = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService sweeper;
+
+    private RateLimiter() {
+    }
+
+    /**
+     * 新连接占用一个名额（accept 线程调用）
+     *
+     * @return false 表示超过并发连接上限，调用方应回复 421 并关闭连接
+     */
+    public static boolean tryAcquireConnection(InetAddress address) {
+        if (MAX_CONNECTIONS <= 0) {
+            return true;
+        }
+        // compute 与清理线程互斥，不会把连接计到已经被移除的条目上
+        Client client = CLIENTS.compute(address, (k, c) -> {
+            Client entry = c != null ? c : new Client();
+            entry.connections.incrementAndGet();
+            entry.touch();
+            return entry;
+        });
+        startSweeper();
+        if (client.connections.get() > MAX_CONNECTIONS) {
+            client.connections.decrementAndGet();
+            ServerMetrics.increment("limit.connections.rejected");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 连接关闭，归还名额
+     */
+    public static void releaseConnection(InetAddress address) {
+        if (MAX_CONNECTIONS <= 0) {
+            return;
+        }
+        Client client = CLIENTS.get(address);
+        if (client != null) {
+            client.connections.updateAndGet(n -> n > 0 ? n - 1 : 0);
+            client.touch();
+        }
+    }
+
+    /**
+     * 记录一次登录尝试（PASS）
+     *
+     * @return false 表示本分钟内尝试次数已超过上限，不应再校验密码
+     */
+    public static boolean tryLogin(InetAddress address) {
+        if (MAX_LOGINS_PER_MINUTE <= 0) {
+            return true;
+        }
+        long attempts = client(address).logins.addAndSum(System.currentTimeMillis());
+        if (attempts > MAX_LOGINS_PER_MINUTE) {
+            ServerMetrics.increment("limit.logins.rejected");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 本分钟内的登录尝试次数是否已用完（USER 调用，不计数）
+     */
+    public static boolean isLoginBlocked(InetAddress address) {
+        if (MAX_LOGINS_PER_MINUTE <= 0) {
+            return false;
+        }
+        Client client = CLIENTS.get(address);
+        return client != null && client.logins.sum(System.currentTimeMillis()) >= MAX_LOGINS_PER_MINUTE;
+    }
+
+    /**
+     * 记录一条命令
+     *
+     * @return false 表示每秒命令数超过上限
+     */
+    public static boolean tryCommand(InetAddress address) {
+        if (MAX_COMMANDS_PER_SECOND <= 0) {
+            return true;
+        }
+        long commands = client(address).commands.addAndSum(System.currentTimeMillis());
+        if (commands > MAX_COMMANDS_PER_SECOND) {
+            ServerMetrics.increment("limit.commands.rejected");
+            return false;
+        }
+        return true;
+    }
+
+    private static Client client(InetAddress address) {
+        Client client = CLIENTS.get(address);
+        if (client == null) {
+            client = CLIENTS.computeIfAbsent(address, k -> new Client());
+            startSweeper();
+        }
+        client.touch();
+        return client;
+    }
+
+    private static synchronized void startSweeper() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-limiter");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(RateLimiter::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("[RateLimiter] 每 IP 连接数 " + MAX_CONNECTIONS + "，每分钟登录 "
+            + MAX_LOGINS_PER_MINUTE + " 次，每秒命令 " + MAX_COMMANDS_PER_SECOND + " 条");
+    }
+
+    /**
+     * 移除没有连接、最近一个登录窗口内没有活动的 IP
+     */
+    private static void sweep() {
+        long idleBefore = System.currentTimeMillis() - LOGIN_WINDOW_MILLIS;
+        for (InetAddress address : CLIENTS.keySet()) {
+            CLIENTS.computeIfPresent(address,
+                (k, c) -> c.connections.get() == 0 && c.lastSeen < idleBefore ? null : c);
+        }
+        ServerMetrics.set("limit.clients", CLIENTS.size());
+    }
+
+    /**
+     * 一个 IP 的计数
+     */
+    private static final class Client {
+        final AtomicInteger connections = new AtomicInteger();
+        final Window logins = new Window(LOGIN_WINDOW_MILLIS, 12);
+        final Window commands = new Window(COMMAND_WINDOW_MILLIS, 10);
+        volatile long lastSeen;
+
+        void touch() {
+            lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 分桶滑动窗口：窗口分成若干个桶，每个桶记录所属的时间段和计数
+     */
+    private static final class Window {
+        private final long bucketMillis;
+        private final AtomicLongArray epochs;
+        private final LongAdder[] counts;
+
+        Window(long windowMillis, int buckets) {
+            this.bucketMillis = windowMillis / buckets;
+            this.epochs = new AtomicLongArray(buckets);
+            this.counts = new LongAdder[buckets];
+            for (int i = 0; i < buckets; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /** 计数加一，返回窗口内的总数 */
+        long addAndSum(long now) {
+            long epoch = now / bucketMillis;
+            int index = (int) (epoch % counts.length);
+            long seen = epochs.get(index);
+            // 桶属于更早的时间段：抢到的线程负责清零
+            if (seen != epoch && epochs.compareAndSet(index, seen, epoch)) {
+                counts[index].reset();
+            }
+            counts[index].increment();
+            return sum(now);
+        }
+
+        /** 窗口内的总数 */
+        long sum(long now) {
+            long oldest = now / bucketMillis - counts.length;
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (epochs.get(i) > oldest) {
+                    total += counts[i].sum();
+                }
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package data;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器运行指标
+ *
+ * 作用：
+ * 1. 计数器（只增不减，如传输次数、字节数）
+ * 2. 瞬时值（最近一次的取值，如本次选用的缓冲区大小）
+ * 3. 延迟统计（次数、总耗时、最大耗时）
+ *
+ * 所有方法都是线程安全的，可在任意会话线程中直接调用
+ * 通过 SITE METRICS 命令查看
+ */
+public final class ServerMetrics {
+
+    /** 计数器：LongAdder 在高并发累加时比 AtomicLong 竞争更小 */
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+
+    /** 瞬时值 */
+    private static final Map<String, AtomicLong> GAUGES = new ConcurrentHashMap<>();
+
+    private ServerMetrics() {
+    }
+
+    /**
+     * 计数器加一
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * 计数器累加
+     */
+    public static void add(String name, long delta) {
+        COUNTERS.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * 设置瞬时值
+     */
+    public static void set(String name, long value) {
+        GAUGES.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * 记录一次耗时
+     * 会生成 name.count / name.totalMicros / name.maxMicros 三项
+     *
+     * @param name 指标名
+     * @param nanos 耗时（纳秒）
+     */
+    public static void recordLatency(String name, long nanos) {
+        long micros = nanos / 1000;
+        add(name + ".count", 1);
+        add(name + ".totalMicros", micros);
+        GAUGES.computeIfAbsent(name + ".maxMicros", k -> new AtomicLong())
+              .accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * 读取计数器或瞬时值（都不存在时返回 0）
+     */
+    public static long get(String name) {
+        LongAdder counter = COUNTERS.get(name);
+        if (counter != null) {
+            return counter.sum();
+        }
+        AtomicLong gauge = GAUGES.get(name);
+        return gauge == null ? 0 : gauge.get();
+    }
+
+    /**
+     * 按名称排序的全部指标快照
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        COUNTERS.forEach((name, value) -> result.put(name, value.sum()));
+        GAUGES.forEach((name, value) -> result.put(name, value.get()));
+        return result;
+    }
+}
@@ -0,0 +1,235 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话录制（-Dftp.record=<文件>）
+ *
+ * 把每个会话收到的命令、发出的响应码和数据连接的字节数按时间顺序写入一个紧凑的二进制文件，
+ * 由 SessionReplay 在测试服务器上按原来的节奏重放，用生产环境真实的命令组合做基准测试。
+ * PASS 的参数不录制。
+ *
+ * 文件格式（大端，变长整数为 7 位一组、高位表示后面还有）：
+ *   int 魔数 'FTRC' | byte 版本 1 | long 开始时间（毫秒时间戳）
+ *   事件：byte 类型 | 变长 会话号 | 变长 距开始的微秒数 | 内容
+ *     'O' 会话开始    'X' 会话结束
+ *     'C' 命令：变长 长度 + UTF-8 命令行
+ *     'R' 响应：变长 响应码
+ *     'D' 数据连接：变长 本次传输的字节数
+ *
+ * 与 TransferLog 一样只把事件放进有界队列，由后台线程批量写盘；
+ * 队列满时丢弃事件并计数（record.dropped）。
+ */
+public final class SessionRecorder {
+
+    static final int MAGIC = 0x46545243;  // "FTRC"
+
+    static final int VERSION = 1;
+
+    static final byte SESSION_OPEN = 'O';
+    static final byte SESSION_CLOSE = 'X';
+    static final byte COMMAND = 'C';
+    static final byte REPLY = 'R';
+    static final byte DATA = 'D';
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("ftp.record.queue", 65536);
+
+    private static final int BATCH_SIZE = 1024;
+
+    private static final BlockingQueue<Event> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private static final AtomicInteger NEXT_SESSION = new AtomicInteger();
+
+    private static final long START_NANOS = System.nanoTime();
+
+    private static volatile boolean started = false;
+
+    private SessionRecorder() {
+    }
+
+    /**
+     * 一个事件（写入前不再修改）
+     */
+    private static final class Event {
+        final byte type;
+        final int session;
+        final long micros = (System.nanoTime() - START_NANOS) / 1000;
+        final long value;
+        final String text;
+
+        Event(byte type, int session, long value, String text) {
+            this.type = type;
+            this.session = session;
+            this.value = value;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 启动后台写入线程
+     *
+     * @param file 录制文件（覆盖写入）
+     * @return 是否启动成功
+     */
+    public static synchronized boolean start(Path file) {
+        if (started) {
+            return true;
+        }
+        DataOutputStream out;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(System.currentTimeMillis() - (System.nanoTime() - START_NANOS) / 1_000_000);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("[SessionRecorder] 无法打开录制文件 " + file + ": " + e.getMessage());
+            return false;
+        }
+
+        Thread thread = new Thread(() -> drainLoop(out), "ftp-recorder");
+        thread.setDaemon(true);
+        thread.start();
+        started = true;
+        System.out.println("[SessionRecorder] 会话录制: " + file);
+        return true;
+    }
+
+    /**
+     * 会话开始
+     *
+     * @return 会话号（未启用时为 0，其他方法收到 0 时什么也不做）
+     */
+    public static int open() {
+        if (!started) {
+            return 0;
+        }
+        int session = NEXT_SESSION.incrementAndGet();
+        submit(new Event(SESSION_OPEN, session, 0, null));
+        return session;
+    }
+
+    /**
+     * 会话结束
+     */
+    public static void close(int session) {
+        if (session != 0) {
+            submit(new Event(SESSION_CLOSE, session, 0, null));
+        }
+    }
+
+    /**
+     * 收到一条命令（PASS 的参数被替换掉）
+     */
+    public static void command(int session, String commandLine) {
+        if (session == 0) {
+            return;
+        }
+        if (commandLine.regionMatches(true, 0, "PASS", 0, 4)) {
+            commandLine = "PASS ****";
+        }
+        submit(new Event(COMMAND, session, 0, commandLine));
+    }
+
+    /**
+     * 发出一个响应
+     */
+    public static void reply(int session, int code) {
+        if (session != 0) {
+            submit(new Event(REPLY, session, code, null));
+        }
+    }
+
+    /**
+     * 一次数据传输结束
+     */
+    public static void data(int session, long bytes) {
+        if (session != 0) {
+            submit(new Event(DATA, session, bytes, null));
+        }
+    }
+
+    private static void submit(Event event) {
+        if (!QUEUE.offer(event)) {
+            ServerMetrics.increment("record.dropped");
+        }
+    }
+
+    /**
+     * 后台线程：取出事件批量写盘，每批 flush 一次
+     */
+    private static void drainLoop(DataOutputStream out) {
+        List<Event> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+                QUEUE.drainTo(batch, BATCH_SIZE - 1);
+                for (Event event : batch) {
+                    write(out, event);
+                }
+                out.flush();
+                ServerMetrics.add("record.events", batch.size());
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                ServerMetrics.add("record.dropped", batch.size());
+                System.err.println("[SessionRecorder] 写入录制文件失败: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    private static void write(DataOutputStream out, Event event) throws IOException {
+        out.writeByte(event.type);
+        writeVarLong(out, event.session);
+        writeVarLong(out, event.micros);
+        switch (event.type) {
+            case COMMAND:
+                byte[] bytes = event.text.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, bytes.length);
+                out.write(bytes);
+                break;
+            case REPLY:
+            case DATA:
+                writeVarLong(out, event.value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * 命令行的命令名（大写），供重放工具分类统计
+     */
+    static String verb(String commandLine) {
+        int space = commandLine.indexOf(' ');
+        String verb = (space < 0 ? commandLine : commandLine.substring(0, space)).toUpperCase(Locale.ROOT);
+        if (verb.equals("SITE") && space > 0) {
+            String rest = commandLine.substring(space + 1).trim();
+            int next = rest.indexOf(' ');
+            verb = "SITE " + (next < 0 ? rest : rest.substring(0, next)).toUpperCase(Locale.ROOT);
+        }
+        return verb;
+    }
+}
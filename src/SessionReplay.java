@@ -0,0 +1,696 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 会话重放工具（独立运行的客户端）
+ *
+ * 读取 SessionRecorder 录制的文件，对测试服务器按录制时的节奏重放每个会话的命令，
+ * 统计每类命令的延迟和传输吞吐量，与录制时的数据以及之前某次重放的结果对比：
+ * 1. 准备：录制中成功下载过的文件按录制的大小用合成内容上传到测试服务器
+ * 2. 重放：每个会话一个线程，命令按录制的时间发送（-speed 加速），上传用合成内容，下载的数据直接丢弃
+ * 3. 报告：每类命令的次数、录制 / 重放的 p50 和 p99 延迟、响应码不一致的次数
+ *
+ * 重放时的改写：
+ * - PORT / EPRT / EPSV 一律改为 PASV（录制中的客户端地址没有意义）
+ * - 录制中没有密码，PASS 使用 -pass 指定的密码
+ * - AUTH / PBSZ / PROT / CCC 和 MODE B 跳过，SITE DELTARETR 跳过（需要客户端的签名）
+ *
+ * 用法：
+ *   java -cp . data.SessionReplay <录制文件> [选项]
+ *     -host 127.0.0.1 -port 2121   测试服务器
+ *     -speed 1                     重放速度倍数，2 表示两倍速，0 表示不等待
+ *     -user <用户名>               覆盖录制中的用户名
+ *     -pass <密码>                 登录密码
+ *     -noprepare                   不上传下载用到的文件
+ *     -report <文件>               保存本次结果
+ *     -baseline <文件>             与之前保存的结果对比（例如上一个版本）
+ */
+public class SessionReplay {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
+    private static final Pattern REPLY_LINE = Pattern.compile("^(\\d{3})([ -]).*");
+
+    private static final Set<String> DOWNLOADS = Set.of(
+        "RETR", "LIST", "NLST", "SITE RETRZIP", "SITE RETRTAR", "SITE FIND", "SITE DELTASIG");
+
+    private static final Set<String> UPLOADS = Set.of(
+        "STOR", "APPE", "STOU", "SITE STORTAR", "SITE DELTASTOR");
+
+    private static final Set<String> SKIPPED = Set.of(
+        "AUTH", "PBSZ", "PROT", "CCC", "SITE DELTARETR");
+
+    /** 合成内容（重复使用同一段随机数据） */
+    private static final byte[] PAYLOAD = new byte[64 * 1024];
+
+    static {
+        new Random(1).nextBytes(PAYLOAD);
+    }
+
+    private final String host;
+    private final int port;
+    private final double speed;
+    private final String userOverride;
+    private final String password;
+
+    /** 每类命令的统计 */
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failedSessions = new AtomicLong();
+    private final AtomicLong maxLagMicros = new AtomicLong();
+
+    private SessionReplay(String host, int port, double speed, String userOverride, String password) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.userOverride = userOverride;
+        this.password = password;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("用法: java -cp . data.SessionReplay <录制文件> [-host h] [-port p] [-speed n]"
+                + " [-user u] [-pass p] [-noprepare] [-report 文件] [-baseline 文件]");
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-noprepare")) {
+                options.put("noprepare", "true");
+            } else if (args[i].startsWith("-") && i + 1 < args.length) {
+                options.put(args[i].substring(1), args[++i]);
+            }
+        }
+
+        List<SessionTrace> sessions = readTrace(args[0]);
+        int commands = sessions.stream().mapToInt(s -> s.steps.size()).sum();
+        System.out.println("录制文件: " + sessions.size() + " 个会话，" + commands + " 条命令");
+
+        SessionReplay replay = new SessionReplay(
+            options.getOrDefault("host", "127.0.0.1"),
+            Integer.parseInt(options.getOrDefault("port", "2121")),
+            Double.parseDouble(options.getOrDefault("speed", "1")),
+            options.get("user"),
+            options.getOrDefault("pass", ""));
+
+        if (!options.containsKey("noprepare")) {
+            replay.prepare(sessions);
+        }
+        long wallNanos = replay.run(sessions);
+
+        Properties result = replay.report(wallNanos);
+        if (options.containsKey("baseline")) {
+            compare(loadProperties(options.get("baseline")), result);
+        }
+        if (options.containsKey("report")) {
+            try (Writer out = Files.newBufferedWriter(Paths.get(options.get("report")), StandardCharsets.UTF_8)) {
+                result.store(out, "SessionReplay " + args[0]);
+            }
+            System.out.println("结果已保存到 " + options.get("report"));
+        }
+    }
+
+    // ==================== 读取录制文件 ====================
+
+    /**
+     * 录制中的一条命令
+     */
+    static final class Step {
+        final String command;
+        final String verb;
+        /** 距录制开始的微秒数 */
+        final long sendMicros;
+        int recordedCode = -1;
+        long recordedLatencyMicros = -1;
+        long dataBytes = 0;
+
+        Step(String command, long sendMicros) {
+            this.command = command;
+            this.verb = SessionRecorder.verb(command);
+            this.sendMicros = sendMicros;
+        }
+    }
+
+    /**
+     * 录制中的一个会话
+     */
+    static final class SessionTrace {
+        final int id;
+        final long openMicros;
+        final List<Step> steps = new ArrayList<>();
+        /** 读取时使用：还没有收到最终响应的命令 */
+        final Deque<Step> pending = new ArrayDeque<>();
+
+        SessionTrace(int id, long openMicros) {
+            this.id = id;
+            this.openMicros = openMicros;
+        }
+    }
+
+    /**
+     * 读取录制文件，按会话整理命令，并把响应码、延迟和数据字节数对应到命令上
+     * 一条命令的最终响应是它之后第一个非 1xx 的响应（按发送顺序一一对应）
+     */
+    static List<SessionTrace> readTrace(String file) throws IOException {
+        Map<Integer, SessionTrace> sessions = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(Paths.get(file)), 64 * 1024))) {
+            if (in.readInt() != SessionRecorder.MAGIC || in.readByte() != SessionRecorder.VERSION) {
+                throw new IOException("不是会话录制文件: " + file);
+            }
+            in.readLong();
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int id = (int) readVarLong(in);
+                long micros = readVarLong(in);
+                SessionTrace session = sessions.get(id);
+                switch (type) {
+                    case SessionRecorder.SESSION_OPEN:
+                        sessions.put(id, new SessionTrace(id, micros));
+                        break;
+                    case SessionRecorder.COMMAND: {
+                        byte[] text = new byte[(int) readVarLong(in)];
+                        in.readFully(text);
+                        if (session != null) {
+                            Step step = new Step(new String(text, StandardCharsets.UTF_8), micros);
+                            session.steps.add(step);
+                            session.pending.addLast(step);
+                        }
+                        break;
+                    }
+                    case SessionRecorder.REPLY: {
+                        int code = (int) readVarLong(in);
+                        if (session != null && code >= 200 && !session.pending.isEmpty()) {
+                            Step step = session.pending.pollFirst();
+                            step.recordedCode = code;
+                            step.recordedLatencyMicros = micros - step.sendMicros;
+                        }
+                        break;
+                    }
+                    case SessionRecorder.DATA: {
+                        long bytes = readVarLong(in);
+                        if (session != null && !session.steps.isEmpty()) {
+                            // 数据连接在最终响应之前释放，属于最早一条还没有响应的命令
+                            Step step = session.pending.isEmpty()
+                                ? session.steps.get(session.steps.size() - 1) : session.pending.peekFirst();
+                            step.dataBytes += bytes;
+                        }
+                        break;
+                    }
+                    case SessionRecorder.SESSION_CLOSE:
+                        break;
+                    default:
+                        throw new IOException("录制文件已损坏（未知事件类型 " + type + "）");
+                }
+            }
+        } catch (EOFException e) {
+            // 录制时服务器被强制停止，最后一个事件不完整
+        }
+        List<SessionTrace> result = new ArrayList<>();
+        for (SessionTrace session : sessions.values()) {
+            if (!session.steps.isEmpty()) {
+                result.add(session);
+            }
+        }
+        result.sort(Comparator.comparingLong(s -> s.openMicros));
+        return result;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("录制文件已损坏（变长整数过长）");
+    }
+
+    // ==================== 准备 ====================
+
+    /**
+     * 录制中成功下载过的文件，按录制的大小上传合成内容
+     * 会话的当前目录按录制中成功的 CWD / CDUP 推算
+     */
+    private void prepare(List<SessionTrace> sessions) throws IOException {
+        Map<String, Long> files = new TreeMap<>();
+        String user = userOverride;
+        for (SessionTrace session : sessions) {
+            String cwd = "/";
+            for (Step step : session.steps) {
+                String arg = argument(step.command);
+                if (user == null && step.verb.equals("USER")) {
+                    user = arg;
+                } else if (step.verb.equals("CWD") && step.recordedCode == 250) {
+                    cwd = resolve(cwd, arg);
+                } else if (step.verb.equals("CDUP") && step.recordedCode / 100 == 2) {
+                    cwd = resolve(cwd, "..");
+                } else if (step.verb.equals("RETR") && step.recordedCode == 226) {
+                    files.merge(resolve(cwd, arg), step.dataBytes, Math::max);
+                }
+            }
+        }
+        if (files.isEmpty() || user == null) {
+            return;
+        }
+
+        long bytes = 0;
+        try (Control control = new Control(host, port)) {
+            control.expect(control.readReply(), 220);
+            control.command("USER " + user);
+            control.expect(control.command("PASS " + password), 230);
+            control.command("TYPE I");
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                // 逐级创建父目录（已存在时服务器回复 550，忽略）
+                String path = file.getKey();
+                for (int slash = path.indexOf('/', 1); slash > 0; slash = path.indexOf('/', slash + 1)) {
+                    control.command("MKD " + path.substring(0, slash));
+                }
+                try (Socket data = control.openPassive()) {
+                    control.expect(control.command("STOR " + path), 150);
+                    writeSynthetic(data.getOutputStream(), file.getValue());
+                }
+                control.expect(control.readReply(), 226);
+                bytes += file.getValue();
+            }
+            control.command("QUIT");
+        }
+        System.out.println("准备: 上传 " + files.size() + " 个文件，" + bytes + " 字节");
+    }
+
+    // ==================== 重放 ====================
+
+    /**
+     * 按录制的开始时间依次启动会话线程，等待全部结束
+     *
+     * @return 重放的总耗时（纳秒）
+     */
+    private long run(List<SessionTrace> sessions) throws InterruptedException {
+        long traceStart = sessions.get(0).openMicros;
+        long wallStart = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (SessionTrace session : sessions) {
+            waitUntil(wallStart, session.openMicros - traceStart);
+            Thread thread = new Thread(() -> replaySession(session, wallStart, traceStart),
+                "replay-" + session.id);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - wallStart;
+    }
+
+    /**
+     * 重放一个会话
+     */
+    private void replaySession(SessionTrace session, long wallStart, long traceStart) {
+        try (Control control = new Control(host, port)) {
+            control.readReply();
+            InetSocketAddress dataAddress = null;
+            for (Step step : session.steps) {
+                long lag = waitUntil(wallStart, step.sendMicros - traceStart);
+                maxLagMicros.accumulateAndGet(lag, Math::max);
+
+                String verb = step.verb;
+                if (SKIPPED.contains(verb) || step.command.equalsIgnoreCase("MODE B")) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                String command = step.command;
+                if (verb.equals("USER") && userOverride != null) {
+                    command = "USER " + userOverride;
+                } else if (verb.equals("PASS")) {
+                    command = "PASS " + password;
+                } else if (verb.equals("PORT") || verb.equals("EPRT") || verb.equals("EPSV")) {
+                    verb = "PASV";
+                    command = "PASV";
+                }
+
+                long start = System.nanoTime();
+                int code;
+                long transferred = 0;
+                boolean upload = UPLOADS.contains(verb);
+                if (verb.equals("PASV")) {
+                    String reply = control.commandLine(command);
+                    code = Control.code(reply);
+                    dataAddress = code == 227 ? Control.passiveAddress(reply, host) : null;
+                } else if ((upload || DOWNLOADS.contains(verb)) && dataAddress != null) {
+                    try (Socket data = new Socket()) {
+                        data.connect(dataAddress, 10000);
+                        dataAddress = null;
+                        code = control.command(command);
+                        if (code / 100 == 1) {
+                            if (upload) {
+                                // 半关闭发送方向：服务器读到流结束，上传完成
+                                transferred = writeSynthetic(data.getOutputStream(), step.dataBytes);
+                                data.shutdownOutput();
+                            } else {
+                                transferred = drain(data.getInputStream());
+                            }
+                            code = control.readReply();
+                        }
+                    }
+                } else {
+                    code = control.command(command);
+                }
+                long micros = (System.nanoTime() - start) / 1000;
+                stats.computeIfAbsent(verb, k -> new Stats()).add(step, code, micros, transferred);
+
+                if (verb.equals("QUIT")) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            failedSessions.incrementAndGet();
+            System.err.println("会话 " + session.id + " 重放失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 等到录制中的时刻（按速度倍数换算）
+     *
+     * @return 实际比计划晚了多少微秒
+     */
+    private long waitUntil(long wallStart, long traceMicros) {
+        if (speed <= 0) {
+            return 0;
+        }
+        long target = wallStart + (long) (traceMicros * 1000 / speed);
+        long now = System.nanoTime();
+        while (now < target) {
+            LockSupport.parkNanos(target - now);
+            now = System.nanoTime();
+        }
+        return (now - target) / 1000;
+    }
+
+    private static long writeSynthetic(OutputStream out, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            int n = (int) Math.min(PAYLOAD.length, remaining);
+            out.write(PAYLOAD, 0, n);
+            remaining -= n;
+        }
+        out.flush();
+        return bytes;
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    // ==================== 统计和报告 ====================
+
+    /**
+     * 一类命令的统计
+     */
+    private static final class Stats {
+        private final List<Long> recorded = new ArrayList<>();
+        private final List<Long> replayed = new ArrayList<>();
+        private long mismatches;
+        private long recordedBytes;
+        private long recordedMicros;
+        private long replayedBytes;
+        private long replayedMicros;
+
+        synchronized void add(Step step, int code, long micros, long transferred) {
+            replayed.add(micros);
+            if (step.recordedLatencyMicros >= 0) {
+                recorded.add(step.recordedLatencyMicros);
+            }
+            if (code != step.recordedCode) {
+                mismatches++;
+            }
+            if (step.dataBytes > 0 && step.recordedLatencyMicros > 0) {
+                recordedBytes += step.dataBytes;
+                recordedMicros += step.recordedLatencyMicros;
+            }
+            if (transferred > 0) {
+                replayedBytes += transferred;
+                replayedMicros += micros;
+            }
+        }
+    }
+
+    /**
+     * 输出报告，返回可保存的结果（延迟单位微秒）
+     */
+    private Properties report(long wallNanos) {
+        Properties result = new Properties();
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue().replayed.size(), a.getValue().replayed.size()));
+
+        System.out.printf("%-16s %8s %12s %12s %12s %12s %8s%n",
+            "命令", "次数", "录制p50(ms)", "重放p50(ms)", "录制p99(ms)", "重放p99(ms)", "响应不同");
+        long total = 0;
+        long recordedBytes = 0;
+        long recordedMicros = 0;
+        long replayedBytes = 0;
+        long replayedMicros = 0;
+        for (Map.Entry<String, Stats> entry : entries) {
+            Stats s = entry.getValue();
+            long[] recorded = sorted(s.recorded);
+            long[] replayed = sorted(s.replayed);
+            System.out.printf("%-16s %8d %12.2f %12.2f %12.2f %12.2f %8d%n", entry.getKey(), replayed.length,
+                percentile(recorded, 0.5) / 1000.0, percentile(replayed, 0.5) / 1000.0,
+                percentile(recorded, 0.99) / 1000.0, percentile(replayed, 0.99) / 1000.0, s.mismatches);
+            result.setProperty(entry.getKey() + ".count", String.valueOf(replayed.length));
+            result.setProperty(entry.getKey() + ".p50Micros", String.valueOf(percentile(replayed, 0.5)));
+            result.setProperty(entry.getKey() + ".p99Micros", String.valueOf(percentile(replayed, 0.99)));
+            total += replayed.length;
+            recordedBytes += s.recordedBytes;
+            recordedMicros += s.recordedMicros;
+            replayedBytes += s.replayedBytes;
+            replayedMicros += s.replayedMicros;
+        }
+
+        double seconds = wallNanos / 1e9;
+        long recordedRate = recordedMicros == 0 ? 0 : recordedBytes * 1_000_000 / recordedMicros;
+        long replayedRate = replayedMicros == 0 ? 0 : replayedBytes * 1_000_000 / replayedMicros;
+        System.out.printf("共 %d 条命令，%.2f s，%.1f 条/s；跳过 %d 条；失败会话 %d 个；最大发送延后 %.1f ms%n",
+            total, seconds, total / seconds, skipped.get(), failedSessions.get(), maxLagMicros.get() / 1000.0);
+        System.out.printf("传输吞吐量（单个传输平均）：录制 %.1f KB/s，重放 %.1f KB/s%n",
+            recordedRate / 1024.0, replayedRate / 1024.0);
+        result.setProperty("total.commands", String.valueOf(total));
+        result.setProperty("total.wallMillis", String.valueOf(wallNanos / 1_000_000));
+        result.setProperty("transfer.bytesPerSec", String.valueOf(replayedRate));
+        return result;
+    }
+
+    /**
+     * 与之前保存的结果对比，输出变化百分比（正数表示变慢）
+     */
+    private static void compare(Properties baseline, Properties current) {
+        System.out.println("与基准对比（正数表示比基准慢）：");
+        Map<String, String> lines = new TreeMap<>();
+        for (String key : current.stringPropertyNames()) {
+            if (!key.endsWith(".p50Micros") && !key.endsWith(".p99Micros")
+                    && !key.equals("total.wallMillis") && !key.equals("transfer.bytesPerSec")) {
+                continue;
+            }
+            String before = baseline.getProperty(key);
+            if (before == null) {
+                continue;
+            }
+            double old = Double.parseDouble(before);
+            double now = Double.parseDouble(current.getProperty(key));
+            if (old == 0) {
+                continue;
+            }
+            double change = (now - old) / old * 100;
+            // 吞吐量越大越好，符号反过来
+            if (key.equals("transfer.bytesPerSec")) {
+                change = -change;
+            }
+            lines.put(key, String.format("  %-28s %12.0f -> %12.0f  %+7.1f%%", key, old, now, change));
+        }
+        lines.values().forEach(System.out::println);
+    }
+
+    private static Properties loadProperties(String file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static long[] sorted(List<Long> values) {
+        long[] array = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(array);
+        return array;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    // ==================== 工具 ====================
+
+    private static String argument(String command) {
+        int space = command.indexOf(' ');
+        return space < 0 ? "" : command.substring(space + 1).trim();
+    }
+
+    /**
+     * 按 FTP 的规则把参数解析为绝对虚拟路径
+     */
+    static String resolve(String cwd, String arg) {
+        String joined = arg.startsWith("/") ? arg : cwd + "/" + arg;
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : joined.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return "/" + String.join("/", parts);
+    }
+
+    /**
+     * 控制连接
+     */
+    private static final class Control implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final OutputStream writer;
+
+        Control(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 10000);
+            socket.setSoTimeout(60000);
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = socket.getOutputStream();
+        }
+
+        int command(String line) throws IOException {
+            return code(commandLine(line));
+        }
+
+        /** 发送命令，返回最终响应行 */
+        String commandLine(String line) throws IOException {
+            writer.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            writer.flush();
+            return readReplyLine();
+        }
+
+        int readReply() throws IOException {
+            return code(readReplyLine());
+        }
+
+        /**
+         * 读取一个响应，多行响应读到结束行为止；不是响应格式的行（如 HELP 的列表）跳过
+         */
+        String readReplyLine() throws IOException {
+            String continued = null;
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new EOFException("控制连接已关闭");
+                }
+                Matcher m = REPLY_LINE.matcher(line);
+                if (!m.matches()) {
+                    continue;
+                }
+                if (m.group(2).equals("-")) {
+                    continued = m.group(1);
+                } else if (continued == null || continued.equals(m.group(1))) {
+                    return line;
+                }
+            }
+        }
+
+        void expect(int code, int expected) throws IOException {
+            if (code != expected) {
+                throw new IOException("期望响应 " + expected + "，实际 " + code);
+            }
+        }
+
+        Socket openPassive() throws IOException {
+            String reply = commandLine("PASV");
+            if (code(reply) != 227) {
+                throw new IOException("PASV 失败: " + reply);
+            }
+            Socket data = new Socket();
+            data.connect(passiveAddress(reply, socket.getInetAddress().getHostAddress()), 10000);
+            return data;
+        }
+
+        static int code(String reply) {
+            return Integer.parseInt(reply.substring(0, 3));
+        }
+
+        /** 解析 227 响应中的地址（服务器返回 0.0.0.0 时用控制连接的主机） */
+        static InetSocketAddress passiveAddress(String reply, String fallbackHost) throws IOException {
+            Matcher m = PASV_REPLY.matcher(reply);
+            if (!m.find()) {
+                throw new IOException("无法解析 PASV 响应: " + reply);
+            }
+            String address = m.group(1) + "." + m.group(2) + "." + m.group(3) + "." + m.group(4);
+            int port = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+            return new InetSocketAddress(address.equals("0.0.0.0") ? fallbackHost : address, port);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
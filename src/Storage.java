@@ -0,0 +1,114 @@
+package data;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * 存储后端接口
+ *
+ * 会话只通过这里访问文件内容和目录结构，路径仍然是 PathValidator 校验过的、
+ * 根目录下的绝对 Path（后端把它当作键，不一定对应磁盘上的文件）。
+ *
+ * 实现：
+ * - LocalStorage：本地文件系统（默认）
+ * - MemoryStorage：内存（堆外）存储，-Dftp.storage=memory 开启，
+ *   用于排除磁盘干扰测量协议处理、作为临时交换区、以及可重复的传输测试
+ *
+ * 去重、配额、文件名索引、打包传输、SITE COPY 和递归列表直接操作本地磁盘，
+ * 只在 isLocal() 为 true 时可用。
+ *
+ * 所有方法都必须是线程安全的。
+ */
+public interface Storage {
+
+    /**
+     * 读取属性
+     *
+     * @throws java.nio.file.NoSuchFileException 路径不存在
+     */
+    BasicFileAttributes stat(Path path) throws IOException;
+
+    /**
+     * 列出目录下的条目（返回的 Path 是 dir.resolve(名称)）
+     *
+     * @param filter 过滤条件，null 表示全部
+     * @throws java.nio.file.NotDirectoryException 不是目录
+     */
+    DirectoryStream<Path> list(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException;
+
+    /**
+     * 打开文件读取
+     */
+    SeekableByteChannel openRead(Path path) throws IOException;
+
+    /**
+     * 打开文件写入（不存在则创建，存在则清空）
+     *
+     * @throws java.nio.file.NoSuchFileException 父目录不存在
+     */
+    SeekableByteChannel openWrite(Path path) throws IOException;
+
+    /**
+     * 删除文件或空目录
+     */
+    void delete(Path path) throws IOException;
+
+    /**
+     * 创建目录（父目录必须存在）
+     *
+     * @throws java.nio.file.FileAlreadyExistsException 已存在
+     */
+    void mkdir(Path path) throws IOException;
+
+    /**
+     * 移动或重命名（目标存在时覆盖）
+     */
+    void move(Path source, Path target) throws IOException;
+
+    /**
+     * 目录是否允许写入
+     */
+    boolean isWritable(Path dir);
+
+    /**
+     * 是否是本地文件系统（Path 可以直接交给 Files 使用）
+     */
+    boolean isLocal();
+
+    /**
+     * 路径是否存在
+     */
+    default boolean exists(Path path) {
+        try {
+            stat(path);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 路径是否存在且为目录
+     */
+    default boolean isDirectory(Path path) {
+        try {
+            return stat(path).isDirectory();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 路径是否存在且为普通文件
+     */
+    default boolean isRegularFile(Path path) {
+        try {
+            return stat(path).isRegularFile();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TAR 格式（POSIX ustar + GNU 长文件名扩展）
+ *
+ * 写出只实现本服务器需要的部分：普通文件和目录。
+ * 读取时识别 ustar 前缀、GNU 长文件名和 pax 扩展头中的 path，其余类型原样报告给调用方。
+ * 文件名超过 100 字节时使用 GNU "././@LongLink" 扩展，
+ * 文件大小超过 8GB（11 位八进制的上限）时使用 GNU base-256 编码。
+ */
+public final class TarArchive {
+
+    /** TAR 块大小 */
+    public static final int BLOCK = 512;
+
+    public static final byte TYPE_FILE = '0';
+    public static final byte TYPE_DIR = '5';
+    private static final byte TYPE_LONGNAME = 'L';
+    private static final byte TYPE_PAX = 'x';
+    private static final byte TYPE_PAX_GLOBAL = 'g';
+
+    /** 长文件名 / pax 扩展头的最大长度，防止恶意数据占满内存 */
+    private static final int MAX_META_SIZE = 64 * 1024;
+
+    private TarArchive() {
+    }
+
+    /**
+     * 顺序写出 TAR 流
+     *
+     * 用法：对每个条目先 putFile/putDirectory，再写入正好 size 字节的内容，
+     * 然后 closeEntry；全部写完后调用 finish。
+     */
+    public static final class Writer {
+        private final OutputStream out;
+        private final byte[] header = new byte[BLOCK];
+        private long entryRemaining = 0;
+        private long entrySize = 0;
+
+        public Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * 开始一个普通文件条目
+         */
+        public void putFile(String name, long size, long mtimeMillis) throws IOException {
+            writeHeader(name, TYPE_FILE, size, mtimeMillis, 0644);
+            entrySize = size;
+            entryRemaining = size;
+        }
+
+        /**
+         * 写入一个目录条目（没有内容）
+         */
+        public void putDirectory(String name, long mtimeMillis) throws IOException {
+            String dirName = name.endsWith("/") ? name : name + "/";
+            writeHeader(dirName, TYPE_DIR, 0, mtimeMillis, 0755);
+            entrySize = 0;
+            entryRemaining = 0;
+        }
+
+        /**
+         * 写入当前条目的内容
+         */
+        public void write(byte[] buf, int off, int len) throws IOException {
+            if (len > entryRemaining) {
+                throw new IOException("TAR 条目内容超过声明的大小");
+            }
+            out.write(buf, off, len);
+            entryRemaining -= len;
+        }
+
+        /**
+         * 结束当前条目：检查长度并补齐到 512 字节边界
+         */
+        public void closeEntry() throws IOException {
+            if (entryRemaining != 0) {
+                throw new IOException("TAR 条目内容不足，还差 " + entryRemaining + " 字节");
+            }
+            int pad = (int) ((BLOCK - entrySize % BLOCK) % BLOCK);
+            if (pad > 0) {
+                out.write(new byte[pad]);
+            }
+            entrySize = 0;
+        }
+
+        /**
+         * 写出结束标记（两个全零块）并刷新
+         */
+        public void finish() throws IOException {
+            out.write(new byte[BLOCK * 2]);
+            out.flush();
+        }
+
+        private void writeHeader(String name, byte type, long size, long mtimeMillis, int mode) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > 100) {
+                // GNU 长文件名：先写一个类型为 L 的条目，内容是完整文件名
+                fillHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), TYPE_LONGNAME,
+                    nameBytes.length + 1, 0, 0644);
+                out.write(header);
+                out.write(nameBytes);
+                out.write(0);
+                int pad = (BLOCK - (nameBytes.length + 1) % BLOCK) % BLOCK;
+                out.write(new byte[pad]);
+            }
+            fillHeader(nameBytes, type, size, mtimeMillis / 1000, mode);
+            out.write(header);
+        }
+
+        private void fillHeader(byte[] nameBytes, byte type, long size, long mtimeSeconds, int mode) {
+            java.util.Arrays.fill(header, (byte) 0);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+            writeOctal(mode, 100, 8);
+            writeOctal(0, 108, 8);              // uid
+            writeOctal(0, 116, 8);              // gid
+            if (size < 077777777777L) {
+                writeOctal(size, 124, 12);
+            } else {
+                // base-256：首字节最高位置 1，其余按大端写入
+                header[124] = (byte) 0x80;
+                for (int i = 0; i < 8; i++) {
+                    header[135 - i] = (byte) (size >>> (8 * i));
+                }
+            }
+            writeOctal(mtimeSeconds, 136, 12);
+            header[156] = type;
+            byte[] magic = "ustar".getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(magic, 0, header, 257, magic.length);
+            header[263] = '0';
+            header[264] = '0';
+
+            // 校验和：计算时校验和字段按 8 个空格计
+            java.util.Arrays.fill(header, 148, 156, (byte) ' ');
+            long sum = 0;
+            for (byte b : header) {
+                sum += b & 0xff;
+            }
+            writeOctal(sum, 148, 7);
+            header[155] = ' ';
+        }
+
+        /**
+         * 以 NUL 结尾、前补 0 的八进制写入字段
+         */
+        private void writeOctal(long value, int offset, int length) {
+            String text = Long.toOctalString(value);
+            int digits = length - 1;
+            int pos = offset;
+            for (int i = text.length(); i < digits; i++) {
+                header[pos++] = '0';
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, Math.max(0, bytes.length - digits), header, pos, Math.min(digits, bytes.length));
+            header[offset + length - 1] = 0;
+        }
+    }
+
+    /**
+     * TAR 条目信息
+     */
+    public static final class Entry {
+        public final String name;
+        public final byte type;
+        public final long size;
+        public final long mtimeMillis;
+
+        Entry(String name, byte type, long size, long mtimeMillis) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.mtimeMillis = mtimeMillis;
+        }
+
+        public boolean isFile() {
+            // 老式 TAR 用 NUL 表示普通文件
+            return type == TYPE_FILE || type == 0;
+        }
+
+        public boolean isDirectory() {
+            return type == TYPE_DIR || (type == 0 && name.endsWith("/"));
+        }
+    }
+
+    /**
+     * 顺序读取 TAR 流
+     *
+     * 用法：循环调用 next() 取得条目，需要内容时在下一次 next() 之前调用 read；
+     * 未读完的内容会在 next() 中自动跳过。
+     */
+    public static final class Reader {
+        private final InputStream in;
+        private final byte[] header = new byte[BLOCK];
+        private long entryRemaining = 0;
+        private long entryPadding = 0;
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * 读取下一个条目的头部
+         *
+         * @return 条目，到达归档末尾时返回 null
+         * @throws IOException 格式错误或读取失败
+         */
+        public Entry next() throws IOException {
+            skipRest();
+
+            String longName = null;
+            while (true) {
+                if (!readBlock(header)) {
+                    return null;
+                }
+                if (isZeroBlock(header)) {
+                    return null;
+                }
+                verifyChecksum();
+
+                byte type = header[156];
+                long size = parseNumber(124, 12);
+                if (size < 0) {
+                    throw new IOException("TAR 条目大小无效");
+                }
+
+                if (type == TYPE_LONGNAME || type == TYPE_PAX || type == TYPE_PAX_GLOBAL) {
+                    if (size > MAX_META_SIZE) {
+                        throw new IOException("TAR 扩展头过大: " + size);
+                    }
+                    byte[] meta = new byte[(int) size];
+                    readFully(meta, 0, meta.length);
+                    skipFully((BLOCK - size % BLOCK) % BLOCK);
+                    if (type == TYPE_LONGNAME) {
+                        longName = cString(meta, 0, meta.length);
+                    } else if (type == TYPE_PAX) {
+                        String paxPath = parsePaxPath(meta);
+                        if (paxPath != null) {
+                            longName = paxPath;
+                        }
+                    }
+                    continue;
+                }
+
+                String name = longName;
+                if (name == null) {
+                    name = cString(header, 0, 100);
+                    // ustar 前缀字段（345~500）
+                    if (header[257] == 'u' && header[345] != 0) {
+                        name = cString(header, 345, 155) + "/" + name;
+                    }
+                }
+                long mtime = parseNumber(136, 12) * 1000;
+
+                entryRemaining = size;
+                entryPadding = (BLOCK - size % BLOCK) % BLOCK;
+                // 目录等条目按规范没有内容
+                if (type == TYPE_DIR) {
+                    entryRemaining = 0;
+                    entryPadding = 0;
+                }
+                return new Entry(name, type, size, mtime);
+            }
+        }
+
+        /**
+         * 读取当前条目的内容
+         *
+         * @return 读到的字节数，当前条目已读完时返回 -1
+         */
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (entryRemaining <= 0) {
+                return -1;
+            }
+            int n = in.read(buf, off, (int) Math.min(len, entryRemaining));
+            if (n < 0) {
+                throw new EOFException("TAR 条目内容不完整");
+            }
+            entryRemaining -= n;
+            return n;
+        }
+
+        /**
+         * 读取当前条目的全部内容（调用方需保证条目不大）
+         */
+        public byte[] readAll() throws IOException {
+            byte[] data = new byte[(int) entryRemaining];
+            readFully(data, 0, data.length);
+            entryRemaining = 0;
+            return data;
+        }
+
+        private void skipRest() throws IOException {
+            skipFully(entryRemaining + entryPadding);
+            entryRemaining = 0;
+            entryPadding = 0;
+        }
+
+        private boolean readBlock(byte[] block) throws IOException {
+            int total = 0;
+            while (total < BLOCK) {
+                int n = in.read(block, total, BLOCK - total);
+                if (n < 0) {
+                    if (total == 0) {
+                        return false;  // 没有结束块的归档也接受
+                    }
+                    throw new EOFException("TAR 头部不完整");
+                }
+                total += n;
+            }
+            return true;
+        }
+
+        private void readFully(byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = in.read(buf, off, len);
+                if (n < 0) {
+                    throw new EOFException("TAR 内容不完整");
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void skipFully(long count) throws IOException {
+            byte[] scratch = null;
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    // skip 不保证前进，退回到读取
+                    if (scratch == null) {
+                        scratch = new byte[BLOCK * 8];
+                    }
+                    int n = in.read(scratch, 0, (int) Math.min(scratch.length, count));
+                    if (n < 0) {
+                        throw new EOFException("TAR 内容不完整");
+                    }
+                    skipped = n;
+                }
+                count -= skipped;
+            }
+        }
+
+        private static boolean isZeroBlock(byte[] block) {
+            for (byte b : block) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void verifyChecksum() throws IOException {
+            long expected = parseNumber(148, 8);
+            long sum = 0;
+            for (int i = 0; i < BLOCK; i++) {
+                sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+            }
+            if (sum != expected) {
+                throw new IOException("TAR 头部校验和错误");
+            }
+        }
+
+        /**
+         * 解析八进制数字段，或 GNU base-256 编码（首字节最高位为 1）
+         */
+        private long parseNumber(int offset, int length) {
+            if ((header[offset] & 0x80) != 0) {
+                long value = 0;
+                for (int i = offset + 1; i < offset + length; i++) {
+                    value = (value << 8) | (header[i] & 0xff);
+                }
+                return value;
+            }
+            long value = 0;
+            for (int i = offset; i < offset + length; i++) {
+                byte b = header[i];
+                if (b == 0 || b == ' ') {
+                    if (value != 0) {
+                        break;
+                    }
+                    continue;
+                }
+                if (b < '0' || b > '7') {
+                    break;
+                }
+                value = value * 8 + (b - '0');
+            }
+            return value;
+        }
+
+        /**
+         * pax 扩展头格式："长度 key=value\n" 重复若干条，这里只取 path
+         * 长度是字节数，所以在字节数组上逐条切分，只把 path 的值按 UTF-8 解码
+         */
+        private static String parsePaxPath(byte[] meta) {
+            int pos = 0;
+            while (pos < meta.length) {
+                // 十进制长度，后跟一个空格
+                int recordLen = 0;
+                int space = pos;
+                while (space < meta.length && meta[space] >= '0' && meta[space] <= '9' && recordLen < meta.length) {
+                    recordLen = recordLen * 10 + (meta[space] - '0');
+                    space++;
+                }
+                if (space == pos || space >= meta.length || meta[space] != ' ') {
+                    break;
+                }
+                int end = pos + recordLen;  // 记录结束位置（不含），最后一个字节是 \n
+                if (recordLen <= 0 || end > meta.length || end - 1 <= space || meta[end - 1] != '\n') {
+                    break;
+                }
+                int keyStart = space + 1;
+                if (end - 1 - keyStart >= 5 && meta[keyStart] == 'p' && meta[keyStart + 1] == 'a'
+                        && meta[keyStart + 2] == 't' && meta[keyStart + 3] == 'h' && meta[keyStart + 4] == '=') {
+                    return new String(meta, keyStart + 5, end - 1 - (keyStart + 5), StandardCharsets.UTF_8);
+                }
+                pos = end;
+            }
+            return null;
+        }
+
+        private static String cString(byte[] buf, int offset, int length) {
+            int end = offset;
+            while (end < offset + length && buf[end] != 0) {
+                end++;
+            }
+            return new String(buf, offset, end - offset, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务器的线程池划分
+ *
+ * 会话线程和传输线程分开调度，大批量下载不会占满会话线程，
+ * 新连接照样能收到 220，已登录的用户照样能执行 CWD / SIZE 等控制命令：
+ * 1. control：会话线程（读取控制连接、执行控制命令），大部分时间阻塞在读命令上，数量可以较多
+ * 2. interactive：目录列表、查找和小文件下载，线程独立，不会排在批量传输后面
+ * 3. bulk：大文件下载、上传和打包传输，线程数有上限，超出的传输排队
+ *
+ * 配置：
+ *   -Dftp.control.threads=256             会话线程数
+ *   -Dftp.transfer.interactiveThreads=8   交互传输线程数
+ *   -Dftp.transfer.bulkThreads=32         批量传输线程数
+ *   -Dftp.transfer.smallFile=1048576      不超过该大小的下载走交互通道（字节）
+ *
+ * 指标（SITE METRICS）：
+ *   sched.<池>.queued / active  - 排队中和执行中的任务数
+ *   sched.<池>.queueWait        - 任务从提交到开始执行的等待时间
+ */
+public final class TaskScheduler {
+
+    /** 传输的优先级类别 */
+    public enum Lane {
+        /** 目录列表、查找、小文件下载 */
+        INTERACTIVE,
+        /** 大文件下载、上传、打包传输 */
+        BULK
+    }
+
+    /** 不超过该大小的下载走交互通道 */
+    public static final long SMALL_FILE_BYTES = Long.getLong("ftp.transfer.smallFile", 1024 * 1024);
+
+    private static final Pool CONTROL = new Pool("control",
+        Math.max(1, Integer.getInteger("ftp.control.threads", 256)), false);
+
+    private static final Pool INTERACTIVE = new Pool("interactive",
+        Math.max(1, Integer.getInteger("ftp.transfer.interactiveThreads", 8)), true);
+
+    private static final Pool BULK = new Pool("bulk",
+        Math.max(1, Integer.getInteger("ftp.transfer.bulkThreads", 32)), true);
+
+    private TaskScheduler() {
+    }
+
+    /**
+     * 会话线程池（交给 accept 线程提交会话）
+     */
+    public static ExecutorService control() {
+        return CONTROL;
+    }
+
+    /**
+     * 在对应通道的传输线程池中执行一次传输
+     */
+    public static Future<?> submitTransfer(Lane lane, Runnable task) {
+        return (lane == Lane.INTERACTIVE ? INTERACTIVE : BULK).submit(task);
+    }
+
+    /**
+     * 下载的通道：已知大小且不超过 SMALL_FILE_BYTES 时走交互通道
+     *
+     * @param size 文件大小，未知时传 -1
+     */
+    public static Lane laneForDownload(long size) {
+        return size >= 0 && size <= SMALL_FILE_BYTES ? Lane.INTERACTIVE : Lane.BULK;
+    }
+
+    /**
+     * 各线程池的线程数（启动日志用）
+     */
+    public static String describe() {
+        return "control=" + CONTROL.getMaximumPoolSize()
+            + ", interactive=" + INTERACTIVE.getMaximumPoolSize()
+            + ", bulk=" + BULK.getMaximumPoolSize();
+    }
+
+    /**
+     * 固定大小、无界队列的线程池，提交和执行时更新排队指标
+     */
+    private static final class Pool extends ThreadPoolExecutor {
+        private final String queuedMetric;
+        private final String activeMetric;
+        private final String waitMetric;
+
+        Pool(String name, int threads, boolean daemon) {
+            super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory(name, daemon));
+            // 空闲线程超时退出，低峰期不占着几百个线程
+            allowCoreThreadTimeOut(true);
+            this.queuedMetric = "sched." + name + ".queued";
+            this.activeMetric = "sched." + name + ".active";
+            this.waitMetric = "sched." + name + ".queueWait";
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            long submitted = System.nanoTime();
+            super.execute(() -> {
+                ServerMetrics.recordLatency(waitMetric, System.nanoTime() - submitted);
+                command.run();
+            });
+            updateGauges(0);
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            updateGauges(0);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            // 执行 afterExecute 时当前任务仍计入 getActiveCount
+            updateGauges(-1);
+        }
+
+        private void updateGauges(int activeAdjust) {
+            ServerMetrics.set(queuedMetric, getQueue().size());
+            ServerMetrics.set(activeMetric, Math.max(0, getActiveCount() + activeAdjust));
+        }
+
+        private static ThreadFactory threadFactory(String name, boolean daemon) {
+            AtomicInteger counter = new AtomicInteger();
+            return r -> {
+                Thread t = new Thread(r, "ftp-" + name + "-" + counter.incrementAndGet());
+                t.setDaemon(daemon);
+                return t;
+            };
+        }
+    }
+}
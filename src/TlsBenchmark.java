@@ -0,0 +1,281 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * FTPS 数据连接会话恢复的基准测试（独立运行的客户端）
+ *
+ * 同一个文件用 PROT P 连续下载 N 次，分两轮：
+ * 1. 数据连接恢复控制连接的 TLS 会话（数据连接的 SSLEngine 以控制连接的地址和端口创建）
+ * 2. 每个数据连接都用新的 SSLContext，强制完整握手
+ * 输出每轮的耗时、吞吐量，以及服务器 SITE METRICS 中完整握手 / 恢复握手次数的增量。
+ *
+ * 用法（服务器需以 -Dftp.tls.keystore 启动）：
+ *   java -cp . data.TlsBenchmark [主机] [端口] [用户] [密码] [文件] [次数]
+ *   java -cp . data.TlsBenchmark 127.0.0.1 2121 alice 123456 small.txt 200
+ *
+ * 只用于测试：不校验服务器证书。
+ */
+public class TlsBenchmark {
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
+    private final String host;
+    private final int port;
+    private SSLContext controlContext;
+    private SSLSocket control;
+    private BufferedReader reader;
+    private OutputStream writer;
+
+    private TlsBenchmark(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 2121;
+        String user = args.length > 2 ? args[2] : "alice";
+        String pass = args.length > 3 ? args[3] : "123456";
+        String file = args.length > 4 ? args[4] : "small.txt";
+        int count = args.length > 5 ? Integer.parseInt(args[5]) : 100;
+
+        TlsBenchmark bench = new TlsBenchmark(host, port);
+        bench.login(user, pass);
+        bench.round("会话恢复", file, count, true);
+        bench.round("完整握手", file, count, false);
+        bench.command("QUIT");
+    }
+
+    /**
+     * 连接、AUTH TLS、登录、PBSZ 0、PROT P
+     */
+    private void login(String user, String pass) throws IOException, GeneralSecurityException {
+        controlContext = trustAllContext();
+        Socket plain = new Socket();
+        plain.connect(new InetSocketAddress(host, port), 10000);
+        reader = new BufferedReader(new InputStreamReader(plain.getInputStream(), StandardCharsets.UTF_8));
+        writer = plain.getOutputStream();
+        expect(readReply(), "220");
+        expect(command("AUTH TLS"), "234");
+
+        control = (SSLSocket) controlContext.getSocketFactory().createSocket(plain, host, port, true);
+        control.startHandshake();
+        reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+        writer = control.getOutputStream();
+
+        expect(command("USER " + user), "331");
+        expect(command("PASS " + pass), "230");
+        expect(command("PBSZ 0"), "200");
+        expect(command("PROT P"), "200");
+        expect(command("TYPE I"), "200");
+        System.out.println("控制连接: " + control.getSession().getProtocol() + " " + control.getSession().getCipherSuite());
+    }
+
+    /**
+     * 下载 count 次，输出耗时、吞吐量和握手次数
+     */
+    private void round(String label, String file, int count, boolean reuse) throws Exception {
+        Map<String, Long> before = metrics();
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            bytes += retrieve(file, reuse);
+        }
+        long nanos = System.nanoTime() - start;
+        Map<String, Long> after = metrics();
+
+        long full = delta(before, after, "tls.handshake.full");
+        long resumed = delta(before, after, "tls.handshake.resumed");
+        long handshakes = delta(before, after, "tls.handshake.data.count");
+        long handshakeMicros = delta(before, after, "tls.handshake.data.totalMicros");
+        double seconds = nanos / 1e9;
+        System.out.printf("%s: %d 次传输，%.3f s，平均 %.2f ms/次，%.1f KB/s，完整握手 %d 次，恢复握手 %d 次，服务端握手平均 %.2f ms%n",
+            label, count, seconds, seconds * 1000 / count, bytes / 1024.0 / seconds, full, resumed,
+            handshakes == 0 ? 0.0 : handshakeMicros / 1000.0 / handshakes);
+    }
+
+    private long retrieve(String file, boolean reuse) throws Exception {
+        String pasv = command("PASV");
+        expect(pasv, "227");
+        Matcher m = PASV_REPLY.matcher(pasv);
+        if (!m.find()) {
+            throw new IOException("无法解析 PASV 响应: " + pasv);
+        }
+        int dataPort = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, dataPort))) {
+            channel.socket().setTcpNoDelay(true);
+            send("RETR " + file);
+            expect(readReply(), "150");
+            // JDK 的 SSLSocket 按实际连接的端口查找会话缓存，数据连接找不到控制连接的会话；
+            // SSLEngine 按创建时给出的地址和端口查找，用控制连接的端口即可提供控制连接的会话
+            SSLEngine engine = reuse
+                ? controlContext.createSSLEngine(host, port)
+                : trustAllContext().createSSLEngine(host, dataPort);
+            engine.setUseClientMode(true);
+            long total = receive(engine, channel);
+            expect(readReply(), "226");
+            return total;
+        }
+    }
+
+    /**
+     * 在阻塞的 SocketChannel 上用 SSLEngine 完成握手并读到对端关闭
+     *
+     * @return 收到的明文字节数
+     */
+    private static long receive(SSLEngine engine, SocketChannel channel) throws IOException {
+        SSLSession session = engine.getSession();
+        ByteBuffer netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer app = ByteBuffer.allocate(session.getApplicationBufferSize());
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        long total = 0;
+
+        engine.beginHandshake();
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+            if (status == HandshakeStatus.NEED_WRAP) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(empty, netOut);
+                netOut.flip();
+                while (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    return total;
+                }
+                continue;
+            }
+
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, app);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (channel.read(netIn) < 0) {
+                        return total;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    app.flip();
+                    total += app.remaining();
+                    app.clear();
+                    break;
+                case CLOSED:
+                    // 收到 close_notify：回复 close_notify 后结束（由 NEED_WRAP 分支发出）
+                    engine.closeOutbound();
+                    break;
+                default:
+                    app.flip();
+                    total += app.remaining();
+                    app.clear();
+                    break;
+            }
+        }
+    }
+
+    private Map<String, Long> metrics() throws IOException {
+        send("SITE METRICS");
+        Map<String, Long> result = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("211 ")) {
+                break;
+            }
+            int eq = line.indexOf('=');
+            if (line.startsWith(" ") && eq > 0) {
+                result.put(line.substring(1, eq), Long.parseLong(line.substring(eq + 1).trim()));
+            }
+        }
+        return result;
+    }
+
+    private static long delta(Map<String, Long> before, Map<String, Long> after, String name) {
+        return after.getOrDefault(name, 0L) - before.getOrDefault(name, 0L);
+    }
+
+    private String command(String line) throws IOException {
+        send(line);
+        return readReply();
+    }
+
+    private void send(String line) throws IOException {
+        writer.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        writer.flush();
+    }
+
+    /**
+     * 读取一个完整响应（多行响应返回最后一行）
+     */
+    private String readReply() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("连接已关闭");
+        }
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String code = line.substring(0, 3);
+            while ((line = reader.readLine()) != null && !line.startsWith(code + " ")) {
+                // 跳过中间行
+            }
+        }
+        return line;
+    }
+
+    private static void expect(String reply, String code) throws IOException {
+        if (reply == null || !reply.startsWith(code)) {
+            throw new IOException("期望 " + code + "，收到: " + reply);
+        }
+    }
+
+    private static SSLContext trustAllContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] {trustAll}, null);
+        return ctx;
+    }
+}
@@ -0,0 +1,173 @@
+package data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * 显式 FTPS（AUTH TLS）支持
+ *
+ * 控制连接在 AUTH TLS 之后升级为 TLS；PROT P 之后每个数据连接也使用 TLS，
+ * 服务端始终是 TLS 服务端（主动模式下虽然是服务器发起 TCP 连接，握手角色不变）。
+ *
+ * 所有连接共用同一个 SSLContext，也就共用服务端的会话缓存：
+ * 客户端在数据连接上提供控制连接的会话时，只做简化握手（会话恢复），
+ * 省去每次传输一次完整握手的非对称运算。握手次数分别计入
+ * tls.handshake.full / tls.handshake.resumed，可用 SITE METRICS 查看。
+ *
+ * ftp.tls.requireReuse 要求数据连接恢复的正是本会话控制连接的会话（防止数据连接被第三方抢连）：
+ *   TLS 1.2 恢复后会话 ID 与控制连接相同；TLS 1.3 每次恢复都产生新 ID 的会话，
+ *   这时看会话上绑定的来源标记（JSSE 从票据派生会话时沿用原会话的绑定值）。
+ *   无状态会话票据恢复出的会话与原会话没有任何关联，开启此项时改用服务端会话缓存；
+ *   TLS 1.3 的票据只能用一次，客户端需要使用最新收到的票据。
+ *
+ * 配置（未配置密钥库时不支持 AUTH TLS）：
+ *   -Dftp.tls.keystore=ftp.p12        PKCS12 密钥库
+ *   -Dftp.tls.password=changeit       密钥库密码
+ *   -Dftp.tls.required=true           要求登录和数据传输都必须加密
+ *   -Dftp.tls.requireReuse=true       要求数据连接恢复控制连接的会话（拒绝完整握手）
+ *   -Dftp.tls.sessionCacheSize=10000  会话缓存条目数
+ *   -Dftp.tls.sessionTimeout=3600     会话缓存有效期（秒）
+ *
+ * 生成自签名证书：
+ *   keytool -genkeypair -alias ftp -keyalg EC -keystore ftp.p12 -storetype PKCS12 -dname CN=ftp
+ */
+public final class TlsSupport {
+
+    /** 是否要求登录和数据传输都必须加密 */
+    public static final boolean REQUIRED = Boolean.getBoolean("ftp.tls.required");
+
+    /** 是否要求数据连接恢复控制连接的会话 */
+    public static final boolean REQUIRE_REUSE = Boolean.getBoolean("ftp.tls.requireReuse");
+
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("ftp.tls.sessionCacheSize", 10000);
+
+    private static final int SESSION_TIMEOUT = Integer.getInteger("ftp.tls.sessionTimeout", 3600);
+
+    /** 会话绑定值的名字：完整握手时生成，从该会话派生的会话共用同一个标记 */
+    private static final String ORIGIN = "ftp.tls.origin";
+
+    private static final String STATELESS_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+    /** 共用的 SSLContext（未配置时为 null） */
+    private static volatile SSLContext context;
+
+    private TlsSupport() {
+    }
+
+    /**
+     * 按系统属性加载密钥库，未配置 ftp.tls.keystore 时什么也不做
+     *
+     * @return 是否已启用 TLS
+     */
+    public static boolean init() {
+        String keystore = System.getProperty("ftp.tls.keystore");
+        if (keystore == null) {
+            return false;
+        }
+        // 必须在创建 SSLContext 之前设置
+        if (REQUIRE_REUSE && System.getProperty(STATELESS_TICKETS) == null) {
+            System.setProperty(STATELESS_TICKETS, "false");
+        }
+        char[] password = System.getProperty("ftp.tls.password", "").toCharArray();
+        try {
+            Path path = Paths.get(keystore);
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(path)) {
+                ks.load(in, password);
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, password);
+
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            SSLSessionContext sessions = ctx.getServerSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            context = ctx;
+            System.out.println("[TlsSupport] 已加载密钥库 " + path + "，会话缓存 " + SESSION_CACHE_SIZE + " 条");
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("[TlsSupport] 无法加载密钥库 " + keystore + ": " + e.getMessage());
+            return false;
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * 是否支持 AUTH TLS
+     */
+    public static boolean isAvailable() {
+        return context != null;
+    }
+
+    /**
+     * 在已连接的 Socket 上以服务端身份完成 TLS 握手
+     *
+     * @param socket 已连接的明文 Socket（TLS Socket 关闭时一并关闭）
+     * @param kind 用于指标的连接类型（"control" 或 "data"）
+     * @param requiredSession 必须恢复的会话（控制连接的会话），不要求时传 null；
+     *                        恢复的不是它时关闭连接并抛出异常
+     * @return 握手完成的 TLS Socket
+     * @throws IOException 握手失败
+     */
+    public static SSLSocket handshake(Socket socket, String kind, SSLSession requiredSession) throws IOException {
+        SSLContext ctx = context;
+        if (ctx == null) {
+            throw new IOException("TLS 未配置");
+        }
+        SSLSocket ssl = (SSLSocket) ctx.getSocketFactory().createSocket(
+            socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+        ssl.setUseClientMode(false);
+
+        // 握手由几条小记录往返完成，开着 Nagle 时后一条要等对端的延迟 ACK（约 40ms），
+        // 握手期间关闭 Nagle，完成后恢复调优参数设定的值
+        boolean noDelay = socket.getTcpNoDelay();
+        socket.setTcpNoDelay(true);
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        ssl.startHandshake();
+        ServerMetrics.recordLatency("tls.handshake." + kind, System.nanoTime() - start);
+        socket.setTcpNoDelay(noDelay);
+
+        // 恢复的会话沿用缓存中的会话，创建时间早于本次握手
+        SSLSession session = ssl.getSession();
+        boolean resumed = session.getCreationTime() < startMillis;
+        ServerMetrics.increment(resumed ? "tls.handshake.resumed" : "tls.handshake.full");
+        // 带绑定值的会话不能放进无状态票据，只在要求复用时标记
+        if (REQUIRE_REUSE && session.getValue(ORIGIN) == null) {
+            session.putValue(ORIGIN, new Object());
+        }
+        // 只看"是否恢复"不够：客户端可能恢复的是另一条控制连接的会话
+        if (requiredSession != null && !sameOrigin(requiredSession, session)) {
+            ServerMetrics.increment("tls.handshake.rejected");
+            ssl.close();
+            throw new IOException("数据连接必须恢复控制连接的 TLS 会话");
+        }
+        return ssl;
+    }
+
+    /**
+     * 数据连接的会话是否恢复自控制连接的会话
+     */
+    private static boolean sameOrigin(SSLSession control, SSLSession data) {
+        if (Arrays.equals(control.getId(), data.getId())) {
+            return true;
+        }
+        Object origin = control.getValue(ORIGIN);
+        return origin != null && origin == data.getValue(ORIGIN);
+    }
+}
@@ -0,0 +1,213 @@
+package data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 传输日志（xferlog）
+ *
+ * 每次 RETR / STOR / LIST / NLST 记录一行，字段为 key=value，以空格分隔：
+ *   2026-10-18T12:00:00.123Z cmd=RETR user=alice ip=10.0.0.5 path="/pub/a.iso" bytes=1048576
+ *   connWaitMs=3.2 ttfbMs=0.4 diskMs=1.9 durationMs=95.0 kbps=10873 result=226
+ *
+ * 各阶段的含义：
+ * - connWaitMs：建立数据连接的耗时（PASV 等待客户端连入，或 PORT 主动连接）
+ * - ttfbMs：数据连接建立后到第一个字节发出/收到的耗时
+ * - diskMs：读写本地文件所花的时间（发送时是读文件，接收时是写文件）
+ * - durationMs：从收到命令到传输结束的总耗时
+ * - kbps：数据连接建立之后的平均吞吐量（KB/s）
+ * durationMs 远大于 connWaitMs + diskMs 时，瓶颈在客户端网络。
+ *
+ * 写入是非阻塞的：会话线程只把记录放进有界队列，由后台线程格式化并批量写盘。
+ * 队列满时丢弃记录并计数（xferlog.dropped），传输本身不会因为日志变慢。
+ */
+public final class TransferLog {
+
+    /** 队列容量 */
+    private static final int QUEUE_CAPACITY = Integer.getInteger("ftp.xferlog.queue", 8192);
+
+    /** 后台线程一次最多写出的记录数 */
+    private static final int BATCH_SIZE = 256;
+
+    private static final BlockingQueue<Record> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** 是否已启动（未启动时记录直接丢弃） */
+    private static volatile boolean started = false;
+
+    private TransferLog() {
+    }
+
+    /**
+     * 一次传输的记录
+     * 由会话线程在传输过程中填写，finish 之后交给后台线程，不再修改
+     */
+    public static final class Record {
+        private final String command;
+        private final String user;
+        private final String clientIp;
+        private final String path;
+        private final long startNanos = System.nanoTime();
+        private final long startMillis = System.currentTimeMillis();
+        private long connectedNanos;
+        private long firstByteNanos;
+        private long diskNanos;
+        private long bytes;
+        private long endNanos;
+        private int resultCode;
+
+        private Record(String command, String user, String clientIp, String path) {
+            this.command = command;
+            this.user = user;
+            this.clientIp = clientIp;
+            this.path = path;
+        }
+
+        /**
+         * 数据连接已建立
+         */
+        public void connected() {
+            connectedNanos = System.nanoTime();
+            ServerMetrics.recordLatency("xfer.connWait", connectedNanos - startNanos);
+        }
+
+        /**
+         * 传输结束：从数据连接取得字节数和各阶段时间，并提交给后台线程
+         *
+         * @param dataConn 本次使用的数据连接（可以未建立成功）
+         * @param resultCode 发给客户端的最终响应码
+         */
+        public void finish(DataConnection dataConn, int resultCode) {
+            this.endNanos = System.nanoTime();
+            this.resultCode = resultCode;
+            this.bytes = dataConn.getBytesTransferred();
+            this.firstByteNanos = dataConn.getFirstByteNanos();
+            this.diskNanos = dataConn.getLocalIoNanos();
+            if (connectedNanos != 0 && firstByteNanos != 0) {
+                ServerMetrics.recordLatency("xfer.ttfb", firstByteNanos - connectedNanos);
+            }
+            submit(this);
+        }
+
+        /**
+         * 格式化为一行
+         */
+        private String format() {
+            StringBuilder sb = new StringBuilder(192);
+            sb.append(Instant.ofEpochMilli(startMillis))
+                .append(" cmd=").append(command)
+                .append(" user=").append(user == null ? "-" : user)
+                .append(" ip=").append(clientIp)
+                .append(" path=\"").append(escape(path)).append('"')
+                .append(" bytes=").append(bytes);
+            appendMillis(sb, " connWaitMs=", connectedNanos == 0 ? -1 : connectedNanos - startNanos);
+            appendMillis(sb, " ttfbMs=", firstByteNanos == 0 || connectedNanos == 0 ? -1 : firstByteNanos - connectedNanos);
+            appendMillis(sb, " diskMs=", diskNanos);
+            appendMillis(sb, " durationMs=", endNanos - startNanos);
+            long transferNanos = connectedNanos == 0 ? 0 : endNanos - connectedNanos;
+            sb.append(" kbps=").append(TransferWatchdog.bytesPerSecond(bytes, transferNanos) / 1024)
+                .append(" result=").append(resultCode);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 启动后台写入线程
+     *
+     * @param file 日志文件（追加写入，父目录不存在时自动创建）
+     * @return 是否启动成功
+     */
+    public static synchronized boolean start(Path file) {
+        if (started) {
+            return true;
+        }
+        BufferedWriter writer;
+        try {
+            Files.createDirectories(file.getParent());
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            System.err.println("[TransferLog] 无法打开传输日志 " + file + ": " + e.getMessage());
+            return false;
+        }
+
+        Thread thread = new Thread(() -> drainLoop(writer), "ftp-xferlog");
+        thread.setDaemon(true);
+        thread.start();
+        started = true;
+        System.out.println("[TransferLog] 传输日志: " + file);
+        return true;
+    }
+
+    /**
+     * 开始记录一次传输
+     *
+     * @param command 命令名（RETR / STOR / LIST / NLST）
+     * @param user 当前用户
+     * @param clientIp 客户端地址
+     * @param path 虚拟路径
+     */
+    public static Record begin(String command, String user, String clientIp, String path) {
+        return new Record(command, user, clientIp, path);
+    }
+
+    private static void submit(Record record) {
+        if (!started) {
+            return;
+        }
+        if (!QUEUE.offer(record)) {
+            ServerMetrics.increment("xferlog.dropped");
+        }
+    }
+
+    /**
+     * 后台线程：取出记录批量写盘，每批 flush 一次
+     */
+    private static void drainLoop(BufferedWriter writer) {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+                QUEUE.drainTo(batch, BATCH_SIZE - 1);
+                for (Record record : batch) {
+                    writer.write(record.format());
+                    writer.write('\n');
+                }
+                writer.flush();
+                ServerMetrics.add("xferlog.written", batch.size());
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                ServerMetrics.add("xferlog.dropped", batch.size());
+                System.err.println("[TransferLog] 写入传输日志失败: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    private static void appendMillis(StringBuilder sb, String key, long nanos) {
+        sb.append(key);
+        if (nanos < 0) {
+            sb.append('-');
+            return;
+        }
+        // 保留一位小数
+        long tenths = nanos / 100_000;
+        sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
@@ -0,0 +1,204 @@
+package data;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 数据连接参数调优器
+ *
+ * 根据以下信息为每次传输选择 Socket 参数：
+ * 1. 传输类型（目录列表 / 下载 / 上传）
+ * 2. 预计大小（来自 Files.size 或 ALLO 命令，未知时为 -1）
+ * 3. 该客户端历史上测得的 RTT 和吞吐量
+ *
+ * 选择结果包括 SO_SNDBUF / SO_RCVBUF、读写缓冲区大小和 TCP_NODELAY。
+ * 大文件在长肥管道（高带宽 × 高延迟）上需要至少一个 BDP 的 Socket 缓冲，
+ * 否则 TCP 窗口会把吞吐量限制在可用带宽的一小部分。
+ *
+ * 显式设置缓冲区会关闭内核的自动调整，所以只有测到过真实 RTT（主动模式的 connect）时才设置；
+ * 被动模式下测不到 RTT，没有样本时缓冲区保持 0，交给内核自动调整。
+ * 测得的吞吐量本身受缓冲区限制，为避免"缓冲小 → 吞吐低 → 缓冲更小"的循环，
+ * Socket 缓冲按历史最高吞吐量计算，只增不减。
+ */
+public class TransferTuner {
+
+    /** 传输类型 */
+    public enum Kind {
+        LISTING, DOWNLOAD, UPLOAD
+    }
+
+    /** 小于该大小的传输视为小传输：不改 Socket 缓冲，开启 TCP_NODELAY */
+    private static final long SMALL_TRANSFER = 64 * 1024;
+
+    /** 没有 RTT 样本时假设的 RTT（20ms），只用于选择读写缓冲区 */
+    private static final long DEFAULT_RTT_NANOS = 20_000_000L;
+
+    /** 没有吞吐量样本时假设的带宽（100MB/s） */
+    private static final double DEFAULT_BYTES_PER_SEC = 100.0 * 1024 * 1024;
+
+    /** Socket 缓冲区上下限 */
+    private static final int MIN_SOCKET_BUFFER = 64 * 1024;
+    private static final int MAX_SOCKET_BUFFER = 16 * 1024 * 1024;
+
+    /** 读写缓冲区上下限 */
+    private static final int MIN_IO_BUFFER = 4 * 1024;
+    private static final int MAX_IO_BUFFER = 1024 * 1024;
+
+    /** 默认读写缓冲区（与原来的 8KB 一致） */
+    public static final int DEFAULT_IO_BUFFER = 8 * 1024;
+
+    /** 短于该字节数的传输不计入吞吐量样本（慢启动阶段不准确） */
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+
+    /** 历史表最多保存的客户端数，超出后清空重新统计 */
+    private static final int MAX_HISTORY = 4096;
+
+    /** EWMA 平滑系数：新样本占 1/4 */
+    private static final double ALPHA = 0.25;
+
+    /** 客户端 IP → 链路历史 */
+    private static final Map<InetAddress, LinkStats> HISTORY = new ConcurrentHashMap<>();
+
+    /**
+     * 单个客户端的链路统计（指数加权移动平均）
+     */
+    private static final class LinkStats {
+        volatile long rttNanos;
+        volatile double bytesPerSec;
+        /** 测到过的最高吞吐量 */
+        volatile double peakBytesPerSec;
+    }
+
+    /**
+     * 一次传输选定的参数
+     * 缓冲区取值为 0 表示不修改系统默认值
+     */
+    public static final class Params {
+        public final Kind kind;
+        public final int sendBufferSize;
+        public final int receiveBufferSize;
+        public final int ioBufferSize;
+        public final boolean tcpNoDelay;
+
+        Params(Kind kind, int sendBufferSize, int receiveBufferSize, int ioBufferSize, boolean tcpNoDelay) {
+            this.kind = kind;
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.ioBufferSize = ioBufferSize;
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        @Override
+        public String toString() {
+            return kind + "[sndbuf=" + sendBufferSize + ", rcvbuf=" + receiveBufferSize
+                + ", io=" + ioBufferSize + ", nodelay=" + tcpNoDelay + "]";
+        }
+    }
+
+    private TransferTuner() {
+    }
+
+    /**
+     * 为一次传输选择参数
+     *
+     * @param client 客户端地址（可为 null）
+     * @param kind 传输类型
+     * @param expectedSize 预计字节数，未知时传 -1
+     * @return 选定的参数
+     */
+    public static Params choose(InetAddress client, Kind kind, long expectedSize) {
+        Params params;
+
+        if (kind == Kind.LISTING) {
+            // 目录列表：通常很小，尽快发出即可
+            params = new Params(kind, 0, 0, DEFAULT_IO_BUFFER, true);
+        } else if (expectedSize >= 0 && expectedSize < SMALL_TRANSFER) {
+            // 小文件：一次读写完成，关闭 Nagle 避免最后一段等待
+            int io = clamp(nextPowerOfTwo(expectedSize), MIN_IO_BUFFER, (int) SMALL_TRANSFER);
+            params = new Params(kind, 0, 0, io, true);
+        } else {
+            // 大文件或大小未知：按 BDP（带宽 × RTT）设置 Socket 缓冲
+            LinkStats stats = client == null ? null : HISTORY.get(client);
+            boolean measuredRtt = stats != null && stats.rttNanos > 0;
+            long rtt = measuredRtt ? stats.rttNanos : DEFAULT_RTT_NANOS;
+            double bw = (stats != null && stats.bytesPerSec > 0) ? stats.bytesPerSec : DEFAULT_BYTES_PER_SEC;
+
+            int socketBuffer = 0;
+            if (measuredRtt) {
+                double peak = Math.max(stats.peakBytesPerSec, bw);
+                long peakBdp = (long) (peak * rtt / 1_000_000_000.0);
+                // 留一倍余量，让窗口能继续增长
+                socketBuffer = clamp(nextPowerOfTwo(peakBdp * 2), MIN_SOCKET_BUFFER, MAX_SOCKET_BUFFER);
+            }
+            long bdp = (long) (bw * rtt / 1_000_000_000.0);
+            int io = clamp(nextPowerOfTwo(bdp / 4), 64 * 1024, MAX_IO_BUFFER);
+            if (expectedSize > 0 && expectedSize < io) {
+                io = clamp(nextPowerOfTwo(expectedSize), MIN_IO_BUFFER, MAX_IO_BUFFER);
+            }
+
+            params = kind == Kind.DOWNLOAD
+                ? new Params(kind, socketBuffer, 0, io, false)
+                : new Params(kind, 0, socketBuffer, io, false);
+        }
+
+        String prefix = "tuner." + kind.name().toLowerCase();
+        ServerMetrics.increment(prefix + ".count");
+        ServerMetrics.set(prefix + ".sndbuf", params.sendBufferSize);
+        ServerMetrics.set(prefix + ".rcvbuf", params.receiveBufferSize);
+        ServerMetrics.set(prefix + ".iobuf", params.ioBufferSize);
+        return params;
+    }
+
+    /**
+     * 记录一次 RTT 样本（主动模式下 connect 的耗时约等于一个 RTT）
+     */
+    public static void recordRtt(InetAddress client, long nanos) {
+        if (client == null || nanos <= 0) {
+            return;
+        }
+        LinkStats stats = stats(client);
+        stats.rttNanos = stats.rttNanos == 0 ? nanos : (long) (stats.rttNanos * (1 - ALPHA) + nanos * ALPHA);
+    }
+
+    /**
+     * 记录一次吞吐量样本
+     *
+     * @param client 客户端地址
+     * @param bytes 传输字节数
+     * @param nanos 传输耗时
+     */
+    public static void recordThroughput(InetAddress client, long bytes, long nanos) {
+        if (client == null || bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1_000_000_000.0 / nanos;
+        LinkStats stats = stats(client);
+        stats.bytesPerSec = stats.bytesPerSec == 0 ? sample : stats.bytesPerSec * (1 - ALPHA) + sample * ALPHA;
+        if (sample > stats.peakBytesPerSec) {
+            stats.peakBytesPerSec = sample;
+        }
+        ServerMetrics.set("tuner.lastThroughputBytesPerSec", (long) sample);
+    }
+
+    private static LinkStats stats(InetAddress client) {
+        if (HISTORY.size() > MAX_HISTORY) {
+            HISTORY.clear();
+        }
+        return HISTORY.computeIfAbsent(client, k -> new LinkStats());
+    }
+
+    private static int nextPowerOfTwo(long value) {
+        if (value <= 1) {
+            return 1;
+        }
+        if (value >= (1 << 30)) {
+            return 1 << 30;
+        }
+        return Integer.highestOneBit((int) value - 1) << 1;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,140 @@
+package data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 传输速率监控（慢客户端检测）
+ *
+ * 数据连接的读超时只能发现完全不动的连接，每 29 秒送 1 个字节的客户端
+ * 可以一直占着传输线程和文件句柄。这里由一个后台线程定期采样每个进行中传输的字节数，
+ * 在滑动窗口内的平均速率低于下限时中止传输（会话随后回复 426）。
+ * 等待客户端连入数据端口的阶段同样计入：窗口结束时仍未连入的传输也会被中止。
+ *
+ * 配置：
+ *   -Dftp.transfer.minRate=1024     速率下限（字节/秒），0 表示不检测
+ *   -Dftp.transfer.rateWindow=30    滑动窗口长度（秒）
+ *
+ * 指标：transfer.stalled（被中止的传输数）
+ */
+public final class TransferWatchdog {
+
+    /** 速率下限（字节/秒） */
+    public static final long MIN_RATE = Long.getLong("ftp.transfer.minRate", 1024);
+
+    /** 滑动窗口长度（秒） */
+    public static final int WINDOW_SECONDS = Math.max(1, Integer.getInteger("ftp.transfer.rateWindow", 30));
+
+    /** 窗口内的采样次数 */
+    private static final int SAMPLES_PER_WINDOW = Math.min(10, WINDOW_SECONDS);
+
+    private static final long TICK_MILLIS = WINDOW_SECONDS * 1000L / SAMPLES_PER_WINDOW;
+
+    /** 进行中的传输及其采样窗口 */
+    private static final Map<Monitored, Window> ACTIVE = new ConcurrentHashMap<>();
+
+    private static ScheduledExecutorService timer;
+
+    private TransferWatchdog() {
+    }
+
+    /**
+     * 被监控的传输
+     */
+    public interface Monitored {
+        /** 到目前为止传输的字节数（单调递增，可以包括读写本地文件的字节数） */
+        long progressBytes();
+
+        /** 速率过低时由监控线程调用，中止传输 */
+        void stall();
+    }
+
+    /**
+     * 开始监控一次传输（未启用时什么也不做）
+     */
+    public static void watch(Monitored transfer) {
+        if (MIN_RATE <= 0) {
+            return;
+        }
+        startTimer();
+        ACTIVE.put(transfer, new Window());
+    }
+
+    /**
+     * 传输结束，停止监控
+     */
+    public static void unwatch(Monitored transfer) {
+        ACTIVE.remove(transfer);
+    }
+
+    private static synchronized void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ftp-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(TransferWatchdog::check, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("[TransferWatchdog] 速率下限 " + MIN_RATE + " 字节/秒，窗口 " + WINDOW_SECONDS + " 秒");
+    }
+
+    /**
+     * 采样所有传输，中止窗口内平均速率低于下限的传输
+     */
+    private static void check() {
+        long now = System.nanoTime();
+        ACTIVE.forEach((transfer, window) -> {
+            window.sample(now, transfer.progressBytes());
+            if (window.isFull() && window.rate() < MIN_RATE) {
+                ACTIVE.remove(transfer);
+                ServerMetrics.increment("transfer.stalled");
+                System.out.println("[TransferWatchdog] 传输速率 " + window.rate() + " 字节/秒低于下限，中止传输");
+                transfer.stall();
+            }
+        });
+    }
+
+    /**
+     * 最近一个窗口的采样（环形数组），只由监控线程访问
+     */
+    private static final class Window {
+        private final long[] times = new long[SAMPLES_PER_WINDOW + 1];
+        private final long[] bytes = new long[SAMPLES_PER_WINDOW + 1];
+        private int next = 0;
+        private int count = 0;
+
+        void sample(long nanos, long total) {
+            times[next] = nanos;
+            bytes[next] = total;
+            next = (next + 1) % times.length;
+            if (count < times.length) {
+                count++;
+            }
+        }
+
+        /** 采样已覆盖整个窗口 */
+        boolean isFull() {
+            return count == times.length;
+        }
+
+        /** 窗口内的平均速率（字节/秒） */
+        long rate() {
+            int newest = (next + times.length - 1) % times.length;
+            int oldest = isFull() ? next : 0;
+            return bytesPerSecond(bytes[newest] - bytes[oldest], times[newest] - times[oldest]);
+        }
+    }
+
+    /**
+     * 平均速率（字节/秒），elapsedNanos 不为正时返回 0
+     * 用 double 计算：bytes * 10^9 在一个窗口传输超过约 9.2GB 时会溢出成负数
+     */
+    static long bytesPerSecond(long bytes, long elapsedNanos) {
+        return elapsedNanos <= 0 ? 0 : (long) (bytes / (elapsedNanos / 1e9));
+    }
+}
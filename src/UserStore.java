@@ -1,13 +1,22 @@
 package data;
 
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
  * 用户存储管理器
- * 维护一个用户名 → 密码的映射表
+ * 维护一个用户名 → 密码的映射表，以及每个用户的磁盘配额
+ *
+ * 配额通过系统属性配置（不配置表示不限制）：
+ *   -Dftp.quota.alice=10G          alice 最多占用 10GB
+ *   -Dftp.quota.alice.files=100000 alice 最多拥有 10 万个文件和目录
+ *   -Dftp.quota.default=1G         其他用户的默认值（.files 同理）
  */
 public class UserStore {
+    /** 表示不限制的配额值 */
+    public static final long UNLIMITED = -1;
+
     // Map 存储用户名和对应的密码
     private final Map<String, String> users = new HashMap<>();
 
@@ -48,6 +57,65 @@ public class UserStore {
         return storedPassword.equals(password);
     }
 
+    /**
+     * 是否为任何用户配置了配额
+     */
+    public boolean hasQuotas() {
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("ftp.quota.") && !name.startsWith("ftp.quota.persist")
+                    && !name.startsWith("ftp.quota.rebuild")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 用户的字节配额
+     *
+     * @return 字节数，UNLIMITED 表示不限制
+     */
+    public long getQuotaBytes(String username) {
+        return parseSize(quotaProperty(username, ""));
+    }
+
+    /**
+     * 用户的文件数配额（文件和目录都计数）
+     *
+     * @return 个数，UNLIMITED 表示不限制
+     */
+    public long getQuotaFiles(String username) {
+        return parseSize(quotaProperty(username, ".files"));
+    }
+
+    private static String quotaProperty(String username, String suffix) {
+        String value = System.getProperty("ftp.quota." + username + suffix);
+        return value != null ? value : System.getProperty("ftp.quota.default" + suffix);
+    }
+
+    /**
+     * 解析 "1024"、"512K"、"100M"、"10G"、"2T" 形式的大小
+     */
+    private static long parseSize(String value) {
+        if (value == null || value.isBlank()) {
+            return UNLIMITED;
+        }
+        String v = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        char last = v.charAt(v.length() - 1);
+        int shift = "KMGT".indexOf(last);
+        if (shift >= 0) {
+            unit = 1L << (10 * (shift + 1));
+            v = v.substring(0, v.length() - 1);
+        }
+        try {
+            return Long.parseLong(v.trim()) * unit;
+        } catch (NumberFormatException e) {
+            System.err.println("[UserStore] 无法解析配额: " + value + "，按不限制处理");
+            return UNLIMITED;
+        }
+    }
+
     /**
      * 工厂方法：创建一个新的 UserStore 实例、
      * @return 新的 UserStore 实例
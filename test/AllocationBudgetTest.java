@@ -0,0 +1,368 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 每条命令的堆分配预算测试
+ *
+ * 在本进程内启动服务器，用一个简单的客户端逐条发送命令，每条命令重复若干次，
+ * 取服务器在这条命令期间分配的字节数的中位数，与预算比较，超出时以非 0 退出码结束。
+ *
+ * 分配量是除客户端线程以外所有线程的 getThreadAllocatedBytes 增量之和：
+ * LIST / RETR / STOR 的主要工作在传输线程上完成，只统计会话线程会漏掉它们。
+ * 每次测量前后都稍等片刻，让传输线程在回复 226 之后的收尾工作（释放连接、写传输日志）也计入本次。
+ *
+ * 另外检查 RETR 的分配与文件大小无关：32MB 文件与 64KB 文件的分配量之差不能超过 RETR_SIZE_SLACK。
+ *
+ * 用法（与服务器一样在 bin 目录下运行，根目录为 ../data，端口 2121 不能被占用）：
+ *   javac -d bin -encoding UTF-8 src/*.java test/*.java
+ *   cd bin && java -cp . data.AllocationBudgetTest
+ *
+ * 测试文件放在 ../data/budget-test 下，结束时删除。服务器日志不输出。
+ */
+public class AllocationBudgetTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final int PORT = 2121;
+
+    /** 每条命令的测量次数（另有同样次数的预热） */
+    private static final int ITERATIONS = 20;
+
+    /** 测量前后等待异步收尾的时间 */
+    private static final long SETTLE_MILLIS = 20;
+
+    /** 每条命令的预算（字节，取中位数比较；大约是当前实测值的两倍） */
+    private static final Map<String, Long> BUDGETS = new LinkedHashMap<>();
+
+    static {
+        BUDGETS.put("USER", 2L * 1024);
+        BUDGETS.put("PASS", 2L * 1024);
+        BUDGETS.put("CWD", 6L * 1024);
+        BUDGETS.put("PWD", 2L * 1024);
+        BUDGETS.put("PASV", 8L * 1024);
+        BUDGETS.put("LIST", 24L * 1024);
+        BUDGETS.put("RETR", 32L * 1024);
+        BUDGETS.put("STOR", 40L * 1024);
+    }
+
+    /** 大文件 RETR 比小文件多分配的上限 */
+    private static final long RETR_SIZE_SLACK = 8L * 1024;
+
+    private static final int SMALL_FILE = 64 * 1024;
+
+    private static final int LARGE_FILE = 32 * 1024 * 1024;
+
+    private static final Pattern PASV_REPLY = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long clientThreadId = Thread.currentThread().getId();
+
+    private final byte[] drainBuffer = new byte[64 * 1024];
+
+    private Socket control;
+    private BufferedReader reader;
+    private OutputStream writer;
+
+    public static void main(String[] args) throws Exception {
+        PrintStream console = System.out;
+        PrintStream consoleErr = System.err;
+        int failures;
+        Path dir = Paths.get("../data/budget-test");
+        try {
+            if (!THREADS.isThreadAllocatedMemorySupported()) {
+                console.println("JVM 不支持线程分配统计，跳过");
+                System.exit(0);
+            }
+            THREADS.setThreadAllocatedMemoryEnabled(true);
+            if (isListening()) {
+                console.println("端口 " + PORT + " 已被占用，请先停止正在运行的服务器");
+                System.exit(2);
+            }
+
+            Files.createDirectories(dir);
+            writeFile(dir.resolve("small.bin"), SMALL_FILE);
+            writeFile(dir.resolve("large.bin"), LARGE_FILE);
+
+            // USER / PASS 要重复登录几十次，不受每分钟登录次数的限制
+            System.setProperty("ftp.limit.loginsPerMinute", "0");
+            // 服务器日志量很大，测试期间丢弃（仍然经过 PrintStream 编码，分配量与正常运行相同）
+            System.setOut(new PrintStream(OutputStream.nullOutputStream(), true, StandardCharsets.UTF_8));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream(), true, StandardCharsets.UTF_8));
+            startServer();
+
+            failures = new AllocationBudgetTest().run(console);
+        } finally {
+            System.setOut(console);
+            System.setErr(consoleErr);
+            deleteTree(dir);
+        }
+        console.println(failures == 0 ? "全部命令都在预算之内" : failures + " 项超出预算");
+        // accept 线程不是守护线程，直接退出
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private int run(PrintStream console) throws IOException, InterruptedException {
+        Map<String, Long> measured = new LinkedHashMap<>();
+
+        long[] user = new long[ITERATIONS];
+        long[] pass = new long[ITERATIONS];
+        for (int i = -ITERATIONS; i < ITERATIONS; i++) {
+            connect();
+            long u = measure("USER alice", "331");
+            long p = measure("PASS 123456", "230");
+            if (i >= 0) {
+                user[i] = u;
+                pass[i] = p;
+            }
+            command("QUIT");
+            control.close();
+        }
+        measured.put("USER", median(user));
+        measured.put("PASS", median(pass));
+
+        connect();
+        expect(command("USER alice"), "331");
+        expect(command("PASS 123456"), "230");
+        expect(command("TYPE I"), "200");
+
+        measured.put("CWD", repeat(() -> {
+            long bytes = measure("CWD budget-test", "250");
+            expect(command("CWD /"), "250");
+            return bytes;
+        }));
+        expect(command("CWD budget-test"), "250");
+        measured.put("PWD", repeat(() -> measure("PWD", "257")));
+        measured.put("PASV", repeat(() -> measure("PASV", "227")));
+        measured.put("LIST", repeat(() -> transfer("LIST", false)));
+        long retrSmall = repeat(() -> transfer("RETR small.bin", false));
+        long retrLarge = repeat(() -> transfer("RETR large.bin", false));
+        measured.put("RETR", Math.max(retrSmall, retrLarge));
+        measured.put("STOR", repeat(() -> transfer("STOR upload.bin", true)));
+        command("QUIT");
+        control.close();
+
+        int failures = 0;
+        console.printf("%-6s %12s %12s%n", "命令", "分配(中位数)", "预算");
+        for (Map.Entry<String, Long> entry : measured.entrySet()) {
+            long budget = BUDGETS.get(entry.getKey());
+            boolean ok = entry.getValue() <= budget;
+            if (!ok) {
+                failures++;
+            }
+            console.printf("%-6s %12d %12d %s%n", entry.getKey(), entry.getValue(), budget, ok ? "" : "超出预算");
+        }
+        boolean flat = retrLarge - retrSmall <= RETR_SIZE_SLACK;
+        if (!flat) {
+            failures++;
+        }
+        console.printf("RETR %dKB: %d 字节，%dMB: %d 字节，相差 %d（上限 %d）%s%n",
+            SMALL_FILE / 1024, retrSmall, LARGE_FILE / 1024 / 1024, retrLarge,
+            retrLarge - retrSmall, RETR_SIZE_SLACK, flat ? "" : "分配随文件大小增长");
+        return failures;
+    }
+
+    private interface Step {
+        long run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * 预热 ITERATIONS 次，再测量 ITERATIONS 次，返回中位数
+     */
+    private static long repeat(Step step) throws IOException, InterruptedException {
+        long[] samples = new long[ITERATIONS];
+        for (int i = -ITERATIONS; i < ITERATIONS; i++) {
+            long bytes = step.run();
+            if (i >= 0) {
+                samples[i] = bytes;
+            }
+        }
+        return median(samples);
+    }
+
+    /**
+     * 发送一条控制命令，返回服务器处理期间的分配量
+     */
+    private long measure(String line, String expected) throws IOException, InterruptedException {
+        Map<Long, Long> before = serverAllocations();
+        expect(command(line), expected);
+        return allocatedSince(before);
+    }
+
+    /**
+     * PASV 之后执行一条传输命令，返回传输命令（不含 PASV）期间的分配量
+     */
+    private long transfer(String line, boolean upload) throws IOException, InterruptedException {
+        String pasv = command("PASV");
+        expect(pasv, "227");
+        Matcher m = PASV_REPLY.matcher(pasv);
+        if (!m.find()) {
+            throw new IOException("无法解析 PASV 响应: " + pasv);
+        }
+        int dataPort = Integer.parseInt(m.group(5)) * 256 + Integer.parseInt(m.group(6));
+
+        Map<Long, Long> before = serverAllocations();
+        try (Socket data = new Socket()) {
+            data.connect(new InetSocketAddress(HOST, dataPort), 10000);
+            send(line);
+            expect(readReply(), "150");
+            if (upload) {
+                OutputStream out = data.getOutputStream();
+                for (int sent = 0; sent < SMALL_FILE; sent += drainBuffer.length) {
+                    out.write(drainBuffer, 0, Math.min(drainBuffer.length, SMALL_FILE - sent));
+                }
+                data.shutdownOutput();
+            } else {
+                InputStream in = data.getInputStream();
+                while (in.read(drainBuffer) >= 0) {
+                    // 丢弃
+                }
+            }
+            expect(readReply(), "226");
+        }
+        return allocatedSince(before);
+    }
+
+    /**
+     * 除客户端线程外每个线程已分配的字节数
+     */
+    private Map<Long, Long> serverAllocations() throws InterruptedException {
+        Thread.sleep(SETTLE_MILLIS);
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        Map<Long, Long> result = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != clientThreadId && bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 与 before 相比的分配量之和（期间新建的线程按全部分配计入，已结束的线程不计）
+     */
+    private long allocatedSince(Map<Long, Long> before) throws InterruptedException {
+        long total = 0;
+        for (Map.Entry<Long, Long> entry : serverAllocations().entrySet()) {
+            total += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return total;
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // ==================== 服务器 ====================
+
+    private static void startServer() throws InterruptedException, IOException {
+        Thread server = new Thread(() -> FtpServer.main(new String[0]), "ftp-server-main");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!isListening()) {
+            if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                throw new IOException("服务器未能启动（需要在 bin 目录下运行，根目录为 ../data）");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static boolean isListening() {
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress(HOST, PORT), 1000);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void writeFile(Path file, int size) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (var entries = Files.list(dir)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                Files.deleteIfExists(entry);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    // ==================== 客户端 ====================
+
+    private void connect() throws IOException {
+        control = new Socket();
+        control.connect(new InetSocketAddress(HOST, PORT), 10000);
+        control.setTcpNoDelay(true);
+        reader = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+        writer = control.getOutputStream();
+        expect(readReply(), "220");
+    }
+
+    private String command(String line) throws IOException {
+        send(line);
+        return readReply();
+    }
+
+    private void send(String line) throws IOException {
+        writer.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        writer.flush();
+    }
+
+    /**
+     * 读取一个完整响应（多行响应返回最后一行）
+     */
+    private String readReply() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("连接已关闭");
+        }
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            String code = line.substring(0, 3);
+            while ((line = reader.readLine()) != null && !line.startsWith(code + " ")) {
+                // 跳过中间行
+            }
+        }
+        return line;
+    }
+
+    private static void expect(String reply, String code) throws IOException {
+        if (reply == null || !reply.startsWith(code)) {
+            throw new IOException("期望 " + code + "，收到: " + reply);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package data;
+
+/**
+ * 传输速率计算的检查
+ *
+ * 一个窗口内传输几 GB 到几 TB 时速率必须仍然是正确的正数
+ * （bytes * 10^9 的写法超过约 9.2GB 就溢出成负数，监控线程会把最快的传输当成停滞而中止）。
+ *
+ * 用法：
+ *   javac -d bin -encoding UTF-8 src/*.java test/*.java
+ *   java -cp bin data.TransferWatchdogTest
+ */
+public class TransferWatchdogTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private static final long SECOND = 1_000_000_000L;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        check("1MB / 1s", 1024 * 1024, SECOND, 1024 * 1024);
+        check("10GB / 30s", 10 * GB, 30 * SECOND, 10 * GB / 30);
+        check("100GB / 30s", 100 * GB, 30 * SECOND, 100 * GB / 30);
+        check("4TB / 30s", 4096 * GB, 30 * SECOND, 4096 * GB / 30);
+        check("10GB / 0.5s", 10 * GB, SECOND / 2, 20 * GB);
+        check("无耗时", 10 * GB, 0, 0);
+        System.out.println(failures == 0 ? "速率计算检查通过" : failures + " 项检查失败");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * 允许 double 计算带来的 1ppm 误差
+     */
+    private static void check(String label, long bytes, long nanos, long expected) {
+        long actual = TransferWatchdog.bytesPerSecond(bytes, nanos);
+        boolean ok = Math.abs(actual - expected) <= Math.max(1, expected / 1_000_000);
+        if (!ok) {
+            failures++;
+        }
+        System.out.printf("%-12s %20d 字节/秒 %s%n", label, actual, ok ? "" : "期望 " + expected);
+    }
+}